@@ -15,10 +15,14 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.protocol.HotKeySampler;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BitmapBlockAllocator;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockAllocatorFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStoreFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockAllocator;
 import com.thimbleware.jmemcached.storage.generic.ARCCacheEvictionPolicy;
 import com.thimbleware.jmemcached.storage.generic.CacheEvictionPolicy;
 import com.thimbleware.jmemcached.storage.generic.GenericCacheEvictionHashMap;
@@ -27,6 +31,7 @@ import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
 import com.thimbleware.jmemcached.util.Bytes;
 import org.apache.commons.cli.*;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 
 
@@ -43,8 +48,9 @@ public class Main {
         // setup command line options
         Options options = new Options();
         options.addOption("h", "help", false, "print this help screen");
-        options.addOption("bl", "block-store", false, "use external (from JVM) heap");
+        options.addOption("bl", "block-store", false, "use external (from JVM) heap, in direct buffers. stores bigger than the heap need '-XX:MaxDirectMemorySize' set to at least the max memory");
         options.addOption("f", "mapped-file", false, "use external (from JVM) heap through a memory mapped file");
+        options.addOption("pf", "persistent-file", true, "like mapped-file, but through the named file, which is kept so the cache survives restarts");
         options.addOption("bs", "block-size", true, "block size (in bytes) for external memory mapped file allocator.  default is 8 bytes");
         options.addOption("i", "idle", true, "disconnect after idle <x> seconds");
         options.addOption("p", "port", true, "port to listen on");
@@ -57,6 +63,15 @@ public class Main {
         options.addOption("v", false, "verbose (show commands)");
         options.addOption("s", "size", true, "cache size");
         options.addOption("e", "eviction", true, "eviction algorithm");
+        options.addOption("pc", "partitions", true, "number of partitions (a power of two) for block store storage. default is twice the number of processors, rounded up");
+        options.addOption("sl", "slab-allocator", false, "allocate block store memory memcached style, in slabs of geometrically growing size classes. each partition has its own 1MB pages, and wants at least one for each size class (about 45 at the default growth factor), so give it well over 45MB of memory per partition or use fewer partitions");
+        options.addOption("gf", "growth-factor", true, "chunk size growth factor between slab classes. default is 1.25");
+        options.addOption("o", "optimistic-reads", false, "read block store partitions optimistically instead of read locking them");
+        options.addOption("t", "threads", true, "number of network I/O threads. default is twice the number of processors");
+        options.addOption("ct", "command-threads", true, "handle commands on a pool of this many threads, rather than on the network I/O threads. default is 0");
+        options.addOption("ls", "listeners", true, "bind this many listeners to the port with SO_REUSEPORT, each accepting connections on its own thread. default is 1");
+        options.addOption("fd", "flush-delay", true, "hold text protocol responses back for up to this many microseconds, to write them along with those that follow. default is 0");
+        options.addOption("hk", "hot-keys", true, "sample one in <n> commands to find the hottest keys, for 'stats hotkeys' and the log. default is off");
 
         // read command line options
         CommandLineParser parser = new PosixParser();
@@ -112,6 +127,16 @@ public class Main {
             memoryMapped = true;
         }
 
+        File persistentFile = null;
+        if (cmdline.hasOption("pf")) {
+            persistentFile = new File(cmdline.getOptionValue("pf"));
+        } else if (cmdline.hasOption("persistent-file")) {
+            persistentFile = new File(cmdline.getOptionValue("persistent-file"));
+        }
+        if (persistentFile != null) {
+            memoryMapped = true;
+        }
+
         boolean blockStore = false;
         if (cmdline.hasOption("bl")) {
             blockStore = true;
@@ -119,6 +144,39 @@ public class Main {
             blockStore = true;
         }
 
+        int partitions = BlockStorageCacheStorage.defaultPartitionCount();
+        if (cmdline.hasOption("pc")) {
+            partitions = Integer.parseInt(cmdline.getOptionValue("pc"));
+        } else if (cmdline.hasOption("partitions")) {
+            partitions = Integer.parseInt(cmdline.getOptionValue("partitions"));
+        }
+        if (partitions <= 0 || (partitions & (partitions - 1)) != 0) {
+            System.out.println("ERROR : partition count must be a power of two, was " + partitions);
+            return;
+        }
+
+        BlockAllocatorFactory<?> allocatorFactory = BitmapBlockAllocator.getFactory();
+        if (cmdline.hasOption("sl") || cmdline.hasOption("slab-allocator")) {
+            double growthFactor = SlabBlockAllocator.DEFAULT_GROWTH_FACTOR;
+            if (cmdline.hasOption("gf")) {
+                growthFactor = Double.parseDouble(cmdline.getOptionValue("gf"));
+            } else if (cmdline.hasOption("growth-factor")) {
+                growthFactor = Double.parseDouble(cmdline.getOptionValue("growth-factor"));
+            }
+            if (growthFactor <= 1.0) {
+                System.out.println("ERROR : slab growth factor must be greater than 1, was " + growthFactor);
+                return;
+            }
+            allocatorFactory = SlabBlockAllocator.getFactory(growthFactor);
+        }
+
+        boolean optimisticReads = false;
+        if (cmdline.hasOption("o")) {
+            optimisticReads = true;
+        } else if (cmdline.hasOption("optimistic-reads")) {
+            optimisticReads = true;
+        }
+
         boolean verbose = false;
         if (cmdline.hasOption("v")) {
             verbose = true;
@@ -131,6 +189,9 @@ public class Main {
         } else if (cmdline.hasOption("ceiling")) {
             ceiling = Bytes.valueOf(cmdline.getOptionValue("ceiling")).bytes();
             System.out.println("Setting ceiling memory size to " + Bytes.bytes(ceiling).megabytes() + "M");
+        } else if (blockStore) {
+            ceiling = 0;
+            System.out.println("No ceiling memory size; evicting only once the block store is full");
         } else if (!memoryMapped ){
             ceiling = 1024000;
             System.out.println("Setting ceiling memory size to default limit of " + Bytes.bytes(ceiling).megabytes() + "M");
@@ -172,23 +233,53 @@ public class Main {
         if (!memoryMapped && !blockStore && maxBytes > Runtime.getRuntime().maxMemory()) {
             System.out.println("ERROR : JVM heap size is not big enough. use '-Xmx" + String.valueOf(maxBytes / 1024000) + "m' java argument before the '-jar' option.");
             return;
-        } else if ((memoryMapped || !blockStore) && maxBytes > Integer.MAX_VALUE) {
-            System.out.println("ERROR : when external memory mapped, memory size may not exceed the size of Integer.MAX_VALUE (" + Bytes.bytes(Integer.MAX_VALUE).gigabytes() + "GB");
+        }
+
+        if (blockStore && maxBytes > Runtime.getRuntime().maxMemory()) {
+            System.out.println("WARN : the block store is held in direct memory, which by default is no bigger than the heap. use '-XX:MaxDirectMemorySize=" + String.valueOf(maxBytes / 1024000 + 1) + "m' java argument before the '-jar' option.");
+        }
+
+        if (allocatorFactory instanceof SlabBlockAllocator.SlabBlockAllocatorFactory && (blockStore || memoryMapped && persistentFile == null) &&
+                maxBytes / partitions < SlabBlockAllocator.PAGE_BYTES) {
+            System.out.println("ERROR : slab allocator needs a page of " + SlabBlockAllocator.PAGE_BYTES + " bytes per partition, the largest item size. use fewer partitions or more memory.");
             return;
         }
 
+        if (allocatorFactory instanceof SlabBlockAllocator.SlabBlockAllocatorFactory && (blockStore || memoryMapped && persistentFile == null)) {
+            long pages = maxBytes / partitions / SlabBlockAllocator.PAGE_BYTES;
+            int classes = ((SlabBlockAllocator.SlabBlockAllocatorFactory) allocatorFactory).getClassCount(blockSize);
+            if (pages < classes)
+                System.out.println("WARN : each partition has only " + pages + " slab pages for its " + classes + " size classes, so with items of varied sizes whole pages will keep being evicted to move them between classes. use fewer partitions or more memory.");
+        }
+
         // create daemon and start it
         final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
 
         CacheStorage<Key, LocalCacheElement> storage = null;
+        if (blockStore || memoryMapped) {
+            System.out.println("Setting block store partitions to " + partitions);
+        }
         if (blockStore) {
-            BlockStoreFactory blockStoreFactory = ByteBufferBlockStore.getFactory();
+            BlockStoreFactory blockStoreFactory = ByteBufferBlockStore.getFactory(allocatorFactory);
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            BlockStorageCacheStorage blockStorage = new BlockStorageCacheStorage(partitions, ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            blockStorage.setOptimisticReads(optimisticReads);
+            storage = blockStorage;
         }  else if (memoryMapped) {
-            BlockStoreFactory blockStoreFactory = MemoryMappedBlockStore.getFactory();
+            BlockStoreFactory blockStoreFactory;
+            if (persistentFile != null) {
+                System.out.println("Keeping the cache in " + persistentFile + " across restarts");
+                if (cmdline.hasOption("sl") || cmdline.hasOption("slab-allocator")) {
+                    System.out.println("WARN : slab allocator can't be used with a persistent file; ignoring");
+                }
+                blockStoreFactory = MemoryMappedBlockStore.getPersistentFactory(persistentFile);
+            } else {
+                blockStoreFactory = MemoryMappedBlockStore.getFactory(allocatorFactory);
+            }
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            BlockStorageCacheStorage blockStorage = new BlockStorageCacheStorage(partitions, ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            blockStorage.setOptimisticReads(optimisticReads);
+            storage = blockStorage;
         }
         else  {
 //            storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, max_size, maxBytes);
@@ -212,7 +303,32 @@ public class Main {
 
 
         daemon.setCache(new CacheImpl(storage));
+        if (cmdline.hasOption("hk") || cmdline.hasOption("hot-keys")) {
+            int sampleRate = Integer.parseInt(cmdline.hasOption("hk") ? cmdline.getOptionValue("hk") : cmdline.getOptionValue("hot-keys"));
+            System.out.println("Sampling one in " + sampleRate + " commands for hot keys");
+            daemon.setHotKeySampler(new HotKeySampler(sampleRate, 20, blockStore || memoryMapped ? partitions : 1));
+        }
         daemon.setBinary(binary);
+        if (cmdline.hasOption("t")) {
+            daemon.setWorkerCount(Integer.parseInt(cmdline.getOptionValue("t")));
+        } else if (cmdline.hasOption("threads")) {
+            daemon.setWorkerCount(Integer.parseInt(cmdline.getOptionValue("threads")));
+        }
+        if (cmdline.hasOption("ct")) {
+            daemon.setCommandThreads(Integer.parseInt(cmdline.getOptionValue("ct")));
+        } else if (cmdline.hasOption("command-threads")) {
+            daemon.setCommandThreads(Integer.parseInt(cmdline.getOptionValue("command-threads")));
+        }
+        if (cmdline.hasOption("ls")) {
+            daemon.setListeners(Integer.parseInt(cmdline.getOptionValue("ls")));
+        } else if (cmdline.hasOption("listeners")) {
+            daemon.setListeners(Integer.parseInt(cmdline.getOptionValue("listeners")));
+        }
+        if (cmdline.hasOption("fd")) {
+            daemon.setFlushDelay(Integer.parseInt(cmdline.getOptionValue("fd")));
+        } else if (cmdline.hasOption("flush-delay")) {
+            daemon.setFlushDelay(Integer.parseInt(cmdline.getOptionValue("flush-delay")));
+        }
         daemon.setAddr(addr);
         daemon.setIdleTime(idle);
         daemon.setVerbose(verbose);
@@ -1,6 +1,10 @@
 package com.thimbleware.jmemcached;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import com.thimbleware.jmemcached.util.StripedCounter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.Set;
 import java.util.Map;
@@ -17,11 +21,21 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     protected final AtomicLong started = new AtomicLong();
 
-    protected final AtomicInteger getCmds = new AtomicInteger();
-    protected final AtomicInteger setCmds = new AtomicInteger();
-    protected final AtomicInteger getHits = new AtomicInteger();
-    protected final AtomicInteger getMisses = new AtomicInteger();
-    protected final AtomicLong casCounter = new AtomicLong(1);
+    protected final StripedCounter getCmds = new StripedCounter();
+    protected final StripedCounter setCmds = new StripedCounter();
+    protected final StripedCounter getHits = new StripedCounter();
+    protected final StripedCounter getMisses = new StripedCounter();
+    protected final StripedCounter deleteHits = new StripedCounter();
+    protected final StripedCounter deleteMisses = new StripedCounter();
+    protected final StripedCounter incrHits = new StripedCounter();
+    protected final StripedCounter incrMisses = new StripedCounter();
+    protected final StripedCounter decrHits = new StripedCounter();
+    protected final StripedCounter decrMisses = new StripedCounter();
+    protected final StripedCounter casHits = new StripedCounter();
+    protected final StripedCounter casMisses = new StripedCounter();
+    protected final StripedCounter casBadval = new StripedCounter();
+    protected final StripedCounter flushCmds = new StripedCounter();
+    protected final CasIdGenerator casIds = new CasIdGenerator(1);
 
     public AbstractCache() {
         initStats();
@@ -42,20 +56,41 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     public abstract long getCurrentBytes();
 
+    /**
+     * @return the number of items evicted to make room for new ones, where the storage keeps count
+     */
+    public abstract long getEvictions();
+
+    /**
+     * @return the number of expired items removed from the storage by the cache, rather than left to be overwritten
+     */
+    public abstract long getReclaimed();
 
-    public final int getGetCmds() {
+    /**
+     * @return the storage taken up by the expired items removed, in bytes
+     */
+    public abstract long getReclaimedBytes();
+
+    /**
+     * @return per slab class statistics, keyed as for the "stats slabs" command; empty if the storage doesn't
+     * use a slab allocator
+     */
+    public abstract Map<String, String> getSlabStats();
+
+
+    public final long getGetCmds() {
         return getCmds.get();
     }
 
-    public final int getSetCmds() {
+    public final long getSetCmds() {
         return setCmds.get();
     }
 
-    public final int getGetHits() {
+    public final long getGetHits() {
         return getHits.get();
     }
 
-    public final int getGetMisses() {
+    public final long getGetMisses() {
         return getMisses.get();
     }
 
@@ -68,34 +103,93 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
     public final Map<String, Set<String>> stat(String arg) {
         Map<String, Set<String>> result = new HashMap<String, Set<String>>();
 
+        if ("slabs".equals(arg)) {
+            for (Map.Entry<String, String> stat : getSlabStats().entrySet()) {
+                multiSet(result, stat.getKey(), stat.getValue());
+            }
+            return result;
+        }
+
         // stats we know
         multiSet(result, "version", MemCacheDaemon.memcachedVersion);
         multiSet(result, "cmd_gets", valueOf(getGetCmds()));
         multiSet(result, "cmd_sets", valueOf(getSetCmds()));
         multiSet(result, "get_hits", valueOf(getGetHits()));
         multiSet(result, "get_misses", valueOf(getGetMisses()));
+        multiSet(result, "cmd_flush", valueOf(flushCmds.get()));
+        multiSet(result, "delete_hits", valueOf(deleteHits.get()));
+        multiSet(result, "delete_misses", valueOf(deleteMisses.get()));
+        multiSet(result, "incr_hits", valueOf(incrHits.get()));
+        multiSet(result, "incr_misses", valueOf(incrMisses.get()));
+        multiSet(result, "decr_hits", valueOf(decrHits.get()));
+        multiSet(result, "decr_misses", valueOf(decrMisses.get()));
+        multiSet(result, "cas_hits", valueOf(casHits.get()));
+        multiSet(result, "cas_misses", valueOf(casMisses.get()));
+        multiSet(result, "cas_badval", valueOf(casBadval.get()));
         multiSet(result, "time", valueOf(valueOf(Now())));
         multiSet(result, "uptime", valueOf(Now() - this.started.longValue()));
         multiSet(result, "cur_items", valueOf(this.getCurrentItems()));
         multiSet(result, "limit_maxbytes", valueOf(this.getLimitMaxBytes()));
         multiSet(result, "current_bytes", valueOf(this.getCurrentBytes()));
+        multiSet(result, "evictions", valueOf(this.getEvictions()));
+        multiSet(result, "reclaimed", valueOf(this.getReclaimed()));
+        multiSet(result, "reclaimed_bytes", valueOf(this.getReclaimedBytes()));
         multiSet(result, "free_bytes", valueOf(Runtime.getRuntime().freeMemory()));
 
-        // Not really the same thing precisely, but meaningful nonetheless. potentially this should be renamed
-        multiSet(result, "pid", valueOf(Thread.currentThread().getId()));
+        multiSet(result, "pid", valueOf(pid()));
+        multiSet(result, "threads", valueOf(Thread.activeCount()));
 
-        // stuff we know nothing about; gets faked only because some clients expect this
-        multiSet(result, "rusage_user", "0:0");
-        multiSet(result, "rusage_system", "0:0");
-        multiSet(result, "connection_structures", "0");
-
-        // TODO we could collect these stats
-        multiSet(result, "bytes_read", "0");
-        multiSet(result, "bytes_written", "0");
+        long[] rusage = rusage();
+        multiSet(result, "rusage_user", seconds(rusage[0]));
+        multiSet(result, "rusage_system", seconds(rusage[1]));
 
         return result;
     }
 
+    /**
+     * @return the process id, going by the name of the running virtual machine, which is "pid@host" on the common
+     * ones; 0 where it isn't
+     */
+    private static long pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        try {
+            return Long.parseLong(at < 0 ? name : name.substring(0, at));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the user and system cpu time taken by the process so far, in nanoseconds.  The user time is summed
+     * over the live threads; the system time is what is left of the cpu time of the whole process, where the
+     * virtual machine tells it, and otherwise of the live threads.
+     */
+    private static long[] rusage() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long user = 0;
+        long cpu = 0;
+        if (threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+            for (long id : threads.getAllThreadIds()) {
+                long threadUser = threads.getThreadUserTime(id);
+                long threadCpu = threads.getThreadCpuTime(id);
+                // -1 for a thread since gone
+                if (threadUser > 0) user += threadUser;
+                if (threadCpu > 0) cpu += threadCpu;
+            }
+        }
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpu = Math.max(cpu, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime());
+        }
+        return new long[] {user, Math.max(cpu - user, 0)};
+    }
+
+    private static String seconds(long nanos) {
+        return format("%d.%06d", nanos / 1000000000, nanos / 1000 % 1000000);
+    }
+
     private void multiSet(Map<String, Set<String>> map, String key, String val) {
         Set<String> cur = map.get(key);
         if (cur == null) {
@@ -88,12 +88,22 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     Integer get_add(Key key, int mod);
 
     /**
-     * Get element(s) from the cache
+     * Get element(s) from the cache.  Each element found must be release()d once done with, as it may hold on
+     * to the storage it was read from.
      * @param keys the key for the element to lookup
      * @return the element, or 'null' in case of cache miss.
      */
     CACHE_ELEMENT[] get(Key ... keys);
 
+    /**
+     * Get the elements for the keys of several get commands at once, each command counted in the stats as if it
+     * had been looked up on its own.
+     * @param gets the number of get commands the keys are from
+     * @param keys the keys of all of them, in order
+     * @return the elements, with 'null' for each miss
+     */
+    CACHE_ELEMENT[] getBatch(int gets, Key ... keys);
+
     /**
      * Flush all cache entries
      * @return command response
@@ -132,22 +142,22 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     /**
      * @return the number of get commands executed
      */
-    int getGetCmds();
+    long getGetCmds();
 
     /**
      * @return the number of set commands executed
      */
-    int getSetCmds();
+    long getSetCmds();
 
     /**
      * @return the number of get hits
      */
-    int getGetHits();
+    long getGetHits();
 
     /**
      * @return the number of stats
      */
-    int getGetMisses();
+    long getGetMisses();
 
     /**
      * Retrieve stats about the cache. If an argument is specified, a specific category of stats is requested.
@@ -157,7 +167,7 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     Map<String, Set<String>> stat(String arg);
 
     /**
-     * Called periodically by the network event loop to process any pending events.
+     * Called periodically, away from the handling of commands, to process any pending events.
      * (such as delete queues, etc.)
      */
     void asyncEventPing();
@@ -40,4 +40,10 @@ public interface CacheElement extends Serializable, SizedItem {
     CacheElement prepend(LocalCacheElement element);
 
     LocalCacheElement.IncrDecrResult add(int mod);
+
+    /**
+     * Let go of the storage the element was read from.  Elements read from block storage refer to it directly
+     * rather than to a copy, and hold its blocks until released; other elements ignore this.
+     */
+    void release();
 }
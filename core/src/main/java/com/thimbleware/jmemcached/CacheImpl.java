@@ -16,13 +16,19 @@
 package com.thimbleware.jmemcached;
 
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default implementation of the cache handler, supporting local memory cache elements.
@@ -30,23 +36,67 @@ import java.util.concurrent.*;
 public final class CacheImpl extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement> {
 
     final CacheStorage<Key, LocalCacheElement> storage;
-    final DelayQueue<DelayedMCElement> deleteQueue;
     private final ScheduledExecutorService scavenger;
 
+    // blocking placeholders of delayed deletes, by the time they are due to be removed; ticks of 2^8ms, so that
+    // the short delays deletes are usually given aren't much stretched
+    private final ExpiryWheel<LocalCacheElement> deleteWheel = new ExpiryWheel<LocalCacheElement>(8);
+
+    private static final long THIRTY_DAYS_SECONDS = CacheElement.THIRTY_DAYS / 1000;
+
+    // most delayed deletes taken off the wheel at once
+    private static final int DELETE_BATCH = 1000;
+
+    // most expired items to remove on each ping, so that a mass expiry is spread over several
+    private static final int REAP_BATCH = 10000;
+
+    // items with an expiry, by expiry; ticks of 2^10ms, about a second
+    private final ExpiryWheel<Key> expiryWheel = new ExpiryWheel<Key>(10);
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    // every store takes a new cas, so items with a cas below this were stored before the last flush, and are
+    // gone as far as clients are concerned; they are only removed from the storage as they are come across
+    private volatile long flushedBelow;
+
+    // flushed items still in the storage, and the room they take up, left out of the item and byte counts; only
+    // roughly kept up, and zeroed once the sweep following a flush is through
+    private final AtomicLong flushedItems = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicInteger flushes = new AtomicInteger();
+    // held while a flushed item is reclaimed, so that the zeroing at the end of a sweep can't land in between
+    private final Object reclaimLock = new Object();
+    // odd while the sweep is removing an item and taking it out of the flushed counts, for the current counts to
+    // wait out; the sweep only ever runs on the scavenger thread, so a plain sequence will do
+    private final AtomicInteger sweepStep = new AtomicInteger();
+
     /**
      * @inheritDoc
      */
     public CacheImpl(CacheStorage<Key, LocalCacheElement> storage) {
         super();
         this.storage = storage;
-        deleteQueue = new DelayQueue<DelayedMCElement>();
 
-        scavenger = Executors.newScheduledThreadPool(1);
+        // carry on from the cas ids of items recovered from a previous run, so that they can still be flushed, and
+        // from its last flush, which still stands for anything stored before it
+        if (storage instanceof BlockStorageCacheStorage) {
+            BlockStorageCacheStorage blocks = (BlockStorageCacheStorage) storage;
+            flushedBelow = blocks.getRecoveredFlushedBelow();
+            casIds.skipTo(Math.max(blocks.getMaxRecoveredCasUnique() + 1, flushedBelow));
+            if (blocks.getMaxRecoveredCasUnique() != 0) scheduleRecovered();
+        }
+
+        scavenger = Executors.newScheduledThreadPool(1, new NamedThreadFactory("scavenger", false));
         scavenger.scheduleAtFixedRate(new Runnable(){
             public void run() {
                 asyncEventPing();
             }
-        }, 10, 2, TimeUnit.SECONDS);
+        }, 1, 1, TimeUnit.SECONDS);
+        scavenger.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reapExpired();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
     /**
@@ -58,19 +108,30 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         // delayed remove
         if (time != 0) {
             // block the element and schedule a delete; replace its entry with a blocked element
-            LocalCacheElement placeHolder = new LocalCacheElement(key, 0, 0, 0L);
+            LocalCacheElement placeHolder = new LocalCacheElement(key, 0, 0, casIds.next());
             placeHolder.setData(ChannelBuffers.buffer(0));
-            placeHolder.block(Now() + (long)time);
+            placeHolder.block(Now() + time * 1000L);
 
-            storage.replace(key, placeHolder);
+            LocalCacheElement old = storage.replace(key, placeHolder);
+            forgetFlushed(old);
+            release(old);
 
-            // this must go on a queue for processing later...
-            deleteQueue.add(new DelayedMCElement(placeHolder));
-        } else
-            removed = storage.remove(key) != null;
+            // the placeholder goes once the block is over
+            deleteWheel.schedule(placeHolder, placeHolder.getBlockedUntil());
+        } else {
+            LocalCacheElement old = storage.remove(key);
+            removed = old != null && !isFlushed(old);
+            forgetFlushed(old);
+            release(old);
+        }
 
-        if (removed) return DeleteResponse.DELETED;
-        else return DeleteResponse.NOT_FOUND;
+        if (removed) {
+            deleteHits.increment();
+            return DeleteResponse.DELETED;
+        } else {
+            deleteMisses.increment();
+            return DeleteResponse.NOT_FOUND;
+        }
 
     }
 
@@ -79,11 +140,23 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public StoreResponse add(LocalCacheElement e) {
         final long origCasUnique = e.getCasUnique();
-        e.setCasUnique(casCounter.getAndIncrement());
-        final boolean stored = storage.putIfAbsent(e.getKey(), e) == null;
+        e.setCasUnique(casIds.next());
+        final LocalCacheElement existing = storage.putIfAbsent(e.getKey(), e);
+        boolean stored = existing == null;
+        if (!stored && isFlushed(existing)) {
+            // as good as absent, but its cas is not to go backwards all the same
+            e.setCasUnique(casIds.nextAbove(existing.getCasUnique()));
+            if (storage.replace(e.getKey(), existing, e)) {
+                forgetFlushed(existing);
+                stored = true;
+            }
+        }
+        release(existing);
         // we should restore the former cas so that the object isn't left dirty
         if (!stored) {
             e.setCasUnique(origCasUnique);
+        } else {
+            scheduleExpiry(e);
         }
         return stored ? StoreResponse.STORED : StoreResponse.NOT_STORED;
     }
@@ -92,7 +165,24 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        // only a live item may be replaced, so check it is one, and replace that very item
+        while (true) {
+            LocalCacheElement old = storage.get(e.getKey());
+            try {
+                if (old == null) return StoreResponse.NOT_STORED;
+                if (isFlushed(old)) {
+                    reclaimFlushed(e.getKey(), old);
+                    return StoreResponse.NOT_STORED;
+                }
+                e.setCasUnique(casIds.nextAbove(old.getCasUnique()));
+                if (storage.replace(e.getKey(), old, e)) break;
+            } finally {
+                release(old);
+            }
+        }
+
+        scheduleExpiry(e);
+        return StoreResponse.STORED;
     }
 
     /**
@@ -100,12 +190,19 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public StoreResponse append(LocalCacheElement element) {
         LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                reclaimFlushed(element.getKey(), old);
+                getMisses.increment();
+                return StoreResponse.NOT_FOUND;
+            }
+            else {
+                LocalCacheElement appended = old.append(element);
+                appended.setCasUnique(casIds.nextAbove(old.getCasUnique()));
+                return storage.replace(old.getKey(), old, appended) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            }
+        } finally {
+            release(old);
         }
     }
 
@@ -114,12 +211,19 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public StoreResponse prepend(LocalCacheElement element) {
         LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                reclaimFlushed(element.getKey(), old);
+                getMisses.increment();
+                return StoreResponse.NOT_FOUND;
+            }
+            else {
+                LocalCacheElement prepended = old.prepend(element);
+                prepended.setCasUnique(casIds.nextAbove(old.getCasUnique()));
+                return storage.replace(old.getKey(), old, prepended) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            }
+        } finally {
+            release(old);
         }
     }
 
@@ -127,11 +231,30 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse set(LocalCacheElement e) {
-        setCmds.incrementAndGet();//update stats
-
-        e.setCasUnique(casCounter.getAndIncrement());
-
-        storage.put(e.getKey(), e);
+        setCmds.increment();//update stats
+
+        // as for replace, a blind put could leave the key with a lower cas than it had; swap out the very item
+        // there, with an id above its own
+        while (true) {
+            LocalCacheElement old = storage.get(e.getKey());
+            try {
+                if (old == null) {
+                    e.setCasUnique(casIds.next());
+                    LocalCacheElement existing = storage.putIfAbsent(e.getKey(), e);
+                    release(existing);
+                    if (existing == null) break;
+                } else {
+                    e.setCasUnique(casIds.nextAbove(old.getCasUnique()));
+                    if (storage.replace(e.getKey(), old, e)) {
+                        forgetFlushed(old);
+                        break;
+                    }
+                }
+            } finally {
+                release(old);
+            }
+        }
+        scheduleExpiry(e);
 
         return StoreResponse.STORED;
     }
@@ -142,22 +265,33 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     public StoreResponse cas(Long cas_key, LocalCacheElement e) {
         // have to get the element
         LocalCacheElement element = storage.get(e.getKey());
-        if (element == null || isBlocked(element)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-
-        if (element.getCasUnique() == cas_key) {
-            // casUnique matches, now set the element
-        	e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
-            else {
-                getMisses.incrementAndGet();
+        try {
+            if (element == null || isBlocked(element) || isFlushed(element)) {
+                reclaimFlushed(e.getKey(), element);
+                getMisses.increment();
+                casMisses.increment();
                 return StoreResponse.NOT_FOUND;
             }
-        } else {
-            // cas didn't match; someone else beat us to it
-            return StoreResponse.EXISTS;
+
+            if (element.getCasUnique() == cas_key) {
+                // casUnique matches, now set the element
+                e.setCasUnique(casIds.nextAbove(element.getCasUnique()));
+                if (storage.replace(e.getKey(), element, e)) {
+                    scheduleExpiry(e);
+                    casHits.increment();
+                    return StoreResponse.STORED;
+                } else {
+                    getMisses.increment();
+                    casMisses.increment();
+                    return StoreResponse.NOT_FOUND;
+                }
+            } else {
+                // cas didn't match; someone else beat us to it
+                casBadval.increment();
+                return StoreResponse.EXISTS;
+            }
+        } finally {
+            release(element);
         }
     }
 
@@ -166,13 +300,90 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public Integer get_add(Key key, int mod) {
         LocalCacheElement old = storage.get(key);
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return null;
-        } else {
-            LocalCacheElement.IncrDecrResult result = old.add(mod);
-            return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                reclaimFlushed(key, old);
+                getMisses.increment();
+                (mod < 0 ? decrMisses : incrMisses).increment();
+                return null;
+            } else {
+                LocalCacheElement.IncrDecrResult result = old.add(mod);
+                result.replace.setCasUnique(casIds.nextAbove(old.getCasUnique()));
+                boolean replaced = storage.replace(old.getKey(), old, result.replace);
+                if (replaced) (mod < 0 ? decrHits : incrHits).increment();
+                else (mod < 0 ? decrMisses : incrMisses).increment();
+                return replaced ? result.oldValue : null;
+            }
+        } finally {
+            release(old);
+        }
+    }
+
+    /**
+     * File a newly stored element in the expiry wheel, if it expires and its key isn't filed to come due by then
+     * already.  The key is copied, as it is likely a slice of the buffer the command was read into.
+     */
+    private void scheduleExpiry(LocalCacheElement e) {
+        if (e.getExpire() != 0 && !expiryWheel.isScheduled(e.getKey(), e.getExpire()))
+            expiryWheel.schedule(new Key(ChannelBuffers.copiedBuffer(e.getKey().bytes)), e.getExpire());
+    }
+
+    /**
+     * File the items recovered from a previous run that expire in the expiry wheel, as only storing an item files
+     * it otherwise; before the scavenger starts, so the wheel is only reaped once they are all in.
+     */
+    private void scheduleRecovered() {
+        storage.sweep(new CacheStorage.Sweeper<LocalCacheElement>() {
+            public void visit(LocalCacheElement e, CacheStorage.Removal removal) {
+                scheduleExpiry(e);
+            }
+        });
+    }
+
+    /**
+     * Remove a batch of items whose expiry has passed from the storage.  Left alone, they would only go once
+     * overwritten or evicted, taking up room all the while.
+     *
+     * @return the number of items removed
+     */
+    public int reapExpired() {
+        final int[] removed = new int[1];
+        ExpiryWheel.Visitor<Key> reaper = new ExpiryWheel.Visitor<Key>() {
+            public void expired(Key key, long expiry) {
+                LocalCacheElement e = storage.get(key);
+                try {
+                    // the key may since have been set again, with a different expiry or none; a later expiry
+                    // wasn't filed while this entry stood, so it is filed now
+                    if (e == null || e.getExpire() == 0) return;
+                    if (!isExpired(e)) {
+                        expiryWheel.schedule(key, e.getExpire());
+                        return;
+                    }
+
+                    int bytes = e.bufferSize();
+                    if (storage.remove(key, e)) {
+                        forgetFlushed(e);
+                        reclaimed.incrementAndGet();
+                        reclaimedBytes.addAndGet(bytes);
+                        removed[0]++;
+                    }
+                } finally {
+                    release(e);
+                }
+            }
+        };
+
+        synchronized (expiryWheel) {
+            expiryWheel.expire(Now(), REAP_BATCH, reaper);
         }
+        return removed[0];
+    }
+
+    /**
+     * Let go of an element read from the storage, if there is one.
+     */
+    private static void release(LocalCacheElement e) {
+        if (e != null) e.release();
     }
 
 
@@ -184,32 +395,64 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         return e.getExpire() != 0 && e.getExpire() < Now();
     }
 
+    protected boolean isFlushed(CacheElement e) {
+        return e.getCasUnique() < flushedBelow;
+    }
+
+    /**
+     * Remove an element come across after it was flushed, if it is one and hasn't been replaced since.  It is only
+     * forgotten once it is gone, so that the counts never take it for gone while it is still stored; the lock keeps
+     * a flush or the end of a sweep from setting the counts in between.
+     */
+    private void reclaimFlushed(Key key, LocalCacheElement e) {
+        if (e == null || !isFlushed(e)) return;
+        synchronized (reclaimLock) {
+            if (storage.remove(key, e)) forgetFlushed(e);
+        }
+    }
+
+    /**
+     * Take an element just removed or replaced out of the flushed counts, if it had been flushed.
+     */
+    private void forgetFlushed(LocalCacheElement e) {
+        if (e != null && isFlushed(e)) {
+            flushedItems.decrementAndGet();
+            flushedBytes.addAndGet(-e.bufferSize());
+        }
+    }
+
     /**
      * @inheritDoc
      */
     public LocalCacheElement[] get(Key ... keys) {
-        getCmds.incrementAndGet();//updates stats
+        return getBatch(1, keys);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement[] getBatch(int gets, Key ... keys) {
+        getCmds.add(gets);//updates stats
 
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
-        int x = 0;
+        storage.getAll(keys, elements);
+
         int hits = 0;
         int misses = 0;
-        for (Key key : keys) {
-            LocalCacheElement e = storage.get(key);
-            if (e == null || isExpired(e) || e.isBlocked()) {
+        for (int x = 0; x < keys.length; x++) {
+            LocalCacheElement e = elements[x];
+            if (e == null || isExpired(e) || e.isBlocked() || isFlushed(e)) {
                 misses++;
+                reclaimFlushed(keys[x], e);
+                release(e);
 
                 elements[x] = null;
             } else {
                 hits++;
-
-                elements[x] = e;
             }
-            x++;
-
         }
-        getMisses.addAndGet(misses);
-        getHits.addAndGet(hits);
+        getMisses.add(misses);
+        getHits.add(hits);
 
         return elements;
 
@@ -226,16 +469,95 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public boolean flush_all(int expire) {
-        // TODO implement this, it isn't right... but how to handle efficiently? (don't want to linear scan entire cacheStorage)
-        storage.clear();
+        flushCmds.increment();
+        if (expire <= 0) {
+            flush();
+            return true;
+        }
+
+        // as for expiries, a time more than thirty days off is a unix time rather than a delay
+        long delay = expire > THIRTY_DAYS_SECONDS ? expire - System.currentTimeMillis() / 1000 : expire;
+        scavenger.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, Math.max(delay, 0), TimeUnit.SECONDS);
         return true;
     }
 
+    /**
+     * Flush everything stored up to now: every item with a cas below the next to be handed out is treated as gone
+     * from here on.  The storage is left alone, to be swept in the background; left to the commands alone, flushed
+     * items would only go as they are come across, or evicted.
+     */
+    private void flush() {
+        final int flush;
+        synchronized (reclaimLock) {
+            flushedBelow = casIds.fence();
+            flushedItems.set(storage.size());
+            flushedBytes.set(storage.getMemoryUsed());
+            flush = flushes.incrementAndGet();
+        }
+
+        try {
+            scavenger.execute(new Runnable() {
+                public void run() {
+                    sweepFlushed(flush);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing; the flush still stands, the sweep is just left undone
+        }
+    }
+
+    /**
+     * Remove everything flushed, going through the storage in place; a copy of its keys would cost as much again
+     * as the items themselves.
+     */
+    private void sweepFlushed(final int flush) {
+        storage.sweep(new CacheStorage.Sweeper<LocalCacheElement>() {
+            public void visit(LocalCacheElement e, CacheStorage.Removal removal) {
+                // a later flush sweeps for itself
+                if (flushes.get() != flush || !isFlushed(e)) return;
+
+                int bytes = e.bufferSize();
+                sweepStep.incrementAndGet();
+                try {
+                    if (removal.remove()) {
+                        flushedItems.decrementAndGet();
+                        flushedBytes.addAndGet(-bytes);
+                    }
+                } finally {
+                    sweepStep.incrementAndGet();
+                }
+            }
+        });
+
+        // everything flushed is gone; anything left in the counts is down to flushed items evicted meanwhile
+        synchronized (reclaimLock) {
+            if (flushes.get() == flush) {
+                flushedItems.set(0);
+                flushedBytes.set(0);
+            }
+        }
+    }
+
     /**
      * @inheritDoc
      */
     public void close() throws IOException {
-        scavenger.shutdown();;
+        // drop the delayed flushes still to come along with the pings, which would otherwise keep the scavenger
+        // going, and wait out whatever it is running, a sweep say, before the storage is closed from under it
+        scavenger.shutdownNow();
+        try {
+            scavenger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // flushed items the sweep hasn't got to are saved along with the rest, so have them dropped once reloaded
+        if (storage instanceof BlockStorageCacheStorage)
+            ((BlockStorageCacheStorage) storage).setFlushedBelow(flushedBelow);
         storage.close();
     }
 
@@ -247,12 +569,26 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         return storage.keySet();
     }
 
+    /**
+     * @return true if the sweep was between items both at the given step and since, so that a count read meanwhile
+     * has the storage and the flushed counts agree; yields to the sweep otherwise
+     */
+    private boolean isSettled(int step) {
+        if ((step & 1) == 0 && sweepStep.get() == step) return true;
+        Thread.yield();
+        return false;
+    }
+
     /**
      * @inheritDoc
      */
     @Override
     public long getCurrentItems() {
-        return storage.size();
+        while (true) {
+            int step = sweepStep.get();
+            long items = storage.size() - Math.max(flushedItems.get(), 0);
+            if (isSettled(step)) return Math.max(items, 0);
+        }
     }
 
     /**
@@ -268,40 +604,66 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     @Override
     public long getCurrentBytes() {
-        return storage.getMemoryUsed();
+        while (true) {
+            int step = sweepStep.get();
+            long bytes = storage.getMemoryUsed() - Math.max(flushedBytes.get(), 0);
+            if (isSettled(step)) return Math.max(bytes, 0);
+        }
     }
 
     /**
      * @inheritDoc
      */
     @Override
-    public void asyncEventPing() {
-        DelayedMCElement toDelete = deleteQueue.poll();
-        if (toDelete != null) {
-            storage.remove(toDelete.element.getKey());
-        }
+    public long getEvictions() {
+        if (storage instanceof BlockStorageCacheStorage)
+            return ((BlockStorageCacheStorage) storage).getEvictions();
+        return 0;
     }
 
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getReclaimed() {
+        return reclaimed.get();
+    }
 
     /**
-     * Delayed key blocks get processed occasionally.
+     * @inheritDoc
      */
-    protected static class DelayedMCElement implements Delayed {
-        private CacheElement element;
+    @Override
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
 
-        public DelayedMCElement(CacheElement element) {
-            this.element = element;
-        }
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Map<String, String> getSlabStats() {
+        if (storage instanceof BlockStorageCacheStorage)
+            return ((BlockStorageCacheStorage) storage).getSlabStats();
+        return Collections.emptyMap();
+    }
 
-        public long getDelay(TimeUnit timeUnit) {
-            return timeUnit.convert(element.getBlockedUntil() - Now(), TimeUnit.MILLISECONDS);
-        }
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void asyncEventPing() {
+        ExpiryWheel.Visitor<LocalCacheElement> remover = new ExpiryWheel.Visitor<LocalCacheElement>() {
+            public void expired(LocalCacheElement placeHolder, long blockedUntil) {
+                // unless the key has been stored again since
+                if (storage.remove(placeHolder.getKey(), placeHolder)) forgetFlushed(placeHolder);
+            }
+        };
 
-        public int compareTo(Delayed delayed) {
-            if (!(delayed instanceof CacheImpl.DelayedMCElement))
-                return -1;
-            else
-                return element.getKey().toString().compareTo(((DelayedMCElement) delayed).element.getKey().toString());
+        // everything due, a batch at a time
+        synchronized (deleteWheel) {
+            while (deleteWheel.expire(Now(), DELETE_BATCH, remover) == DELETE_BATCH) {
+                // carry on
+            }
         }
     }
 }
@@ -0,0 +1,95 @@
+package com.thimbleware.jmemcached;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out cas ids.  Rather than every store bumping the one shared counter, each thread reserves a block of ids
+ * from it at a time and hands those out on its own, so the shared counter is touched once per block.
+ *
+ * Ids are unique, but being handed out of different threads' blocks, they aren't in the order they were handed
+ * out in.  What order there is:
+ * <ul>
+ * <li>every id handed out after a fence() is at or above the id it returned, and every id handed out before it
+ * below, as a flush relies on;</li>
+ * <li>nextAbove() gives an id above a given one, so that an item updated from its current value, as by cas or
+ * append, gets a higher id than the one it replaces.</li>
+ * </ul>
+ */
+public final class CasIdGenerator {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    // the start of the next block to be reserved
+    private final AtomicLong next;
+
+    // blocks starting below this are given up; raised by fences
+    private volatile long floor;
+
+    // per thread: the next id of its block, and the end of the block
+    private final ThreadLocal<long[]> blocks = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    public CasIdGenerator(long first) {
+        next = new AtomicLong(first);
+        floor = first;
+    }
+
+    public long next() {
+        long[] block = blocks.get();
+        if (block[0] >= block[1] || block[0] < floor) reserve(block);
+        return block[0]++;
+    }
+
+    /**
+     * @return an id above the given one; for an item replacing one with that id
+     */
+    public long nextAbove(long id) {
+        long[] block = blocks.get();
+        if (block[0] >= block[1] || block[0] < floor || block[0] <= id) {
+            // a fresh block is above any id handed out so far, but the given one may not have come from here
+            advanceTo(id + 1);
+            reserve(block);
+        }
+        return block[0]++;
+    }
+
+    /**
+     * Separate the ids handed out up to now from those handed out from now on.
+     *
+     * @return an id above all those handed out so far, and at or below all those to come
+     */
+    public long fence() {
+        long fence = next.get();
+        raiseFloor(fence);
+        return fence;
+    }
+
+    /**
+     * Hand out only ids at or above the given one from now on; for ids handed out by a previous run.
+     */
+    public void skipTo(long id) {
+        advanceTo(id);
+        raiseFloor(id);
+    }
+
+    private void advanceTo(long id) {
+        long current;
+        do {
+            current = next.get();
+            if (current >= id) return;
+        } while (!next.compareAndSet(current, id));
+    }
+
+    private synchronized void raiseFloor(long id) {
+        if (id > floor) floor = id;
+    }
+
+    private void reserve(long[] block) {
+        block[0] = next.getAndAdd(BLOCK_SIZE);
+        block[1] = block[0] + BLOCK_SIZE;
+    }
+}
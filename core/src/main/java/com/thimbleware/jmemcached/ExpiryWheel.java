@@ -0,0 +1,232 @@
+package com.thimbleware.jmemcached;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hierarchical timing wheel of keys by expiry time, or of anything else by deadline, from which the keys due to
+ * expire can be picked off a bounded number at a time.
+ *
+ * The wheel has four levels of 64 slots, each slot of a level covering as much time as the whole level below it,
+ * and an overflow list past the top level.  A key is filed in the finest level whose span reaches its expiry, and
+ * moved down a level whenever the wheel comes round to its slot, so that filing and expiring a key take constant
+ * time however far off its expiry is.
+ *
+ * Keys may be scheduled from any thread; they are only taken into the wheel as it is advanced, which must be done
+ * from one thread at a time.  The wheel knows nothing of the cache, so the keys it hands back may since have been
+ * overwritten, deleted or given a different expiry; that is for the caller to check.
+ *
+ * A key is filed once at a time.  Scheduling a key already filed to come due no later does nothing, so a key
+ * stored over and over with the same time to live takes up a single entry; the caller, handed the key back, is
+ * to schedule it again if it turns out to expire later now.  Scheduling it to come due sooner files it anew, and
+ * the entry it had is dropped once the wheel gets to it.
+ */
+public final class ExpiryWheel<K> {
+
+    public interface Visitor<K> {
+        /**
+         * Called for each key whose scheduled expiry has passed.
+         */
+        void expired(K key, long expiry);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private static final class Entry<K> {
+        final K key;
+        final long expiry;
+        final long tick;
+        Entry<K> next;
+
+        Entry(K key, long expiry, long tick) {
+            this.key = key;
+            this.expiry = expiry;
+            this.tick = tick;
+        }
+    }
+
+    private final int tickShift;
+
+    private final Queue<Entry<K>> incoming = new ConcurrentLinkedQueue<Entry<K>>();
+
+    // the entry each key is filed under
+    private final ConcurrentHashMap<K, Entry<K>> scheduled = new ConcurrentHashMap<K, Entry<K>>();
+
+    @SuppressWarnings("unchecked")
+    private final Entry<K>[][] slots = new Entry[LEVELS][SLOTS];
+    private Entry<K> overflow;
+
+    // keys whose time has come, not yet handed to a visitor
+    private Entry<K> due;
+
+    // the tick the wheel has been advanced to, once it has been; the cache's clock may run negative
+    private long current;
+    private boolean started;
+
+    private int size;
+
+    /**
+     * @param tickShift the length of a tick of the wheel, as a power of two of the units expiry times are given in
+     */
+    public ExpiryWheel(int tickShift) {
+        this.tickShift = tickShift;
+    }
+
+    /**
+     * File a key to be handed back once the given expiry time has passed.  Safe to call from any thread.
+     */
+    public void schedule(K key, long expiry) {
+        long tick = tick(expiry);
+        Entry<K> entry = null;
+        while (true) {
+            Entry<K> filed = scheduled.get(key);
+            if (filed != null && filed.tick <= tick) return;
+
+            if (entry == null) entry = new Entry<K>(key, expiry, tick);
+            if (filed == null ? scheduled.putIfAbsent(key, entry) == null : scheduled.replace(key, filed, entry)) break;
+        }
+        incoming.add(entry);
+    }
+
+    /**
+     * @return true if the key is filed to be handed back no later than the given expiry time calls for, so that
+     * there is no need to schedule it again; as a key is only held on to while it is filed, this can be asked with a
+     * key that mustn't be kept, before scheduling a copy of it
+     */
+    public boolean isScheduled(K key, long expiry) {
+        Entry<K> filed = scheduled.get(key);
+        return filed != null && filed.tick <= tick(expiry);
+    }
+
+    private long tick(long expiry) {
+        // round up, so that a key isn't handed back in the very tick it expires in, before it has
+        return (expiry >> tickShift) + 1;
+    }
+
+    /**
+     * Advance the wheel to the given time, and hand at most max of the keys then due to the visitor; any more are
+     * left for the next call.
+     *
+     * @return the number of keys handed to the visitor
+     */
+    public int expire(long now, int max, Visitor<K> visitor) {
+        advance(now >> tickShift);
+
+        int visited = 0;
+        while (due != null && visited < max) {
+            Entry<K> entry = due;
+            due = entry.next;
+            size--;
+
+            // unless filed again since, to come due sooner
+            if (!scheduled.remove(entry.key, entry)) continue;
+            visited++;
+            visitor.expired(entry.key, entry.expiry);
+        }
+        return visited;
+    }
+
+    /**
+     * @return the number of keys filed in the wheel and not yet handed back, as of the last time it was advanced
+     */
+    public int size() {
+        return size;
+    }
+
+    private void advance(long tick) {
+        if (!started || tick < current) {
+            // first time round, or the clock went back: file everything again against the new time
+            current = tick;
+            started = true;
+            refile();
+        }
+
+        for (Entry<K> entry = incoming.poll(); entry != null; entry = incoming.poll()) {
+            size++;
+            file(entry);
+        }
+
+        while (current < tick) {
+            current++;
+
+            // moving on to a new slot of a level, move the keys in it down
+            int level = 0;
+            while (level < LEVELS - 1 && slotIndex(current, level) == 0) {
+                level++;
+                cascade(slots[level], slotIndex(current, level));
+            }
+            if (level == LEVELS - 1 && slotIndex(current, level) == 0) {
+                Entry<K> entries = overflow;
+                overflow = null;
+                fileAll(entries);
+            }
+
+            // the keys in the current slot of the bottom level are now due
+            int slot = slotIndex(current, 0);
+            Entry<K> entries = slots[0][slot];
+            slots[0][slot] = null;
+            fileAll(entries);
+        }
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    }
+
+    private void cascade(Entry<K>[] level, int slot) {
+        Entry<K> entries = level[slot];
+        level[slot] = null;
+        fileAll(entries);
+    }
+
+    private void fileAll(Entry<K> entries) {
+        while (entries != null) {
+            Entry<K> next = entries.next;
+            file(entries);
+            entries = next;
+        }
+    }
+
+    private void file(Entry<K> entry) {
+        long delta = entry.tick - current;
+        if (delta <= 0) {
+            entry.next = due;
+            due = entry;
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                int slot = slotIndex(entry.tick, level);
+                entry.next = slots[level][slot];
+                slots[level][slot] = entry;
+                return;
+            }
+        }
+
+        entry.next = overflow;
+        overflow = entry;
+    }
+
+    private void refile() {
+        Entry<K> entries = overflow;
+        overflow = null;
+        for (Entry<K>[] level : slots) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Entry<K> entry = level[slot];
+                level[slot] = null;
+                while (entry != null) {
+                    Entry<K> next = entry.next;
+                    entry.next = entries;
+                    entries = entry;
+                    entry = next;
+                }
+            }
+        }
+        fileAll(entries);
+    }
+}
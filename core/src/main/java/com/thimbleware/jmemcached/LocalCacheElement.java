@@ -15,6 +15,7 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.storage.bytebuffer.Lease;
 import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -38,6 +39,15 @@ public final class LocalCacheElement implements CacheElement {
     private boolean blocked = false;
     private long blockedUntil;
 
+    // the storage record the element was read from, while it remains unmodified; the header fields are read
+    // straight out of it, and the key and data only sliced out of it once asked for
+    private ChannelBuffer record;
+    private int recordIndex;
+    private int keyLength;
+
+    // held on the block storage region the data is read from, if any
+    private transient Lease lease;
+
     public LocalCacheElement() {
     }
 
@@ -60,6 +70,7 @@ public final class LocalCacheElement implements CacheElement {
     }
 
     public int size() {
+        if (data == null && record != null) return record.getInt(dataIndex() - 4);
         return getData().capacity();
     }
 
@@ -140,25 +151,30 @@ public final class LocalCacheElement implements CacheElement {
 
         LocalCacheElement that = (LocalCacheElement) o;
 
-        if (blocked != that.blocked) return false;
-        if (blockedUntil != that.blockedUntil) return false;
-        if (casUnique != that.casUnique) return false;
-        if (expire != that.expire) return false;
-        if (flags != that.flags) return false;
-        if (data != null ? !data.equals(that.data) : that.data != null) return false;
-        if (key != null ? !key.equals(that.key) : that.key != null) return false;
+        if (isBlocked() != that.isBlocked()) return false;
+        if (getBlockedUntil() != that.getBlockedUntil()) return false;
+        if (getCasUnique() != that.getCasUnique()) return false;
+        if (getExpire() != that.getExpire()) return false;
+        if (getFlags() != that.getFlags()) return false;
+        ChannelBuffer data = getData(), thatData = that.getData();
+        if (data != null ? !data.equals(thatData) : thatData != null) return false;
+        Key key = getKey(), thatKey = that.getKey();
+        if (key != null ? !key.equals(thatKey) : thatKey != null) return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
+        long expire = getExpire(), casUnique = getCasUnique(), blockedUntil = getBlockedUntil();
+        ChannelBuffer data = getData();
+        Key key = getKey();
         int result = (int) (expire ^ (expire >>> 32));
-        result = 31 * result + flags;
+        result = 31 * result + getFlags();
         result = 31 * result + (data != null ? data.hashCode() : 0);
         result = 31 * result + (key != null ? key.hashCode() : 0);
         result = 31 * result + (int) (casUnique ^ (casUnique >>> 32));
-        result = 31 * result + (blocked ? 1 : 0);
+        result = 31 * result + (isBlocked() ? 1 : 0);
         result = 31 * result + (int) (blockedUntil ^ (blockedUntil >>> 32));
         return result;
     }
@@ -168,86 +184,146 @@ public final class LocalCacheElement implements CacheElement {
     }
 
     public long getExpire() {
+        if (record != null) return record.getLong(recordIndex + 4);
         return expire;
     }
 
     public int getFlags() {
+        if (record != null) return record.getInt(dataIndex() - 8);
         return flags;
     }
 
     public ChannelBuffer getData() {
+        if (data == null && record != null) {
+            int dataIndex = dataIndex();
+            data = record.slice(dataIndex, record.getInt(dataIndex - 4));
+        }
+        if (data == null) return null;
         data.readerIndex(0);
         return data;
     }
 
     public Key getKey() {
+        if (key == null && record != null) key = new Key(record.slice(recordIndex + 16, keyLength));
         return key;
     }
 
     public long getCasUnique() {
+        if (record != null) return record.getLong(trailerIndex());
         return casUnique;
     }
 
     public boolean isBlocked() {
+        if (record != null) return record.getByte(trailerIndex() + 8) == 1;
         return blocked;
     }
 
     public long getBlockedUntil() {
+        if (record != null) return record.getLong(trailerIndex() + 9);
         return blockedUntil;
     }
 
     public void setCasUnique(long casUnique) {
+        detach();
         this.casUnique = casUnique;
     }
 
     public void block(long blockedUntil) {
+        detach();
         this.blocked = true;
         this.blockedUntil = blockedUntil;
     }
 
 
     public void setData(ChannelBuffer data) {
+        detach();
         data.readerIndex(0);
         this.data = data;
     }
 
+    /**
+     * Attach the lease keeping the storage the element was read from intact, to be released by release()
+     */
+    public void setLease(Lease lease) {
+        this.lease = lease;
+    }
+
+    public void release() {
+        if (lease != null) {
+            lease.release();
+            lease = null;
+        }
+    }
+
+    /**
+     * Read an element from the record at the buffer's reader index, as laid down by writeToBuffer, and skip
+     * past it.  The element is a view onto the record, which must be left as it is for as long as it is in use.
+     */
     public static LocalCacheElement readFromBuffer(ChannelBuffer in) {
-        int bufferSize = in.readInt();
-        long expiry = in.readLong();
-        int keyLength = in.readInt();
-        ChannelBuffer key = in.slice(in.readerIndex(), keyLength);
-        in.skipBytes(keyLength);
-        LocalCacheElement localCacheElement = new LocalCacheElement(new Key(key));
+        LocalCacheElement element = viewOf(in, in.readerIndex());
+        in.readerIndex(element.trailerIndex() + 8 + 1 + 8);
+        return element;
+    }
 
-        localCacheElement.expire = expiry;
-        localCacheElement.flags = in.readInt();
+    /**
+     * A view onto the record at the given index of the buffer, as laid down by writeToBuffer, leaving the buffer's
+     * indexes alone so that any number of threads may read the same record at once.  Nothing beyond the key's
+     * length is read up front: the rest of the header is read out of the record on demand, and the key and data
+     * only sliced out of it on first use.  The record must be left as it is for as long as the view is in use.
+     */
+    public static LocalCacheElement viewOf(ChannelBuffer record, int index) {
+        LocalCacheElement element = new LocalCacheElement();
+        element.record = record;
+        element.recordIndex = index;
+        element.keyLength = record.getInt(index + 12);
+        return element;
+    }
 
-        int dataLength = in.readInt();
-        localCacheElement.data = in.slice(in.readerIndex(), dataLength);
-        in.skipBytes(dataLength);
+    // size, expiry, key length, key, flags, data length
+    private int dataIndex() {
+        return recordIndex + 4 + 8 + 4 + keyLength + 4 + 4;
+    }
 
-        localCacheElement.casUnique = in.readInt();
-        localCacheElement.blocked = in.readByte() == 1;
-        localCacheElement.blockedUntil = in.readLong();
+    // cas, blocked and blocked until follow the data
+    private int trailerIndex() {
+        int dataIndex = dataIndex();
+        return dataIndex + record.getInt(dataIndex - 4);
+    }
 
-        return localCacheElement;
+    /**
+     * Read everything still left in the record into the element, before the element is changed.
+     */
+    private void detach() {
+        if (record == null) return;
+
+        expire = getExpire();
+        flags = getFlags();
+        casUnique = getCasUnique();
+        blocked = isBlocked();
+        blockedUntil = getBlockedUntil();
+        getKey();
+        getData();
+        record = null;
     }
 
     public int bufferSize() {
+        if (record != null) return record.getInt(recordIndex);
         return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + data.capacity() + 8 + 1 + 8;
     }
 
     public void writeToBuffer(ChannelBuffer out) {
+        Key key = getKey();
+        ChannelBuffer data = getData();
         out.writeInt(bufferSize());
-        out.writeLong(expire) ;
+        out.writeLong(getExpire()) ;
         out.writeInt(key.bytes.capacity());
-        out.writeBytes(key.bytes);
-        out.writeInt(flags);
+        out.writeBytes(key.bytes, 0, key.bytes.capacity());
+        out.writeInt(getFlags());
         out.writeInt(data.capacity());
-        out.writeBytes(data);
-        out.writeLong(casUnique);
-        out.writeByte(blocked ? 1 : 0);
-        out.writeLong(blockedUntil);
+        out.writeBytes(data, 0, data.capacity());
+        out.writeLong(getCasUnique());
+        out.writeByte(isBlocked() ? 1 : 0);
+        out.writeLong(getBlockedUntil());
     }
 
-}
\ No newline at end of file
+}
@@ -15,21 +15,38 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.protocol.HotKeySampler;
 import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
+import com.thimbleware.jmemcached.util.ReusePort;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The actual daemon - responsible for the binding and configuration of the network configuration.
@@ -42,15 +59,32 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
     private int frameSize = 32768 * 1024;
 
+    // how much of the commands queued for the command threads, per connection and in all, before reading stops
+    private static final long COMMAND_CHANNEL_MEMORY = 1024 * 1024;
+    private static final long COMMAND_TOTAL_MEMORY = 64 * 1024 * 1024;
+
     private boolean binary = false;
     private boolean verbose;
     private int idleTime;
     private InetSocketAddress addr;
     private Cache<CACHE_ELEMENT> cache;
+    private HotKeySampler hotKeySampler;
+    private int hotKeyLogInterval = 60;
+
+    private Executor bossExecutor;
+    private Executor workerExecutor;
+    private int workerCount = Runtime.getRuntime().availableProcessors() * 2;
+    private Executor commandExecutor;
+    private int commandThreads;
+    private int listeners = 1;
+    private int flushDelay;
 
     private boolean running = false;
-    private ServerSocketChannelFactory channelFactory;
+    private final List<ServerSocketChannelFactory> channelFactories = new ArrayList<ServerSocketChannelFactory>();
     private DefaultChannelGroup allChannels;
+    private ScheduledExecutorService hotKeyLogger;
+    private ScheduledExecutorService flusher;
+    private ExecutionHandler executionHandler;
 
 
     public MemCacheDaemon() {
@@ -64,42 +98,108 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
      * Bind the network connection and start the network processing threads.
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
-        channelFactory =
-                new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+        int listeners = this.listeners;
+        if (listeners > 1 && !ReusePort.isSupported()) {
+            log.warn("SO_REUSEPORT isn't supported here; listening with one listener rather than " + listeners);
+            listeners = 1;
+        }
+
+        Executor commands = commandExecutor;
+        if (commands == null && commandThreads > 0) {
+            commands = new OrderedMemoryAwareThreadPoolExecutor(commandThreads, COMMAND_CHANNEL_MEMORY, COMMAND_TOTAL_MEMORY,
+                    30, TimeUnit.SECONDS, new NamedThreadFactory("command", false));
+        }
+        executionHandler = commands != null ? new ExecutionHandler(commands) : null;
 
         allChannels = new DefaultChannelGroup("jmemcachedChannelGroup");
 
-        ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        if (flushDelay > 0 && !binary) flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("flush", true));
 
+        // one pipeline factory, and so one command handler, for all listeners, which keeps the connection and
+        // command statistics for the daemon as a whole
         ChannelPipelineFactory pipelineFactory;
         if (binary)
             pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
         else
             pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
 
-        bootstrap.setPipelineFactory(pipelineFactory);
-        bootstrap.setOption("sendBufferSize", 65536 );
-        bootstrap.setOption("receiveBufferSize", 65536);
+        // Netty renames the threads it runs on after what they do, "New I/O server worker #1-2" say; keep the
+        // names the pools give them instead
+        ThreadRenamingRunnable.setThreadNameDeterminer(ThreadNameDeterminer.CURRENT);
+
+        // the workers are shared out between the listeners, each of which has its own boss thread to accept on
+        int workersPerListener = Math.max(1, (workerCount + listeners - 1) / listeners);
+        for (int i = 1; i <= listeners; i++) {
+            String pool = listeners == 1 ? "" : "listener-" + i + "-";
+            // the pools only ever grow to the one boss thread per bound address, and the fixed number of workers
+            ServerSocketChannelFactory channelFactory =
+                    new NioServerSocketChannelFactory(
+                            bossExecutor != null ? bossExecutor : Executors.newCachedThreadPool(new NamedThreadFactory(pool + "boss", false)),
+                            workerExecutor != null ? workerExecutor : Executors.newCachedThreadPool(new NamedThreadFactory(pool + "worker", false)),
+                            workersPerListener);
+            channelFactories.add(channelFactory);
+
+            ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+            bootstrap.setPipelineFactory(pipelineFactory);
+            configure(bootstrap);
+            if (listeners > 1) bootstrap.setParentHandler(REUSE_PORT);
+
+            Channel serverChannel = bootstrap.bind(addr);
+            allChannels.add(serverChannel);
+        }
 
-        Channel serverChannel = bootstrap.bind(addr);
-        allChannels.add(serverChannel);
+        log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort()
+                + (listeners > 1 ? " with " + listeners + " listeners" : ""));
 
-        log.info("Listening on " + String.valueOf(addr.getHostName()) + ":" + addr.getPort());
+        if (hotKeySampler != null && hotKeyLogInterval > 0) {
+            hotKeyLogger = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("hotkeys", true));
+            hotKeyLogger.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    hotKeySampler.rotate();
+                }
+            }, hotKeyLogInterval, hotKeyLogInterval, TimeUnit.SECONDS);
+        }
 
         running = true;
     }
 
+    private void configure(ServerBootstrap bootstrap) {
+        bootstrap.setOption("sendBufferSize", 65536 );
+        bootstrap.setOption("receiveBufferSize", 65536);
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("child.sendBufferSize", 65536);
+        bootstrap.setOption("child.receiveBufferSize", 65536);
+        // replies are written whole, so there is nothing for Nagle to coalesce, only acks to wait on
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+        // each read is copied out of the worker's pooled direct buffer into a heap buffer this size; start it
+        // small, since most commands are, and let it grow to the socket buffer under pipelined load
+        bootstrap.setOption("child.receiveBufferSizePredictorFactory",
+                new AdaptiveReceiveBufferSizePredictorFactory(64, 512, 65536));
+    }
+
+    /**
+     * Sets SO_REUSEPORT on each listener's server socket as it opens, before the bootstrap binds it.
+     */
+    private static final ChannelHandler REUSE_PORT = new ReusePortHandler();
+
+    @ChannelHandler.Sharable
+    private static final class ReusePortHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            ReusePort.enable(e.getChannel());
+            ctx.sendUpstream(e);
+        }
+    }
+
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
             Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
-        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, hotKeySampler, executionHandler);
     }
 
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
             Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
-        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, hotKeySampler, executionHandler, flushDelay, flusher);
     }
 
     public void stop() {
@@ -110,13 +210,22 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         if (!future.isCompleteSuccess()) {
             throw new RuntimeException("failure to complete closing all network channels");
         }
+        if (hotKeyLogger != null) hotKeyLogger.shutdownNow();
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        if (executionHandler != null) executionHandler.releaseExternalResources();
         log.info("channels closed, freeing cache storage");
         try {
             cache.close();
         } catch (IOException e) {
             throw new RuntimeException("exception while closing storage", e);
         }
-        channelFactory.releaseExternalResources();
+        for (ServerSocketChannelFactory channelFactory : channelFactories) {
+            channelFactory.releaseExternalResources();
+        }
+        channelFactories.clear();
 
         running = false;
         log.info("successfully shut down");
@@ -142,6 +251,84 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         this.cache = cache;
     }
 
+    public HotKeySampler getHotKeySampler() {
+        return hotKeySampler;
+    }
+
+    /**
+     * Sample the keys of commands with the given sampler, for "stats hotkeys"; null, the default, for none.
+     */
+    public void setHotKeySampler(HotKeySampler hotKeySampler) {
+        this.hotKeySampler = hotKeySampler;
+    }
+
+    /**
+     * @param hotKeyLogInterval how often to log the hottest keys, in seconds; 0 not to.  Default is 60.
+     */
+    public void setHotKeyLogInterval(int hotKeyLogInterval) {
+        this.hotKeyLogInterval = hotKeyLogInterval;
+    }
+
+    /**
+     * Accept connections on threads from the given executor, rather than on a pool of the daemon's own.  It is shut
+     * down when the daemon is stopped.
+     */
+    public void setBossExecutor(Executor bossExecutor) {
+        this.bossExecutor = bossExecutor;
+    }
+
+    /**
+     * Do the network I/O on threads from the given executor, rather than on a pool of the daemon's own.  It must be
+     * able to run as many threads at once as the worker count; it is shut down when the daemon is stopped.
+     */
+    public void setWorkerExecutor(Executor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * @param workerCount the number of network I/O threads.  Default is twice the number of processors.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Handle commands on threads from the given executor, rather than on the I/O thread that read them, so that slow
+     * ones, such as stats or flush_all, don't hold up the other connections of that thread.  The executor must keep
+     * the commands of each connection in order, as an OrderedMemoryAwareThreadPoolExecutor does.  It is shut down
+     * when the daemon is stopped.
+     */
+    public void setCommandExecutor(Executor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * @param commandThreads the number of threads to handle commands on, in a pool of the daemon's own, if no
+     * command executor is given.  Default is 0, to handle commands on the I/O threads.
+     */
+    public void setCommandThreads(int commandThreads) {
+        this.commandThreads = commandThreads;
+    }
+
+    /**
+     * @param listeners the number of server sockets to bind to the address, each with its own thread to accept
+     * connections on and its share of the network I/O threads.  They are bound with SO_REUSEPORT, so that the kernel
+     * spreads the connections across them; where that isn't supported, only the one is.  Default is 1.
+     */
+    public void setListeners(int listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * @param flushDelay how long in microseconds the text protocol may hold back responses, so that those to the
+     * commands read over that time go out in one write rather than a write each.  Each write is also made as soon as
+     * it reaches the size of a socket send buffer.  Default is 0, to write the responses to whatever was read at once
+     * as soon as they are all ready.
+     */
+    public void setFlushDelay(int flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
     public boolean isRunning() {
         return running;
     }
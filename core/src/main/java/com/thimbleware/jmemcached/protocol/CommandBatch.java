@@ -0,0 +1,19 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.CacheElement;
+
+import java.util.List;
+
+/**
+ * The commands decoded from one read, passed up the pipeline together so that they can be handled as a batch:
+ * lookups run together, and the responses written together.  A read holding a single command passes it up on its
+ * own, as a plain CommandMessage.
+ */
+public final class CommandBatch<CACHE_ELEMENT extends CacheElement> {
+
+    public final List<CommandMessage<CACHE_ELEMENT>> commands;
+
+    public CommandBatch(List<CommandMessage<CACHE_ELEMENT>> commands) {
+        this.commands = commands;
+    }
+}
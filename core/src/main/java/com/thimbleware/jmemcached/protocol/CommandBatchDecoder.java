@@ -0,0 +1,77 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A decoder of commands which passes all those in a read up the pipeline together, as a CommandBatch, once it has
+ * decoded the lot; or the one command on its own, should there be just the one.
+ */
+public abstract class CommandBatchDecoder extends FrameDecoder {
+
+    // the commands decoded so far from the read at hand
+    private List<CommandMessage> batch = new ArrayList<CommandMessage>();
+
+    /**
+     * Decode all the commands in a read, then pass them up together.
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        super.messageReceived(ctx, e);
+        fireBatch(ctx, e.getRemoteAddress());
+    }
+
+    /**
+     * Add the next command in the buffer to the batch, if it is all in.  Never returns a command itself: the batch
+     * goes up the pipeline once the frame decoder has run out of commands to decode.
+     */
+    @Override
+    protected final Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        CommandMessage command;
+        try {
+            command = decodeCommand(ctx, channel, buffer);
+        } catch (UnknownCommandException e) {
+            // the command is dropped, and those after it can still be read, so rather than end the read here the
+            // error is answered in its place; the frame decoder carries on as the buffer has been read from
+            fireBatch(ctx, channel.getRemoteAddress());
+            Channels.fireExceptionCaught(ctx, e);
+            return null;
+        } catch (Exception e) {
+            // the commands before the bad one are answered before it is
+            fireBatch(ctx, channel.getRemoteAddress());
+            throw e;
+        }
+        if (command != null) batch.add(command);
+        return null;
+    }
+
+    /**
+     * Decode the next command in the buffer, as FrameDecoder.decode() would.
+     *
+     * @return the command, or null if it isn't all in yet, or nothing came of what was read
+     */
+    protected abstract CommandMessage decodeCommand(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception;
+
+    @SuppressWarnings("unchecked")
+    private void fireBatch(ChannelHandlerContext ctx, SocketAddress remoteAddress) {
+        if (batch.isEmpty()) return;
+
+        if (batch.size() == 1) {
+            Channels.fireMessageReceived(ctx, batch.get(0), remoteAddress);
+            batch.clear();
+        } else {
+            CommandBatch commands = new CommandBatch(batch);
+            batch = new ArrayList<CommandMessage>();
+            Channels.fireMessageReceived(ctx, commands, remoteAddress);
+        }
+    }
+}
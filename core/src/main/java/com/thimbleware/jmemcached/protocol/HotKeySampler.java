@@ -0,0 +1,294 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.valueOf;
+
+/**
+ * Finds the keys read and written most, from a sample of one in every so many commands.  Each sampled key is
+ * counted in a count-min sketch, and the keys whose counts stand highest are kept, with the bytes read or written
+ * through them, in a top list in the manner of space-saving: a key not on the list takes the place of the lowest
+ * one on it only once the sketch counts it higher.  The partition of the block store each key falls in is counted
+ * too, to show up the skew of a few hot keys landing in one partition.
+ *
+ * Whether to sample a command is a thread local coin toss; only the sampled ones take the lock the counts are
+ * kept under, so the cost per command stays the same however much traffic there is.  Counts are halved every time
+ * the sampler is rotated, so that keys which have gone cold drop off.
+ */
+public final class HotKeySampler {
+
+    final Logger log = LoggerFactory.getLogger(HotKeySampler.class);
+
+    private final int sampleRate;
+    private final int partitionCount;
+
+    private final TopKeys reads;
+    private final TopKeys writes;
+    private final long[] partitionSamples;
+
+    private final ThreadLocal<long[]> coins = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            // any non zero seed will do for xorshift, as long as threads don't share one
+            return new long[] {(Thread.currentThread().getId() + 1) * 0x9e3779b97f4a7c15L ^ System.nanoTime() | 1};
+        }
+    };
+
+    /**
+     * @param sampleRate sample one in this many commands
+     * @param topKeys the number of hottest keys to keep track of, for reads and for writes each
+     * @param partitionCount the number of block store partitions, a power of two; 1 for any other storage
+     */
+    public HotKeySampler(int sampleRate, int topKeys, int partitionCount) {
+        if (sampleRate < 1) throw new IllegalArgumentException("sample rate must be at least 1, was " + sampleRate);
+        if (partitionCount < 1 || (partitionCount & (partitionCount - 1)) != 0)
+            throw new IllegalArgumentException("partition count must be a positive power of two, was " + partitionCount);
+
+        this.sampleRate = sampleRate;
+        this.partitionCount = partitionCount;
+        this.reads = new TopKeys(topKeys);
+        this.writes = new TopKeys(topKeys);
+        this.partitionSamples = new long[partitionCount];
+    }
+
+    /**
+     * @return whether to sample the command at hand
+     */
+    public boolean sample() {
+        long[] coin = coins.get();
+        long x = coin[0];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        coin[0] = x;
+        return (x >>> 1) % sampleRate == 0;
+    }
+
+    /**
+     * Count a sampled read of a key, and the bytes it served.
+     */
+    public synchronized void read(Key key, int bytes) {
+        reads.add(key, bytes);
+        partitionSamples[BlockStorageCacheStorage.partitionIndex(key, partitionCount)]++;
+    }
+
+    /**
+     * Count a sampled write of a key, and the bytes written.
+     */
+    public synchronized void write(Key key, int bytes) {
+        writes.add(key, bytes);
+        partitionSamples[BlockStorageCacheStorage.partitionIndex(key, partitionCount)]++;
+    }
+
+    /**
+     * @return the statistics for "stats hotkeys": the hottest keys for reads and for writes, hottest first, and the
+     * skew of the partitions.  Counts and bytes are estimates for all commands, scaled up from the sample.
+     */
+    public synchronized Map<String, String> stats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        stats.put("hotkey_sample_rate", valueOf(sampleRate));
+        addTop(stats, "read_", reads);
+        addTop(stats, "write_", writes);
+
+        int hottest = hottestPartition();
+        stats.put("partition_count", valueOf(partitionCount));
+        stats.put("partition_hottest", valueOf(hottest));
+        stats.put("partition_skew", skew(hottest));
+        return stats;
+    }
+
+    /**
+     * Log the hottest keys, and halve all counts.  Meant to be called periodically.
+     */
+    public synchronized void rotate() {
+        if (log.isInfoEnabled() && (!reads.entries.isEmpty() || !writes.entries.isEmpty())) {
+            int hottest = hottestPartition();
+            log.info("hot keys: reads " + describe(reads) + " writes " + describe(writes)
+                    + " partition skew " + skew(hottest) + " (partition " + hottest + ")");
+        }
+
+        reads.decay();
+        writes.decay();
+        for (int i = 0; i < partitionCount; i++) partitionSamples[i] >>>= 1;
+    }
+
+    private void addTop(Map<String, String> stats, String prefix, TopKeys top) {
+        int rank = 1;
+        for (TopKeys.Entry entry : top.sorted()) {
+            stats.put(prefix + rank + "_key", entry.name());
+            stats.put(prefix + rank + "_count", valueOf(entry.count * sampleRate));
+            stats.put(prefix + rank + "_bytes", valueOf(entry.bytes * sampleRate));
+            rank++;
+        }
+    }
+
+    private String describe(TopKeys top) {
+        StringBuilder builder = new StringBuilder("[");
+        for (TopKeys.Entry entry : top.sorted()) {
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(entry.name()).append('=').append(entry.count * sampleRate);
+        }
+        return builder.append(']').toString();
+    }
+
+    private int hottestPartition() {
+        int hottest = 0;
+        for (int i = 1; i < partitionCount; i++) {
+            if (partitionSamples[i] > partitionSamples[hottest]) hottest = i;
+        }
+        return hottest;
+    }
+
+    /**
+     * @return how many times its fair share of the samples the given partition took
+     */
+    private String skew(int partition) {
+        long total = 0;
+        for (long samples : partitionSamples) total += samples;
+        if (total == 0) return "0.00";
+        return String.format("%.2f", (double) partitionSamples[partition] * partitionCount / total);
+    }
+
+    /**
+     * A count-min sketch of the keys seen, and the top ones among them.
+     */
+    private static final class TopKeys {
+
+        private static final int DEPTH = 4;
+        private static final int WIDTH_BITS = 12;
+        private static final long[] SEEDS = {
+                0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L};
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        static final class Entry {
+            final Key key;
+            long count;
+            long bytes;
+
+            Entry(Key key, long count, long bytes) {
+                this.key = key;
+                this.count = count;
+                this.bytes = bytes;
+            }
+
+            /**
+             * @return the key as text, with any byte that isn't printable ascii, and spaces and backslashes, written
+             * as \xNN, as binary protocol keys may hold anything, which would otherwise break the stats reply
+             */
+            String name() {
+                StringBuilder name = new StringBuilder(key.bytes.capacity());
+                for (int i = 0; i < key.bytes.capacity(); i++) {
+                    int b = key.bytes.getByte(i) & 0xff;
+                    if (b > ' ' && b < 0x7f && b != '\\') name.append((char) b);
+                    else name.append("\\x").append(HEX[b >>> 4]).append(HEX[b & 0xf]);
+                }
+                return name.toString();
+            }
+        }
+
+        private final int capacity;
+        private final int[][] sketch = new int[DEPTH][1 << WIDTH_BITS];
+        private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+        private final int[] cells = new int[DEPTH];
+
+        TopKeys(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(Key key, int bytes) {
+            long estimate = count(key);
+
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.count++;
+                entry.bytes += bytes;
+                return;
+            }
+
+            if (entries.size() >= capacity) {
+                Entry lowest = null;
+                for (Entry candidate : entries.values()) {
+                    if (lowest == null || candidate.count < lowest.count) lowest = candidate;
+                }
+                if (lowest == null || estimate <= lowest.count) return;
+                entries.remove(lowest.key);
+            }
+
+            // the key is likely a slice of the buffer the command was read into
+            Key copy = new Key(ChannelBuffers.copiedBuffer(key.bytes));
+            entries.put(copy, new Entry(copy, estimate, bytes));
+        }
+
+        /**
+         * Count the key in the sketch, raising only the cells at the least of its counts.  Each row hashes the key
+         * bytes afresh with a seed of its own, so that keys which collide in one row, as those of the same hash
+         * code would in all of them, are unlikely to in the others.
+         *
+         * @return the key's count so far
+         */
+        private long count(Key key) {
+            int least = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                cells[row] = (int) (hash(key, SEEDS[row]) >>> (64 - WIDTH_BITS));
+                least = Math.min(least, sketch[row][cells[row]]);
+            }
+            least++;
+            for (int row = 0; row < DEPTH; row++) {
+                if (sketch[row][cells[row]] < least) sketch[row][cells[row]] = least;
+            }
+            return least;
+        }
+
+        /**
+         * FNV-1a over the key bytes, starting from the seed, then mixed as by MurmurHash3's finalizer, so that the top
+         * bits used to pick a cell depend on every byte.
+         */
+        private static long hash(Key key, long seed) {
+            long h = seed;
+            for (int i = 0; i < key.bytes.capacity(); i++) {
+                h = (h ^ (key.bytes.getByte(i) & 0xff)) * 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        void decay() {
+            for (int[] row : sketch) {
+                for (int i = 0; i < row.length; i++) row[i] >>>= 1;
+            }
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+                Entry entry = i.next();
+                entry.count >>>= 1;
+                entry.bytes >>>= 1;
+                if (entry.count == 0) i.remove();
+            }
+        }
+
+        List<Entry> sorted() {
+            List<Entry> sorted = new ArrayList<Entry>(entries.values());
+            Collections.sort(sorted, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return a.count < b.count ? 1 : a.count > b.count ? -1 : 0;
+                }
+            });
+            return sorted;
+        }
+    }
+}
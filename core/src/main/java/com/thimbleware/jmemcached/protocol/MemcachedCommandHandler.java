@@ -25,10 +25,15 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-// TODO implement flush_all delay
-
 /**
  * The actual command handler, which is responsible for processing the CommandMessage instances
  * that are inbound from the protocol decoders.
@@ -43,6 +48,8 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
 
     final Logger logger = LoggerFactory.getLogger(MemcachedCommandHandler.class);
 
+    private static final Charset USASCII = Charset.forName("US-ASCII");
+
     public final AtomicInteger curr_conns = new AtomicInteger();
     public final AtomicInteger total_conns = new AtomicInteger();
 
@@ -68,6 +75,16 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      */
     private final DefaultChannelGroup channelGroup;
 
+    /**
+     * Traffic and per command statistics, shared with the traffic counter at the head of the pipeline.
+     */
+    private final ServerStats stats;
+
+    /**
+     * Samples the keys of commands for "stats hotkeys"; null where that is switched off.
+     */
+    private final HotKeySampler sampler;
+
     /**
      * Construct the server session handler
      *
@@ -78,7 +95,24 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
      * @param channelGroup
      */
     public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup) {
+        this(cache, memcachedVersion, verbosity, idle, channelGroup, new ServerStats());
+    }
+
+    /**
+     * Construct the server session handler, keeping its statistics in the given instance
+     */
+    public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup, ServerStats stats) {
+        this(cache, memcachedVersion, verbosity, idle, channelGroup, stats, null);
+    }
+
+    /**
+     * Construct the server session handler, keeping its statistics in the given instance, and sampling keys with
+     * the given sampler, if any
+     */
+    public MemcachedCommandHandler(Cache cache, String memcachedVersion, boolean verbosity, int idle, DefaultChannelGroup channelGroup, ServerStats stats, HotKeySampler sampler) {
         this.cache = cache;
+        this.stats = stats;
+        this.sampler = sampler;
 
         version = memcachedVersion;
         verbose = verbosity;
@@ -112,6 +146,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     public void channelClosed(ChannelHandlerContext channelHandlerContext, ChannelStateEvent channelStateEvent) throws Exception {
         curr_conns.decrementAndGet();
         channelGroup.remove(channelHandlerContext.getChannel());
+        channelHandlerContext.sendUpstream(channelStateEvent);
     }
 
 
@@ -127,36 +162,137 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     @Override
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
+        if (messageEvent.getMessage() instanceof CommandBatch) {
+            handleBatch(channelHandlerContext, (CommandBatch<CACHE_ELEMENT>) messageEvent.getMessage(), messageEvent.getChannel());
+            return;
+        }
         if (!(messageEvent.getMessage() instanceof CommandMessage)) {
             // Ignore what this encoder can't encode.
             channelHandlerContext.sendUpstream(messageEvent);
             return;
         }
 
-        CommandMessage<CACHE_ELEMENT> command = (CommandMessage<CACHE_ELEMENT>) messageEvent.getMessage();
+        handleCommand(channelHandlerContext, (CommandMessage<CACHE_ELEMENT>) messageEvent.getMessage(), messageEvent.getChannel());
+    }
+
+    /**
+     * Handle the commands of a batch in order, and pass their responses on together.  Runs of gets are looked up
+     * in one go, as though they were one get of all their keys.
+     */
+    private void handleBatch(ChannelHandlerContext channelHandlerContext, CommandBatch<CACHE_ELEMENT> batch, Channel channel) throws Exception {
+        List<CommandMessage<CACHE_ELEMENT>> commands = batch.commands;
+        BatchingContext batching = new BatchingContext(channelHandlerContext, commands.size());
+        try {
+            for (int i = 0; i < commands.size(); ) {
+                int run = i;
+                while (run < commands.size() && isGet(commands.get(run))) run++;
+
+                if (run - i > 1) {
+                    handleGetRun(batching, commands.subList(i, run));
+                    i = run;
+                } else {
+                    handleCommand(batching, commands.get(i), channel);
+                    i++;
+                }
+            }
+        } finally {
+            // whatever was handled before anything went wrong is still answered, ahead of the error
+            if (!batching.responses.responses.isEmpty())
+                Channels.fireMessageReceived(channelHandlerContext, batching.responses, channel.getRemoteAddress());
+        }
+    }
+
+    private static boolean isGet(CommandMessage command) {
+        return command.op == Op.GET || command.op == Op.GETS;
+    }
+
+    private void handleGetRun(BatchingContext batching, List<CommandMessage<CACHE_ELEMENT>> gets) {
+        int keyCount = 0;
+        for (CommandMessage<CACHE_ELEMENT> get : gets) keyCount += get.keys.size();
+        Key[] keys = new Key[keyCount];
+        int k = 0;
+        for (CommandMessage<CACHE_ELEMENT> get : gets) {
+            if (verbose) log(get);
+            for (Key key : get.keys) keys[k++] = key;
+        }
+
+        long start = System.nanoTime();
+        CACHE_ELEMENT[] results = cache.getBatch(gets.size(), keys);
+        long each = (System.nanoTime() - start) / gets.size();
+
+        k = 0;
+        for (CommandMessage<CACHE_ELEMENT> get : gets) {
+            CACHE_ELEMENT[] elements = Arrays.copyOfRange(results, k, k + get.keys.size());
+            if (sampler != null) {
+                for (int i = 0; i < elements.length; i++) {
+                    if (sampler.sample()) sampler.read(keys[k + i], elements[i] == null ? 0 : elements[i].size());
+                }
+            }
+            k += elements.length;
+            batching.responses.responses.add(new ResponseMessage<CACHE_ELEMENT>(get).withElements(elements));
+            stats.command(get.op, each);
+        }
+    }
+
+    private void handleCommand(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) throws Exception {
         Op cmd = command.op;
         int cmdKeysSize = command.keys == null ? 0 : command.keys.size();
 
-        // first process any messages in the delete queue
-        cache.asyncEventPing();
-
         // now do the real work
-        if (this.verbose) {
-            StringBuilder log = new StringBuilder();
-            log.append(cmd);
-            if (command.element != null) {
-                log.append(" ").append(command.element.getKey());
-            }
-            for (int i = 0; i < cmdKeysSize; i++) {
-                log.append(" ").append(command.keys.get(i));
+        if (this.verbose) log(command);
+
+        if (cmd == null) {
+            handleNoOp(channelHandlerContext, command);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            handle(channelHandlerContext, command, cmdKeysSize, channel);
+        } finally {
+            stats.command(cmd, System.nanoTime() - start);
+        }
+
+        // reads are sampled as they're handled, once the size of the values served is known
+        if (sampler != null && cmd != Op.GET && cmd != Op.GETS && sampler.sample()) sampleWrite(command);
+    }
+
+    private void log(CommandMessage<CACHE_ELEMENT> command) {
+        StringBuilder log = new StringBuilder();
+        log.append(command.op);
+        if (command.element != null) {
+            log.append(" ").append(command.element.getKey());
+        }
+        if (command.keys != null) {
+            for (Key key : command.keys) {
+                log.append(" ").append(key);
             }
-            logger.info(log.toString());
         }
+        logger.info(log.toString());
+    }
+
+    private void sampleWrite(CommandMessage<CACHE_ELEMENT> command) {
+        switch (command.op) {
+            case SET:
+            case ADD:
+            case REPLACE:
+            case APPEND:
+            case PREPEND:
+            case CAS:
+                sampler.write(command.element.getKey(), command.element.size());
+                break;
+            case INCR:
+            case DECR:
+            case DELETE:
+                sampler.write(command.keys.get(0), 0);
+                break;
+            default:
+                break;
+        }
+    }
 
-        Channel channel = messageEvent.getChannel();
-        if (cmd == null) handleNoOp(channelHandlerContext, command);
-        else
-        switch (cmd) {
+    private void handle(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, int cmdKeysSize, Channel channel) throws Exception {
+        switch (command.op) {
             case GET:
             case GETS:
                 handleGets(channelHandlerContext, command, channel);
@@ -195,7 +331,7 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
                 handleVersion(channelHandlerContext, command, channel);
                 break;
             case QUIT:
-                handleQuit(channel);
+                handleQuit(channelHandlerContext, command, channel);
                 break;
             case FLUSH_ALL:
                 handleFlush(channelHandlerContext, command, channel);
@@ -208,6 +344,10 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         }
     }
 
+    public ServerStats getStats() {
+        return stats;
+    }
+
     protected void handleNoOp(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command) {
         Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command));
     }
@@ -221,8 +361,11 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     	Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command), channel.getRemoteAddress());
  	}
 
-    protected void handleQuit(Channel channel) {
-        channel.disconnect();
+    /**
+     * The connection is closed by the encoder, once the responses to the commands before the quit are written.
+     */
+    protected void handleQuit(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command), channel.getRemoteAddress());
     }
 
     protected void handleVersion(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
@@ -234,9 +377,35 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     protected void handleStats(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, int cmdKeysSize, Channel channel) {
         String option = "";
         if (cmdKeysSize > 0) {
-            option = command.keys.get(0).bytes.toString();
+            option = command.keys.get(0).bytes.toString(USASCII);
         }
-        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(cache.stat(option)), channel.getRemoteAddress());
+
+        Map<String, Set<String>> result;
+        if ("detail".equals(option)) {
+            result = withStats(new HashMap<String, Set<String>>(), stats.detail());
+        } else if ("latency".equals(option)) {
+            result = withStats(new HashMap<String, Set<String>>(), stats.latency());
+        } else if ("hotkeys".equals(option)) {
+            result = new HashMap<String, Set<String>>();
+            if (sampler != null) withStats(result, sampler.stats());
+            else result.put("hotkey_sample_rate", Collections.singleton("0"));
+        } else {
+            result = cache.stat(option);
+            if (option.length() == 0) {
+                withStats(result, stats.general());
+                result.put("curr_connections", Collections.singleton(String.valueOf(curr_conns.get())));
+                result.put("total_connections", Collections.singleton(String.valueOf(total_conns.get())));
+                result.put("connection_structures", Collections.singleton(String.valueOf(curr_conns.get())));
+            }
+        }
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withStatResponse(result), channel.getRemoteAddress());
+    }
+
+    private static Map<String, Set<String>> withStats(Map<String, Set<String>> result, Map<String, String> stats) {
+        for (Map.Entry<String, String> stat : stats.entrySet()) {
+            result.put(stat.getKey(), Collections.singleton(stat.getValue()));
+        }
+        return result;
     }
 
     protected void handleDelete(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
@@ -294,6 +463,11 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Key[] keys = new Key[command.keys.size()];
         keys = command.keys.toArray(keys);
         CACHE_ELEMENT[] results = get(keys);
+        if (sampler != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (sampler.sample()) sampler.read(keys[i], results[i] == null ? 0 : results[i].size());
+            }
+        }
         ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
         Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
     }
@@ -319,4 +493,64 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
 
 
 
-}
\ No newline at end of file
+
+    /**
+     * Stands in for the handler's context while a batch is handled, keeping the responses the handle methods pass
+     * on for the batch's response, rather than passing them on one by one.
+     */
+    private static final class BatchingContext implements ChannelHandlerContext {
+
+        private final ChannelHandlerContext context;
+        final ResponseBatch responses;
+
+        BatchingContext(ChannelHandlerContext context, int size) {
+            this.context = context;
+            this.responses = new ResponseBatch(size);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void sendUpstream(ChannelEvent e) {
+            if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ResponseMessage) {
+                responses.responses.add((ResponseMessage) ((MessageEvent) e).getMessage());
+            } else {
+                context.sendUpstream(e);
+            }
+        }
+
+        public void sendDownstream(ChannelEvent e) {
+            context.sendDownstream(e);
+        }
+
+        public Channel getChannel() {
+            return context.getChannel();
+        }
+
+        public ChannelPipeline getPipeline() {
+            return context.getPipeline();
+        }
+
+        public String getName() {
+            return context.getName();
+        }
+
+        public ChannelHandler getHandler() {
+            return context.getHandler();
+        }
+
+        public boolean canHandleUpstream() {
+            return context.canHandleUpstream();
+        }
+
+        public boolean canHandleDownstream() {
+            return context.canHandleDownstream();
+        }
+
+        public Object getAttachment() {
+            return context.getAttachment();
+        }
+
+        public void setAttachment(Object attachment) {
+            context.setAttachment(attachment);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Counts the bytes read from and written to each connection.  Goes first in the pipeline, so as to see the raw
+ * bytes on their way in, before the decoder, and on their way out, after the encoder.
+ */
+@ChannelHandler.Sharable
+public final class MemcachedTrafficCounter extends SimpleChannelHandler {
+
+    private final ServerStats stats;
+
+    public MemcachedTrafficCounter(ServerStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) stats.read(((ChannelBuffer) e.getMessage()).readableBytes());
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) stats.written(((ChannelBuffer) e.getMessage()).readableBytes());
+        ctx.sendDownstream(e);
+    }
+}
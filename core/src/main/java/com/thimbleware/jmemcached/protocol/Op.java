@@ -31,10 +31,20 @@ public enum Op {
 
     private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
 
+    // the names of the ops, by their first letter, for matching against a command in place
+    private static final Op[][] byFirstByte = new Op[128][0];
+    private static final byte[][] names = new byte[values().length][];
+
     static {
         for (int x = 0 ; x < Op.values().length; x++) {
             byte[] bytes = Op.values()[x].toString().toLowerCase().getBytes();
             opsbf.put(ChannelBuffers.wrappedBuffer(bytes), Op.values()[x]);
+
+            names[x] = bytes;
+            Op[] ops = byFirstByte[bytes[0]];
+            ops = Arrays.copyOf(ops, ops.length + 1);
+            ops[ops.length - 1] = Op.values()[x];
+            byFirstByte[bytes[0]] = ops;
         }
     }
 
@@ -44,4 +54,26 @@ public enum Op {
         return opsbf.get(cmd);
     }
 
+    /**
+     * Find the op named by the given range of a buffer, without slicing it out or hashing it.
+     *
+     * @return the op, or null if there is none by that name
+     */
+    public static Op FindOp(ChannelBuffer buffer, int index, int length) {
+        if (length == 0) return null;
+        byte first = buffer.getByte(index);
+        if (first < 0) return null;
+
+        candidates:
+        for (Op op : byFirstByte[first]) {
+            byte[] name = names[op.ordinal()];
+            if (name.length != length) continue;
+            for (int i = 1; i < length; i++) {
+                if (buffer.getByte(index + i) != name[i]) continue candidates;
+            }
+            return op;
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,18 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.CacheElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The responses to a CommandBatch, in the order of its commands, for the encoder to write out together.
+ */
+public final class ResponseBatch<CACHE_ELEMENT extends CacheElement> {
+
+    public final List<ResponseMessage<CACHE_ELEMENT>> responses;
+
+    public ResponseBatch(int size) {
+        this.responses = new ArrayList<ResponseMessage<CACHE_ELEMENT>>(size);
+    }
+}
@@ -0,0 +1,119 @@
+package com.thimbleware.jmemcached.protocol;
+
+import com.thimbleware.jmemcached.util.LatencyHistogram;
+import com.thimbleware.jmemcached.util.StripedCounter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.lang.String.valueOf;
+
+/**
+ * Statistics on the traffic through the daemon, as opposed to the cache: bytes read and written, and the count and
+ * latency of each command.  One instance is shared by every connection of a daemon.
+ */
+public final class ServerStats {
+
+    private static final Op[] OPS = Op.values();
+
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter writes = new StripedCounter();
+
+    // the count of each command is that of its latencies
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPS.length];
+
+    public ServerStats() {
+        for (int i = 0; i < OPS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void read(int bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Count a write to a connection, and the bytes in it.
+     */
+    public void written(int bytes) {
+        bytesWritten.add(bytes);
+        writes.increment();
+    }
+
+    /**
+     * Count a command handled, and how long it took.
+     */
+    public void command(Op op, long nanos) {
+        latencies[op.ordinal()].record(nanos / 1000);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getCommands(Op op) {
+        return latencies[op.ordinal()].getCount();
+    }
+
+    public LatencyHistogram getLatency(Op op) {
+        return latencies[op.ordinal()];
+    }
+
+    /**
+     * @return the statistics for the plain "stats" command
+     */
+    public Map<String, String> general() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        stats.put("bytes_read", valueOf(getBytesRead()));
+        stats.put("bytes_written", valueOf(getBytesWritten()));
+        return stats;
+    }
+
+    /**
+     * @return the statistics for "stats detail": the number of writes made, and of each command handled
+     */
+    public Map<String, String> detail() {
+        Map<String, String> stats = general();
+        stats.put("writes", valueOf(getWrites()));
+        for (Op op : OPS) {
+            stats.put("cmd_" + name(op), valueOf(getCommands(op)));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics for "stats latency": the distribution of the latency of each command handled at all,
+     * in microseconds
+     */
+    public Map<String, String> latency() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+        for (Op op : OPS) {
+            LatencyHistogram histogram = getLatency(op);
+            long count = histogram.getCount();
+            if (count == 0) continue;
+
+            String prefix = name(op) + "_";
+            stats.put(prefix + "count", valueOf(count));
+            stats.put(prefix + "mean_us", valueOf(histogram.getMean()));
+            stats.put(prefix + "p50_us", valueOf(histogram.getValueAtPercentile(50)));
+            stats.put(prefix + "p90_us", valueOf(histogram.getValueAtPercentile(90)));
+            stats.put(prefix + "p99_us", valueOf(histogram.getValueAtPercentile(99)));
+            stats.put(prefix + "p999_us", valueOf(histogram.getValueAtPercentile(99.9)));
+            stats.put(prefix + "max_us", valueOf(histogram.getMax()));
+        }
+        return stats;
+    }
+
+    private static String name(Op op) {
+        return op.name().toLowerCase();
+    }
+}
@@ -3,15 +3,15 @@ package com.thimbleware.jmemcached.protocol.binary;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.protocol.CommandBatchDecoder;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
+import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
@@ -20,8 +20,7 @@ import java.nio.ByteOrder;
 
 /**
  */
-@ChannelHandler.Sharable
-public class MemcachedBinaryCommandDecoder extends FrameDecoder {
+public class MemcachedBinaryCommandDecoder extends CommandBatchDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
 
@@ -35,7 +34,7 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         Decrement(0x06, Op.DECR, false),
         Quit(0x07, Op.QUIT, false),
         Flush(0x08, Op.FLUSH_ALL, false),
-        GetQ(0x09, Op.GET, false),
+        GetQ(0x09, Op.GET, true),
         Noop(0x0A, null, false),
         Version(0x0B, Op.VERSION, false),
         GetK(0x0C, Op.GET, false, true),
@@ -72,8 +71,19 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             this.addKeyToResponse = addKeyToResponse;
         }
 
+        // values() copies the array on every call
+        private static final BinaryOp[] VALUES = values();
+
+        /**
+         * @return the op with the given code, or null if there is none; this assumes the ops are in order of their
+         * codes
+         */
+        public static BinaryOp forCode(int code) {
+            return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+        }
+
         public static BinaryOp forCommandMessage(CommandMessage msg) {
-            for (BinaryOp binaryOp : values()) {
+            for (BinaryOp binaryOp : VALUES) {
                 if (binaryOp.correspondingOp == msg.op && binaryOp.noreply == msg.noreply && binaryOp.addKeyToResponse == msg.addKeyToResponse) {
                     return binaryOp;
                 }
@@ -84,33 +94,33 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     }
 
-    protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
+    @Override
+    protected CommandMessage decodeCommand(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
 
         // need at least 24 bytes, to get header
         if (channelBuffer.readableBytes() < 24) return null;
 
-        // get the header
+        // read the header where it is, rather than copying it out first
         channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
 
-        short magic = headerBuffer.readUnsignedByte();
+        short magic = channelBuffer.readUnsignedByte();
 
         // magic should be 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
+            // drop the bad header
+            channelBuffer.skipBytes(23);
 
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();   // unused
-        short reserved = headerBuffer.readShort(); // unused
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
+        short opcode = channelBuffer.readUnsignedByte();
+        short keyLength = channelBuffer.readShort();
+        short extraLength = channelBuffer.readUnsignedByte();
+        short dataType = channelBuffer.readUnsignedByte();   // unused
+        short reserved = channelBuffer.readShort(); // unused
+        int totalBodyLength = channelBuffer.readInt();
+        int opaque = channelBuffer.readInt();
+        long cas = channelBuffer.readLong();
 
         // we want the whole of totalBodyLength; otherwise, keep waiting.
         if (channelBuffer.readableBytes() < totalBodyLength) {
@@ -119,7 +129,13 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         }
 
         // This assumes correct order in the enum. If that ever changes, we will have to scan for 'code' field.
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        BinaryOp bcmd = BinaryOp.forCode(opcode);
+        if (bcmd == null) {
+            // drop the request, so that those after it are still read right
+            channelBuffer.skipBytes(totalBodyLength);
+
+            throw new UnknownCommandException("unknown binary opcode: " + opcode);
+        }
 
         Op cmdType = bcmd.correspondingOp;
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
@@ -170,6 +186,11 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             }
         }
 
+        // flush may carry a delay
+        if (cmdType == Op.FLUSH_ALL && extraLength >= 4) {
+            cmdMessage.time = (int) extrasBuffer.readUnsignedInt();
+        }
+
         return cmdMessage;
     }
 }
@@ -1,26 +1,53 @@
 package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.protocol.HotKeySampler;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.MemcachedTrafficCounter;
+import com.thimbleware.jmemcached.protocol.ServerStats;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 
 public class MemcachedBinaryPipelineFactory implements ChannelPipelineFactory {
 
-    private final MemcachedBinaryCommandDecoder decoder =  new MemcachedBinaryCommandDecoder();
+    private final ServerStats stats = new ServerStats();
+    private final MemcachedTrafficCounter trafficCounter = new MemcachedTrafficCounter(stats);
     private final MemcachedCommandHandler memcachedCommandHandler;
     private final MemcachedBinaryResponseEncoder memcachedBinaryResponseEncoder = new MemcachedBinaryResponseEncoder();
+    private final ExecutionHandler executionHandler;
 
     public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
-        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup);
+        this(cache, version, verbose, idleTime, channelGroup, null, null);
+    }
+
+    /**
+     * @param sampler samples the keys of commands, if not null
+     * @param executionHandler hands decoded commands to another thread to be handled, if not null; otherwise they
+     * are handled on the I/O thread that read them
+     */
+    public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup, HotKeySampler sampler, ExecutionHandler executionHandler) {
+        this.executionHandler = executionHandler;
+        memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup, stats, sampler);
     }
 
     public ChannelPipeline getPipeline() throws Exception {
+        // a decoder per connection: it keeps what it has read of a command so far
+        if (executionHandler == null) {
+            return Channels.pipeline(
+                    trafficCounter,
+                    new MemcachedBinaryCommandDecoder(),
+                    memcachedCommandHandler,
+                    memcachedBinaryResponseEncoder
+            );
+        }
         return Channels.pipeline(
-                decoder,
+                trafficCounter,
+                new MemcachedBinaryCommandDecoder(),
+                executionHandler,
                 memcachedCommandHandler,
                 memcachedBinaryResponseEncoder
         );
@@ -1,6 +1,7 @@
 package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.protocol.Op;
+import com.thimbleware.jmemcached.protocol.ResponseBatch;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.CacheElement;
@@ -11,9 +12,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -22,7 +24,16 @@ import java.util.concurrent.ConcurrentHashMap;
 @ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
+    /**
+     * Netty copies writes of up to this many bytes into a pooled direct buffer, but gathers bigger ones that
+     * aren't direct into a new buffer on the heap first.
+     */
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Direct values at least this big are worth a write of their own rather than being copied.
+     */
+    private static final int DIRECT_WRITE_THRESHOLD = 8 * 1024;
 
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
@@ -45,7 +56,10 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
-        if (cmd == Op.GET || cmd == Op.GETS) {
+        if (cmd == null) {
+            // noop
+            return ResponseCode.OK;
+        } else if (cmd == Op.GET || cmd == Op.GETS) {
             return ResponseCode.OK;
         } else if (cmd == Op.SET || cmd == Op.CAS || cmd == Op.ADD || cmd == Op.REPLACE || cmd == Op.APPEND  || cmd == Op.PREPEND) {
             switch (command.response) {
@@ -82,23 +96,21 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     public ChannelBuffer constructHeader(MemcachedBinaryCommandDecoder.BinaryOp bcmd, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, short responseCode, int opaqueValue, long casUnique) {
         // take the ResponseMessage and turn it into a binary payload.
         ChannelBuffer header = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
+        writeHeader(header, bcmd, extrasBuffer != null ? extrasBuffer.capacity() : 0, keyBuffer != null ? keyBuffer.capacity() : 0,
+                valueBuffer != null ? valueBuffer.capacity() : 0, responseCode, opaqueValue, casUnique);
+        return header;
+    }
+
+    private static void writeHeader(ChannelBuffer header, MemcachedBinaryCommandDecoder.BinaryOp bcmd, int extrasLength, int keyLength, int dataLength, short responseCode, int opaqueValue, long casUnique) {
         header.writeByte((byte)0x81);  // magic
         header.writeByte(bcmd.code); // opcode
-        short keyLength = (short) (keyBuffer != null ? keyBuffer.capacity() :0);
-
-        header.writeShort(keyLength);
-        int extrasLength = extrasBuffer != null ? extrasBuffer.capacity() : 0;
+        header.writeShort((short) keyLength);
         header.writeByte((byte) extrasLength); // extra length = flags + expiry
         header.writeByte((byte)0); // data type unused
         header.writeShort(responseCode); // status code
-
-        int dataLength = valueBuffer != null ? valueBuffer.capacity() : 0;
         header.writeInt(dataLength + keyLength + extrasLength); // data length
         header.writeInt(opaqueValue); // opaque
-
         header.writeLong(casUnique);
-
-        return header;
     }
 
     /**
@@ -125,135 +137,183 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     @Override
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
-        ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
-        Object additional = messageEvent.getMessage();
+        Output out = new Output(messageEvent.getChannel());
+        if (messageEvent.getMessage() instanceof ResponseBatch) {
+            // a run of quiet commands and the noop after it, say, answered in the one write
+            for (ResponseMessage<CACHE_ELEMENT> response : ((ResponseBatch<CACHE_ELEMENT>) messageEvent.getMessage()).responses) {
+                encode(out, response);
+                if (out.size() >= SEND_BUFFER_SIZE) out.flush();
+            }
+        } else {
+            encode(out, (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage());
+        }
+        out.flush();
+    }
 
+    private void encode(Output out, ResponseMessage<CACHE_ELEMENT> command) {
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
+        short status = getStatusCode(command).code;
+        boolean get = command.cmd.op == Op.GET || command.cmd.op == Op.GETS;
+        CacheElement element = command.elements != null && command.elements.length != 0 ? command.elements[0] : null;
+
+        if (command.cmd.op == Op.QUIT) {
+            // answered unless quiet, then the connection closed once everything before it is written
+            if (!bcmd.noreply) writeHeader(out.small, bcmd, 0, 0, 0, ResponseCode.OK.code, command.cmd.opaque, 0);
+            out.close();
+            return;
+        }
 
-        // write extras == flags & expiry
-        ChannelBuffer extrasBuffer = null;
+        // quiet commands are only answered when they fail, and quiet gets when they hit; the rest need nothing at all
+        if (bcmd.noreply && (get ? element == null : status == ResponseCode.OK.code)) return;
 
-        // write key if there is one
-        ChannelBuffer keyBuffer = null;
-        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
-            keyBuffer = ChannelBuffers.wrappedBuffer(command.cmd.keys.get(0).bytes);
-        }
+        ChannelBuffer header = out.small;
 
-        // write value if there is one
-        ChannelBuffer valueBuffer = null;
-        if (command.elements != null) {
-            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
-            CacheElement element = command.elements[0];
-            extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
-            extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
-
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS)) {
-                if (element != null) {
-                    valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
-                } else {
-                    valueBuffer = ChannelBuffers.buffer(0);
+        // stats is special -- with it, we write N times, one for each stat, then an empty payload
+        if (command.cmd.op == Op.STATS) {
+            for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
+                byte[] key = statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII);
+                for (String stat : statsEntries.getValue()) {
+                    byte[] value = stat.getBytes(MemcachedBinaryCommandDecoder.USASCII);
+                    writeHeader(header, bcmd, 0, key.length, value.length, status, command.cmd.opaque, 0);
+                    header.writeBytes(key);
+                    header.writeBytes(value);
                 }
-            } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-                valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-                valueBuffer.writeLong(command.incrDecrResponse);
             }
-        } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-            valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-            valueBuffer.writeLong(command.incrDecrResponse);
+            writeHeader(header, bcmd, 0, 0, 0, status, command.cmd.opaque, 0);
+            return;
         }
 
-        long casUnique = 0;
-        if (command.elements != null && command.elements.length != 0 && command.elements[0] != null) {
-            casUnique = command.elements[0].getCasUnique();
+        // write key if there is one
+        ChannelBuffer key = null;
+        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
+            key = command.cmd.keys.get(0).bytes;
         }
+        int keyLength = key != null ? key.capacity() : 0;
+
+        if (get) {
+            // extras == expiry & flags, then the value, which is written straight from where it is stored, and so has
+            // to stay put until it is written out
+            ChannelBuffer data = element != null ? element.getData() : null;
+
+            writeHeader(header, bcmd, 4, keyLength, data != null ? data.readableBytes() : 0, status, command.cmd.opaque, element != null ? element.getCasUnique() : 0);
+            header.writeShort((short) (element != null ? element.getExpire() : 0));
+            header.writeShort((short) (element != null ? element.getFlags() : 0));
+            if (key != null) header.writeBytes(key, 0, keyLength);
+            if (data != null) out.value(data);
+            if (command.elements != null) out.release(command.elements);
+        } else if ((command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) && command.incrDecrResponse != null) {
+            writeHeader(header, bcmd, 0, keyLength, 8, status, command.cmd.opaque, 0);
+            if (key != null) header.writeBytes(key, 0, keyLength);
+            header.writeLong(command.incrDecrResponse);
+        } else {
+            writeHeader(header, bcmd, 0, keyLength, 0, status, command.cmd.opaque, 0);
+            if (key != null) header.writeBytes(key, 0, keyLength);
+        }
+    }
 
-        // stats is special -- with it, we write N times, one for each stat, then an empty payload
-        if (command.cmd.op == Op.STATS) {
-            // first uncork any corked buffers
-            if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
+    /**
+     * The responses to what was read, gathered up into as few writes as possible.  The headers and the other small
+     * parts of the responses are written one after another into the one buffer, and small values wrapped where they
+     * are, keeping each write within the size Netty copies into its pooled direct send buffers.  Big values held in
+     * direct buffers, such as those read from the block stores, are each written out on their own, which Netty passes
+     * straight to the socket without copying.  The values are released once the last write is done.
+     */
+    private static final class Output {
 
-            for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
-                for (String stat : statsEntries.getValue()) {
+        private final Channel channel;
+        private final List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+        private int gathered;
+        private List<CacheElement[]> toRelease;
+        private ChannelFuture lastWrite;
 
-                    keyBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, statsEntries.getKey().getBytes(MemcachedBinaryCommandDecoder.USASCII));
-                    valueBuffer = ChannelBuffers.wrappedBuffer(ByteOrder.BIG_ENDIAN, stat.getBytes(MemcachedBinaryCommandDecoder.USASCII));
+        // the small parts of the responses, and how much of them is already among the parts
+        ChannelBuffer small = ChannelBuffers.dynamicBuffer(ByteOrder.BIG_ENDIAN, 256);
+        private int cut;
 
-                    ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
+        Output(Channel channel) {
+            this.channel = channel;
+        }
 
-                    writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
-                }
-            }
+        /**
+         * @return the number of bytes gathered so far
+         */
+        int size() {
+            return gathered + small.writerIndex() - cut;
+        }
 
-            keyBuffer = null;
-            valueBuffer = null;
+        /**
+         * Add a value, after the small parts written so far.
+         */
+        void value(ChannelBuffer value) {
+            int bytes = value.readableBytes();
+            if (value.isDirect() && bytes >= DIRECT_WRITE_THRESHOLD) {
+                flush();
+                lastWrite = channel.write(value);
+                return;
+            }
 
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
+            if (size() + bytes > SEND_BUFFER_SIZE) flush();
+            cutSmall();
+            parts.add(value);
+            gathered += bytes;
+        }
 
-            writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+        void release(CacheElement[] elements) {
+            if (toRelease == null) toRelease = new ArrayList<CacheElement[]>(1);
+            toRelease.add(elements);
+        }
 
-        } else {
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-            // write everything
-            // is the command 'quiet?' if so, then we append to our 'corked' buffer until a non-corked command comes along
-            if (bcmd.noreply) {
-                int totalCapacity = headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                        + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ? valueBuffer.capacity() : 0);
-
-                ChannelBuffer corkedResponse  = cork(command.cmd.opaque, totalCapacity);
-
-
-                corkedResponse.writeBytes(headerBuffer);
-                if (extrasBuffer != null)
-                    corkedResponse.writeBytes(extrasBuffer);
-                if (keyBuffer != null)
-                    corkedResponse.writeBytes(keyBuffer);
-                if (valueBuffer != null)
-                    corkedResponse.writeBytes(valueBuffer);
-            } else {
-                // first write out any corked responses
-                 if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-                
-
-                writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+        private void cutSmall() {
+            int end = small.writerIndex();
+            if (end > cut) {
+                parts.add(small.slice(cut, end - cut));
+                gathered += end - cut;
+                cut = end;
             }
         }
-    }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
+        void flush() {
+            cutSmall();
+            if (!parts.isEmpty()) {
+                lastWrite = channel.write(parts.size() == 1 ? parts.get(0) : ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()])));
+                parts.clear();
+                gathered = 0;
+                small = ChannelBuffers.dynamicBuffer(ByteOrder.BIG_ENDIAN, 256);
+                cut = 0;
+            }
+
+            if (toRelease != null) {
+                final List<CacheElement[]> released = toRelease;
+                toRelease = null;
+                if (lastWrite == null) {
+                    releaseAll(released);
+                    return;
+                }
+
+                // writes complete in order, so the last covers every value released
+                lastWrite.addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) {
+                        releaseAll(released);
+                    }
+                });
+            }
         }
-    }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
-    }
+        /**
+         * Close the connection once everything gathered up to now is written, behind an empty write so nothing still
+         * queued is dropped.
+         */
+        void close() {
+            flush();
+            channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
-        if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
-            if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
-            if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
-            if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
+        private static void releaseAll(List<CacheElement[]> released) {
+            for (CacheElement[] elements : released) {
+                for (CacheElement element : elements) {
+                    if (element != null) element.release();
+                }
+            }
         }
     }
 }
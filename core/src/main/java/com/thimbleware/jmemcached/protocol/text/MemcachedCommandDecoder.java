@@ -3,6 +3,7 @@ package com.thimbleware.jmemcached.protocol.text;
 import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.protocol.CommandBatchDecoder;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
@@ -12,13 +13,13 @@ import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+
+import static com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory.USASCII;
 
 /**
  * The MemcachedCommandDecoder is responsible for taking lines from the MemcachedFrameDecoder and parsing them
@@ -26,67 +27,50 @@ import java.util.List;
  * <p/>
  * Protocol status is held in the SessionStatus instance which is shared between each of the decoders in the pipeline.
  */
-public final class MemcachedCommandDecoder extends FrameDecoder {
+public final class MemcachedCommandDecoder extends CommandBatchDecoder {
 
     private static final int MIN_BYTES_LINE = 2;
     private SessionStatus status;
 
     private static final ChannelBuffer NOREPLY = ChannelBuffers.wrappedBuffer("noreply".getBytes());
 
+    // where the tokens of the line being read start and end, relative to the start of the line; kept from line to
+    // line, and only grown for the odd get of more keys than they have room for
+    private int[] tokenStarts = new int[8];
+    private int[] tokenEnds = new int[8];
+    private int tokens;
+
+    // the start of the token being read, or -1 between tokens; and how much of the line has been read, so as to
+    // carry on from there rather than from its start should the rest of it come in a later read
+    private int tokenStart = -1;
+    private int scanned;
 
     public MemcachedCommandDecoder(SessionStatus status) {
         this.status = status;
     }
 
-    /**
-     * Index finder which locates a byte which is neither a {@code CR ('\r')}
-     * nor a {@code LF ('\n')}.
-     */
-    static ChannelBufferIndexFinder CRLF_OR_WS = new ChannelBufferIndexFinder() {
-        public final boolean find(ChannelBuffer buffer, int guessedIndex) {
-            byte b = buffer.getByte(guessedIndex);
-            return b == ' ' || b == '\r' || b == '\n';
-        }
-    };
-
-    static boolean eol(int pos, ChannelBuffer buffer) {
-        return buffer.readableBytes() >= MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
-    }
-
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+    protected CommandMessage decodeCommand(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
         if (status.state == SessionStatus.State.READY) {
-            ChannelBuffer in = buffer.slice();
-
-            // split into pieces
-            List<ChannelBuffer> pieces = new ArrayList<ChannelBuffer>(6);
-            if (in.readableBytes() < MIN_BYTES_LINE) return null;
-            int pos = in.bytesBefore(CRLF_OR_WS);
-            boolean eol = false;
-            do {
-                if (pos != -1) {
-                    eol = eol(pos, in);
-                    int skip = eol ? MIN_BYTES_LINE : 1;
-                    ChannelBuffer slice = in.readSlice(pos);
-                    slice.readerIndex(0);
-                    pieces.add(slice);
-                    in.skipBytes(skip);
-                    if (eol) break;
+            int length = scanLine(buffer);
+            if (length != -1) {
+                int start = buffer.readerIndex();
+                try {
+                    return processLine(buffer, start, channel, ctx);
+                } finally {
+                    buffer.skipBytes(length + MIN_BYTES_LINE);
+                    tokens = 0;
+                    scanned = 0;
                 }
-            } while ((pos = in.bytesBefore(CRLF_OR_WS)) != -1);
-            if (eol) {
-                buffer.skipBytes(in.readerIndex());
-
-                return processLine(pieces, channel, ctx);
             }
             if (status.state != SessionStatus.State.WAITING_FOR_DATA) status.ready();
         } else if (status.state == SessionStatus.State.WAITING_FOR_DATA) {
             if (buffer.readableBytes() >= status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity()) {
 
                 // verify delimiter matches at the right location
-                ChannelBuffer dest = buffer.slice(buffer.readerIndex() + status.bytesNeeded, MIN_BYTES_LINE);
+                int delimiter = buffer.readerIndex() + status.bytesNeeded;
 
-                if (!dest.equals(MemcachedResponseEncoder.CRLF)) {
+                if (buffer.getByte(delimiter) != '\r' || buffer.getByte(delimiter + 1) != '\n') {
                     // before we throw error... we're ready for the next command
                     status.ready();
 
@@ -95,8 +79,9 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 } else {
                     status.processingMultiline();
 
-                    // There's enough bytes in the buffer and the delimiter is at the end. Read it.
-                    ChannelBuffer result = buffer.slice(buffer.readerIndex(), status.bytesNeeded);
+                    // There's enough bytes in the buffer and the delimiter is at the end. Read it, into a
+                    // buffer of its own: the frame decoder compacts its buffer in place as more comes in
+                    ChannelBuffer result = buffer.copy(buffer.readerIndex(), status.bytesNeeded);
 
                     buffer.skipBytes(status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity());
 
@@ -113,29 +98,73 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    /**
+     * Split the line at the start of the buffer into tokens, in one pass, noting where they are rather than slicing
+     * them out.  Carries on from wherever the last call left off.
+     *
+     * @return the length of the line, short of its CRLF; -1 if it isn't all in yet
+     */
+    private int scanLine(ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        byte[] array = buffer.hasArray() ? buffer.array() : null;
+        int offset = array != null ? buffer.arrayOffset() : 0;
+
+        for (int i = start + scanned; i < end; i++) {
+            byte b = array != null ? array[offset + i] : buffer.getByte(i);
+            if (b == '\r') {
+                // wait for what follows before deciding what a '\r' ends
+                if (i + 1 == end) {
+                    scanned = i - start;
+                    return -1;
+                }
+                endToken(i - start);
+                byte next = array != null ? array[offset + i + 1] : buffer.getByte(i + 1);
+                if (next == '\n') return i - start;
+            } else if (b == ' ' || b == '\n') {
+                endToken(i - start);
+            } else if (tokenStart == -1) {
+                tokenStart = i - start;
+            }
+        }
+        scanned = end - start;
+        return -1;
+    }
+
+    /**
+     * End the token being read, if any, at the given position in the line.  Runs of spaces make no empty tokens.
+     */
+    private void endToken(int position) {
+        if (tokenStart == -1) return;
+        if (tokens == tokenStarts.length) {
+            tokenStarts = Arrays.copyOf(tokenStarts, tokens * 2);
+            tokenEnds = Arrays.copyOf(tokenEnds, tokens * 2);
+        }
+        tokenStarts[tokens] = tokenStart;
+        tokenEnds[tokens] = position;
+        tokens++;
+        tokenStart = -1;
+    }
+
     /**
      * Process an individual complete protocol line and either passes the command for processing by the
      * session handler, or (in the case of SET-type commands) partially parses the command and sets the session into
      * a state to wait for additional data.
      *
-     * @param parts                 the (originally space separated) parts of the command
+     * @param buffer                the buffer holding the line, its tokens found
+     * @param line                  where in the buffer the line starts
      * @param channel               the netty channel to operate on
      * @param channelHandlerContext the netty channel handler context
      * @throws com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException
      * @throws com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException
      */
-    private Object processLine(List<ChannelBuffer> parts, Channel channel, ChannelHandlerContext channelHandlerContext) throws UnknownCommandException, MalformedCommandException {
-        final int numParts = parts.size();
+    private CommandMessage processLine(ChannelBuffer buffer, int line, Channel channel, ChannelHandlerContext channelHandlerContext) throws UnknownCommandException, MalformedCommandException {
+        final int numParts = tokens;
 
         // Turn the command into an enum for matching on
-        Op op;
-        try {
-            op = Op.FindOp(parts.get(0));
-            if (op == null)
-                throw new IllegalArgumentException("unknown operation: " + parts.get(0).toString());
-        } catch (IllegalArgumentException e) {
-            throw new UnknownCommandException("unknown operation: " + parts.get(0).toString());
-        }
+        Op op = numParts == 0 ? null : Op.FindOp(buffer, line + tokenStarts[0], tokenEnds[0] - tokenStarts[0]);
+        if (op == null)
+            throw new UnknownCommandException("unknown operation: " + (numParts == 0 ? "" : buffer.toString(line + tokenStarts[0], tokenEnds[0] - tokenStarts[0], USASCII)));
 
         // Produce the initial command message, for filling in later
         CommandMessage cmd = CommandMessage.command(op);
@@ -143,50 +172,49 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
 
         switch (op) {
             case DELETE:
-                cmd.setKey(parts.get(1));
+                if (numParts < MIN_BYTES_LINE)
+                    throw new MalformedCommandException("invalid delete command");
 
-                if (numParts >= MIN_BYTES_LINE) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 4)
-                            cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                    } else if (numParts == 3)
-                        cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                }
+                cmd.setKey(copy(buffer, line, 1));
+
+                if (isNoreply(buffer, line, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 4)
+                        cmd.time = atoi(buffer, line, MIN_BYTES_LINE);
+                } else if (numParts == 3)
+                    cmd.time = atoi(buffer, line, MIN_BYTES_LINE);
 
                 return cmd;
             case DECR:
             case INCR:
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 3 || numParts > 4)
                     throw new MalformedCommandException("invalid increment command");
 
-                cmd.setKey(parts.get(1));
-                cmd.incrAmount = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
+                cmd.setKey(copy(buffer, line, 1));
+                cmd.incrAmount = atoi(buffer, line, MIN_BYTES_LINE);
 
-                if (numParts == 3 && parts.get(MIN_BYTES_LINE).equals(NOREPLY)) {
+                if (numParts == 4 && isNoreply(buffer, line, 3)) {
                     cmd.noreply = true;
                 }
 
                 return cmd;
             case FLUSH_ALL:
-                if (numParts >= 1) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 3)
-                            cmd.time = BufferUtils.atoi((parts.get(1)));
-                    } else if (numParts == MIN_BYTES_LINE)
-                        cmd.time = BufferUtils.atoi((parts.get(1)));
-                }
+                if (isNoreply(buffer, line, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 3)
+                        cmd.time = atoi(buffer, line, 1);
+                } else if (numParts == MIN_BYTES_LINE)
+                    cmd.time = atoi(buffer, line, 1);
                 return cmd;
             case VERBOSITY: // verbosity <time> [noreply]\r\n
                 // Malformed
                 if (numParts < MIN_BYTES_LINE || numParts > 3)
                     throw new MalformedCommandException("invalid verbosity command");
 
-                cmd.time = BufferUtils.atoi((parts.get(1))); // verbose level
+                cmd.time = atoi(buffer, line, 1); // verbose level
 
-                if (numParts > 1 && parts.get(MIN_BYTES_LINE).equals(NOREPLY))
+                if (numParts > MIN_BYTES_LINE && isNoreply(buffer, line, MIN_BYTES_LINE))
                     cmd.noreply = true;
 
                 return cmd;
@@ -202,19 +230,19 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 }
 
                 // Fill in all the elements of the command
-                int size = BufferUtils.atoi(parts.get(4));
-                long expire = BufferUtils.atoi(parts.get(3)) * 1000;
-                int flags = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                cmd.element = new LocalCacheElement(new Key(parts.get(1).slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                int size = atoi(buffer, line, 4);
+                long expire = atoi(buffer, line, 3) * 1000;
+                int flags = atoi(buffer, line, MIN_BYTES_LINE);
+                cmd.element = new LocalCacheElement(new Key(copy(buffer, line, 1)), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
 
                 // look for cas and "noreply" elements
                 if (numParts > 5) {
                     int noreply = op == Op.CAS ? 6 : 5;
                     if (op == Op.CAS) {
-                        cmd.cas_key = BufferUtils.atol(parts.get(5));
+                        cmd.cas_key = BufferUtils.atol(buffer, line + tokenStarts[5], tokenEnds[5] - tokenStarts[5]);
                     }
 
-                    if (numParts == noreply + 1 && parts.get(noreply).equals(NOREPLY))
+                    if (numParts == noreply + 1 && isNoreply(buffer, line, noreply))
                         cmd.noreply = true;
                 }
 
@@ -229,8 +257,13 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             case STATS:
             case VERSION:
             case QUIT:
-                // Get all the keys
-                cmd.setKeys(parts.subList(1, numParts));
+                // Get all the keys, copied out of the frame decoder's buffer like the rest.  Each gets a buffer of
+                // its own rather than a slice of one copy of them all: keys are hashed and compared often enough
+                // that it pays for them all to be plain heap buffers
+                cmd.keys = new ArrayList<Key>(numParts - 1);
+                for (int i = 1; i < numParts; i++) {
+                    cmd.keys.add(new Key(copy(buffer, line, i)));
+                }
 
                 // Pass it on.
                 return cmd;
@@ -241,6 +274,23 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
         return null;
     }
 
+    private ChannelBuffer copy(ChannelBuffer buffer, int line, int token) {
+        return buffer.copy(line + tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+    }
+
+    private int atoi(ChannelBuffer buffer, int line, int token) {
+        return BufferUtils.atoi(buffer, line + tokenStarts[token], tokenEnds[token] - tokenStarts[token]);
+    }
+
+    private boolean isNoreply(ChannelBuffer buffer, int line, int token) {
+        int length = tokenEnds[token] - tokenStarts[token];
+        if (length != NOREPLY.capacity()) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getByte(line + tokenStarts[token] + i) != NOREPLY.getByte(i)) return false;
+        }
+        return true;
+    }
+
     /**
      * Handles the continuation of a SET/ADD/REPLACE command with the data it was waiting for.
      *
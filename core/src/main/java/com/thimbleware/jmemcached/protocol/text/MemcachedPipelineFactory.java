@@ -1,14 +1,19 @@
 package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.protocol.HotKeySampler;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.MemcachedTrafficCounter;
+import com.thimbleware.jmemcached.protocol.ServerStats;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  */
@@ -22,26 +27,52 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
 
     private int frameSize;
     private DefaultChannelGroup channelGroup;
-    private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
+    private final MemcachedResponseEncoder memcachedResponseEncoder;
 
+    private final ServerStats stats = new ServerStats();
+    private final MemcachedTrafficCounter trafficCounter = new MemcachedTrafficCounter(stats);
     private final MemcachedCommandHandler memcachedCommandHandler;
+    private final ExecutionHandler executionHandler;
 
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, channelGroup, null, null, 0, null);
+    }
+
+    /**
+     * @param sampler samples the keys of commands, if not null
+     * @param executionHandler hands decoded commands to another thread to be handled, if not null; otherwise they
+     * are handled on the I/O thread that read them
+     * @param flushDelay how long in microseconds responses may be held back to be written along with later ones
+     * @param flusher runs the flushes held back, if there is a flush delay
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup, HotKeySampler sampler, ExecutionHandler executionHandler,
+                                    long flushDelay, ScheduledExecutorService flusher) {
         this.cache = cache;
         this.version = version;
         this.verbose = verbose;
         this.idleTime = idleTime;
         this.frameSize = frameSize;
         this.channelGroup = channelGroup;
-        memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup);
+        this.executionHandler = executionHandler;
+        memcachedResponseEncoder = new MemcachedResponseEncoder(flushDelay, flusher);
+        memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup, stats, sampler);
     }
 
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
+        if (executionHandler == null) {
+            return Channels.pipeline(
+                    trafficCounter,
+                    new MemcachedCommandDecoder(status),
+                    memcachedCommandHandler,
+                    memcachedResponseEncoder);
+        }
         return Channels.pipeline(
+                trafficCounter,
                 new MemcachedCommandDecoder(status),
+                executionHandler,
                 memcachedCommandHandler,
                 memcachedResponseEncoder);
     }
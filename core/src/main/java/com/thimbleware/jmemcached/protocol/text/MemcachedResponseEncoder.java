@@ -3,6 +3,7 @@ package com.thimbleware.jmemcached.protocol.text;
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.protocol.Op;
+import com.thimbleware.jmemcached.protocol.ResponseBatch;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.ClientException;
 import com.thimbleware.jmemcached.util.BufferUtils;
@@ -19,6 +20,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Response encoder for the memcached text protocol. Produces strings destined for the StringEncoder
@@ -41,6 +45,34 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
     private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", USASCII);
     private static final ChannelBuffer CLIENT_ERROR = ChannelBuffers.copiedBuffer("CLIENT_ERROR\r\n", USASCII);
 
+    /**
+     * Netty copies writes of up to this many bytes into a pooled direct buffer, but gathers bigger ones that
+     * aren't direct into a new buffer on the heap first.
+     */
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Direct values at least this big are worth a write of their own rather than being copied.
+     */
+    private static final int DIRECT_WRITE_THRESHOLD = 8 * 1024;
+
+    private final long flushDelay;
+    private final ScheduledExecutorService flusher;
+
+    public MemcachedResponseEncoder() {
+        this(0, null);
+    }
+
+    /**
+     * @param flushDelay how long in microseconds responses may be held back to be written along with those to
+     * commands read after them, or 0 to write them out as soon as everything read at once has been answered
+     * @param flusher runs the flushes held back
+     */
+    public MemcachedResponseEncoder(long flushDelay, ScheduledExecutorService flusher) {
+        this.flushDelay = flushDelay;
+        this.flusher = flusher;
+    }
+
     /**
      * Handle exceptions in protocol processing. Exceptions are either client or internal errors.  Report accordingly.
      *
@@ -54,51 +86,68 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
             throw e.getCause();
         } catch (ClientException ce) {
             if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(CLIENT_ERROR);
+                output(ctx).error(CLIENT_ERROR);
         } catch (Throwable tr) {
             logger.error("error", tr);
             if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(ERROR);
+                output(ctx).error(ERROR);
+        }
+    }
+
+    /**
+     * Write out whatever is still held back when the connection closes, which fails and so releases any values in it.
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Output out = (Output) ctx.getAttachment();
+        if (out != null) {
+            synchronized (out) {
+                out.flush();
+            }
         }
     }
 
 
 
     @Override
+    @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
-        ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
+        Output out = output(channelHandlerContext);
+        synchronized (out) {
+            if (messageEvent.getMessage() instanceof ResponseBatch) {
+                // the responses to a batch go out in as few writes as those to one command
+                for (ResponseMessage<CACHE_ELEMENT> response : ((ResponseBatch<CACHE_ELEMENT>) messageEvent.getMessage()).responses) {
+                    encode(out, response);
+                }
+            } else {
+                encode(out, (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage());
+            }
 
-        Op cmd = command.cmd.op;
+            if (flushDelay > 0) out.flushLater();
+            else out.flush();
+        }
+    }
+
+    /**
+     * @return the output of the connection, which is kept from one read to the next so that responses can be held
+     * back to be written along with those that follow
+     */
+    private Output output(ChannelHandlerContext ctx) {
+        Output out = (Output) ctx.getAttachment();
+        if (out == null) {
+            out = new Output(ctx.getChannel(), flushDelay, flusher);
+            ctx.setAttachment(out);
+        }
+        return out;
+    }
 
-        Channel channel = messageEvent.getChannel();
+    private void encode(Output out, ResponseMessage<CACHE_ELEMENT> command) {
+        Op cmd = command.cmd.op;
 
         switch (cmd) {
             case GET:
             case GETS:
-                CacheElement[] results = command.elements;
-
-                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (cmd == Op.GETS ? 2 : 0)) + 1];
-                int i = 0;
-                for (CacheElement result : results) {
-                    if (result != null) {
-                        buffers[i++] = VALUE;
-                        buffers[i++] = result.getKey().bytes;
-                        buffers[i++] = SPACE;
-                        buffers[i++] = BufferUtils.itoa(result.getFlags());
-                        buffers[i++] = SPACE;
-                        buffers[i++] = BufferUtils.itoa(result.size());
-                        if (cmd == Op.GETS) {
-                            buffers[i++] = SPACE;
-                            buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
-                        }
-                        buffers[i++] = CRLF;
-                        buffers[i++] = result.getData();
-                        buffers[i++] = CRLF;
-                    }
-                }
-                buffers[i] = END;
-
-                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers));
+                writeValues(out, cmd, command.elements);
                 break;
             case APPEND:
             case PREPEND:
@@ -107,17 +156,17 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
             case REPLACE:
             case CAS:
                 if (!command.cmd.noreply)
-                    Channels.write(channel, storeResponse(command.response));
+                    out.add(storeResponse(command.response));
                 break;
             case DELETE:
                 if (!command.cmd.noreply)
-                    Channels.write(channel, deleteResponseString(command.deleteResponse));
+                    out.add(deleteResponseString(command.deleteResponse));
 
                 break;
             case DECR:
             case INCR:
                 if (!command.cmd.noreply)
-                    Channels.write(channel, incrDecrResponseString(command.incrDecrResponse));
+                    out.add(incrDecrResponseString(command.incrDecrResponse));
                 break;
             case STATS:
                 for (Map.Entry<String, Set<String>> stat : command.stats.entrySet()) {
@@ -128,34 +177,190 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                         builder.append(" ");
                         builder.append(String.valueOf(statVal));
                         builder.append("\r\n");
-                        Channels.write(channel, ChannelBuffers.copiedBuffer(builder.toString(), USASCII));
+                        out.add(ChannelBuffers.copiedBuffer(builder.toString(), USASCII));
                     }
                 }
-                Channels.write(channel, END.duplicate());
+                out.add(END.duplicate());
 
                 break;
             case VERSION:
-                Channels.write(channel, ChannelBuffers.copiedBuffer("VERSION " + command.version + "\r\n", USASCII));
+                out.add(ChannelBuffers.copiedBuffer("VERSION " + command.version + "\r\n", USASCII));
                 break;
             case QUIT:
-                Channels.disconnect(channel);
-
+                out.close();
                 break;
             case FLUSH_ALL:
                 if (!command.cmd.noreply) {
                     ChannelBuffer ret = command.flushSuccess ? OK.duplicate() : ERROR.duplicate();
 
-                    Channels.write(channel, ret);
+                    out.add(ret);
                 }
                 break;
             case VERBOSITY:
                 break;
             default:
-                Channels.write(channel, ERROR.duplicate());
+                out.add(ERROR.duplicate());
                 logger.error("error; unrecognized command: " + cmd);
 
         }
+    }
+
+    /**
+     * Write out the values found by a get.  Small values are gathered up with the text around them, which Netty
+     * copies into its pooled direct send buffers.  Big values held in direct buffers, such as those read from the
+     * block stores, are each written out on their own, which Netty passes straight to the socket without copying.
+     * The values are released once the last write is done.
+     */
+    private void writeValues(Output out, Op cmd, CacheElement[] results) {
+        for (CacheElement result : results) {
+            if (result != null) {
+                ChannelBuffer key = result.getKey().bytes;
+                ChannelBuffer flags = BufferUtils.itoa(result.getFlags());
+                ChannelBuffer length = BufferUtils.itoa(result.size());
+                ChannelBuffer cas = cmd == Op.GETS ? BufferUtils.ltoa(result.getCasUnique()) : null;
+                ChannelBuffer data = result.getData();
+
+                int header = VALUE.readableBytes() + key.readableBytes() + 2 * SPACE.readableBytes() + flags.readableBytes()
+                        + length.readableBytes() + (cas != null ? SPACE.readableBytes() + cas.readableBytes() : 0) + CRLF.readableBytes();
+                boolean direct = data.isDirect() && data.readableBytes() >= DIRECT_WRITE_THRESHOLD;
+
+                // keep each write within the size Netty copies, rather than gathers on the heap
+                out.reserve(header + (direct ? 0 : data.readableBytes()) + CRLF.readableBytes() + END.readableBytes());
+
+                out.add(VALUE);
+                out.add(key);
+                out.add(SPACE);
+                out.add(flags);
+                out.add(SPACE);
+                out.add(length);
+                if (cas != null) {
+                    out.add(SPACE);
+                    out.add(cas);
+                }
+                out.add(CRLF);
+                if (direct) {
+                    out.write(data);
+                } else {
+                    out.add(data);
+                }
+                out.add(CRLF);
+            }
+        }
+        out.add(END);
+        out.release(results);
+    }
+
+    /**
+     * The buffers to be written to a connection, gathered up into as few writes as possible.  Used under its own
+     * lock, as a flush held back may be made from the flusher's thread.
+     */
+    private static final class Output implements Runnable {
+
+        final Channel channel;
+        private final long flushDelay;
+        private final ScheduledExecutorService flusher;
+        private final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        private int gathered;
+        private List<CacheElement[]> toRelease;
+        private boolean flushScheduled;
+
+        Output(Channel channel, long flushDelay, ScheduledExecutorService flusher) {
+            this.channel = channel;
+            this.flushDelay = flushDelay;
+            this.flusher = flusher;
+        }
+
+        void add(ChannelBuffer buffer) {
+            buffers.add(buffer);
+            gathered += buffer.readableBytes();
+        }
+
+        /**
+         * Make sure there is room for the given number of bytes in the write being gathered, writing it out first
+         * if there isn't.
+         */
+        void reserve(int bytes) {
+            if (gathered + bytes > SEND_BUFFER_SIZE) flush();
+        }
+
+        /**
+         * Write a buffer out on its own, after what has been gathered so far.
+         */
+        void write(ChannelBuffer buffer) {
+            flush();
+            Channels.write(channel, buffer);
+        }
+
+        /**
+         * Release the given values once everything gathered up to now is written.
+         */
+        void release(CacheElement[] elements) {
+            if (toRelease == null) toRelease = new ArrayList<CacheElement[]>(1);
+            toRelease.add(elements);
+        }
+
+        /**
+         * Write an error, after everything gathered so far.
+         */
+        synchronized void error(ChannelBuffer error) {
+            flush();
+            Channels.write(channel, error.duplicate());
+        }
+
+        /**
+         * Close the connection once everything gathered up to now is written; the empty write queues up behind the
+         * rest, where closing straight away would drop whatever is still waiting to go out.
+         */
+        void close() {
+            flush();
+            Channels.write(channel, ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
 
+        /**
+         * Hold back what has been gathered for up to the flush delay, for the responses to whatever is read in the
+         * meantime to be written along with it.
+         */
+        void flushLater() {
+            if (gathered >= SEND_BUFFER_SIZE) {
+                flush();
+                return;
+            }
+            if (flushScheduled || buffers.isEmpty()) return;
+            try {
+                flusher.schedule(this, flushDelay, TimeUnit.MICROSECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // the daemon is stopping
+                flush();
+            }
+        }
+
+        public synchronized void run() {
+            flushScheduled = false;
+            flush();
+        }
+
+        void flush() {
+            if (buffers.isEmpty()) return;
+
+            ChannelFuture written = Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()])));
+            buffers.clear();
+            gathered = 0;
+
+            if (toRelease != null) {
+                final List<CacheElement[]> released = toRelease;
+                toRelease = null;
+                written.addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) {
+                        for (CacheElement[] elements : released) {
+                            for (CacheElement element : elements) {
+                                if (element != null) element.release();
+                            }
+                        }
+                    }
+                });
+            }
+        }
     }
 
     private ChannelBuffer deleteResponseString(Cache.DeleteResponse deleteResponse) {
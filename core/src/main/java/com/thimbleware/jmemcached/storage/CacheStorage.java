@@ -25,6 +25,40 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     int capacity();
 
+    /**
+     * Look up several keys at once, as for a multi-key get.
+     * @param keys the keys to look up
+     * @param values filled in with the value for each key, at the same index, or null where there is none
+     */
+    void getAll(K[] keys, V[] values);
+
+    /**
+     * Looks over the entries of a storage for sweep().
+     */
+    interface Sweeper<V> {
+        /**
+         * Look at an entry, removing it through the given removal if it is to go.
+         */
+        void visit(V value, Removal removal);
+    }
+
+    /**
+     * Removes the entry a sweeper is looking at.
+     */
+    interface Removal {
+        /**
+         * Remove the entry and give back its memory.
+         * @return false if it was replaced or removed in the meantime
+         */
+        boolean remove();
+    }
+
+    /**
+     * Go through the entries in place, letting the sweeper remove those it will.  No copy of the keys is taken, so
+     * an entry moved about by a write made while the sweep is underway may be passed over.
+     */
+    void sweep(Sweeper<V> sweeper);
+
     /**
      * Close the storage unit, deallocating any resources it might be currently holding.
      * @throws java.io.IOException thrown if IO faults occur anywhere during close.
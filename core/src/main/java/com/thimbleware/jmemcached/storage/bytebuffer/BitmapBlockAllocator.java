@@ -0,0 +1,88 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import com.thimbleware.jmemcached.util.OpenBitSet;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Allocator keeping one bit per block, and searching the bitmap first-fit for a free run of the requested
+ * length.  Wastes no space, but allocation cost grows with the size and fragmentation of the store.
+ */
+public final class BitmapBlockAllocator implements BlockAllocator {
+
+    private static final BitmapBlockAllocatorFactory BITMAP_BLOCK_ALLOCATOR_FACTORY = new BitmapBlockAllocatorFactory();
+
+    private OpenBitSet allocated;
+
+    public static BlockAllocatorFactory<BitmapBlockAllocator> getFactory() {
+        return BITMAP_BLOCK_ALLOCATOR_FACTORY;
+    }
+
+    public static class BitmapBlockAllocatorFactory implements BlockAllocatorFactory<BitmapBlockAllocator> {
+        public BitmapBlockAllocator manufacture(ChannelBuffer storageBuffer, int blockSizeBytes) {
+            return new BitmapBlockAllocator(storageBuffer.capacity() / blockSizeBytes);
+        }
+    }
+
+    private BitmapBlockAllocator(int numBlocks) {
+        allocated = new OpenBitSet(numBlocks);
+    }
+
+    public int reservedBlocks(int numBlocks) {
+        return numBlocks;
+    }
+
+    public int allocate(int numBlocks) {
+        return allocated.mark(numBlocks);
+    }
+
+    public void free(int startBlock, int numBlocks) {
+        allocated.clear(startBlock, startBlock + numBlocks);
+    }
+
+    public boolean canReuse(int freedBlocks, int numBlocks) {
+        // can't tell without looking at the neighbours of the freed blocks; any of them might complete a run
+        return true;
+    }
+
+    public boolean reclaim(int numBlocks, Evictor evictor) {
+        return false;
+    }
+
+    public void clear() {
+        allocated = new OpenBitSet(allocated.size());
+    }
+
+    /**
+     * @return the first allocated block at or after the given one, or -1 if there is none
+     */
+    public int nextAllocated(int fromBlock) {
+        return allocated.nextSetBit(fromBlock);
+    }
+
+    /**
+     * @return the number of bytes taken by save()
+     */
+    public int getSavedSize() {
+        return allocated.getBits().length * 8;
+    }
+
+    /**
+     * Write out the allocation state, for a store which outlives the process.
+     */
+    public void save(ChannelBuffer out, int offset) {
+        long[] bits = allocated.getBits();
+        for (int i = 0; i < bits.length; i++) {
+            out.setLong(offset + i * 8, bits[i]);
+        }
+    }
+
+    /**
+     * Read back allocation state written by save()
+     */
+    public void load(ChannelBuffer in, int offset) {
+        long[] bits = allocated.getBits();
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.getLong(offset + i * 8);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+/**
+ * Hands out runs of blocks within a block store.  Only ever called with the owning partition's write lock held.
+ */
+public interface BlockAllocator {
+
+    /**
+     * @param numBlocks the number of blocks requested
+     * @return the number of blocks an allocation of that many blocks actually takes up, or -1 if the
+     * allocator can never satisfy a request of that size
+     */
+    int reservedBlocks(int numBlocks);
+
+    /**
+     * Allocate a run of blocks.
+     *
+     * @param numBlocks the number of blocks requested
+     * @return the first block of the run, or -1 if there is no room
+     */
+    int allocate(int numBlocks);
+
+    /**
+     * Release a run of blocks handed out by allocate()
+     *
+     * @param startBlock the first block of the run
+     * @param numBlocks the number of blocks reserved for the run, as returned by reservedBlocks()
+     */
+    void free(int startBlock, int numBlocks);
+
+    /**
+     * Used when evicting to make room, to pass over entries whose blocks would be of no help.
+     *
+     * @param freedBlocks the number of blocks reserved by an entry that could be evicted
+     * @param numBlocks the number of blocks about to be allocated
+     * @return true if freeing the former could make room for the latter
+     */
+    boolean canReuse(int freedBlocks, int numBlocks);
+
+    /**
+     * Last resort when an allocation fails and evicting entries of its own size is of no help: take blocks away
+     * from allocations of other sizes, for allocators that keep them apart.
+     *
+     * @param numBlocks the number of blocks about to be allocated
+     * @param evictor called to evict whatever entries still occupy the blocks being taken
+     * @return false if the allocator has nothing to take, or doesn't work that way
+     */
+    boolean reclaim(int numBlocks, Evictor evictor);
+
+    /**
+     * Release all blocks.
+     */
+    void clear();
+
+    /**
+     * Empties runs of blocks on behalf of reclaim()
+     */
+    interface Evictor {
+        /**
+         * Evict every entry whose region starts within the given range of blocks, freeing its blocks.
+         *
+         * @return false if some of the blocks are still leased to readers, and so can't be taken yet
+         */
+        boolean evictRange(int startBlock, int endBlock);
+    }
+}
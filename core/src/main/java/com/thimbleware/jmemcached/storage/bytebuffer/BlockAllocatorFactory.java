@@ -0,0 +1,15 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Makes the allocator for each segment of a block store, so that block stores can be configured with an
+ * allocation strategy without knowing about it.
+ */
+public interface BlockAllocatorFactory<BA extends BlockAllocator> {
+    /**
+     * @param storageBuffer the segment whose blocks the allocator is to hand out
+     * @param blockSizeBytes the size of a block
+     */
+    BA manufacture(ChannelBuffer storageBuffer, int blockSizeBytes);
+}
@@ -6,36 +6,146 @@ import com.thimbleware.jmemcached.storage.CacheStorage;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of the cache using the block buffer storage back end.
+ *
+ * Writers lock the partition exclusively. Readers take the partition's read lock, or, in optimistic read mode,
+ * take no lock at all: they read the index and the region, then check the partition's write sequence to see
+ * whether a writer intervened, retrying (and eventually falling back to the read lock) if one did.
+ *
+ * Values handed back refer straight to the block store rather than to a copy, and hold a lease on their region
+ * which keeps its blocks from being reused; callers must release() them once done.
  */
 public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCacheElement> {
 
+    /**
+     * How many times an optimistic read is retried before falling back to taking the read lock.
+     */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    /**
+     * Index slots a sweep looks at for each time it takes a partition's write lock.
+     */
+    private static final int SWEEP_SLOTS = 1024;
+
     Partition[] partitions;
 
-    volatile int ceilingBytes;
+    volatile long ceilingBytes;
     volatile int maximumItems;
-    volatile int numberItems;
     final long maximumSizeBytes;
 
-    public BlockStorageCacheStorage(int blockStoreBuckets, int ceilingBytesParam, int blockSizeBytes, long maximumSizeBytes, int maximumItemsVal, BlockStoreFactory factory) {
+    private volatile boolean optimisticReads = false;
+
+    /**
+     * @param blockStoreBuckets the number of partitions to split the storage into; must be a power of two, see
+     * defaultPartitionCount()
+     */
+    public BlockStorageCacheStorage(int blockStoreBuckets, long ceilingBytesParam, int blockSizeBytes, long maximumSizeBytes, int maximumItemsVal, BlockStoreFactory factory) {
+        if (blockStoreBuckets <= 0 || (blockStoreBuckets & (blockStoreBuckets - 1)) != 0)
+            throw new IllegalArgumentException("partition count must be a positive power of two, was " + blockStoreBuckets);
+        if (maximumSizeBytes / blockStoreBuckets < blockSizeBytes)
+            throw new IllegalArgumentException("too many partitions (" + blockStoreBuckets + ") for " + maximumSizeBytes + " bytes of storage");
+
         this.partitions = new Partition[blockStoreBuckets];
 
         long bucketSizeBytes = maximumSizeBytes / blockStoreBuckets;
+        long bucketCeilingBytes = ceilingBytesParam > 0 ? ceilingBytesParam / blockStoreBuckets : 0;
         for (int i = 0; i < blockStoreBuckets; i++) {
-            this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes));
+            this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes), bucketCeilingBytes);
         }
 
-        this.numberItems = 0;
-        this.ceilingBytes = 0;
-        this.maximumItems = 0;
+        this.ceilingBytes = ceilingBytesParam;
+        this.maximumItems = maximumItemsVal;
         this.maximumSizeBytes = maximumSizeBytes;
+
+        recover();
+    }
+
+    /**
+     * Reload whatever persistent block stores kept from the last run, a partition per thread.
+     */
+    private void recover() {
+        boolean persistent = false;
+        for (Partition partition : partitions) {
+            persistent |= partition.blockStore.isPersistent();
+        }
+        if (!persistent) return;
+
+        int threads = Math.min(partitions.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> recoveries = new ArrayList<Future<?>>();
+            for (int i = 0; i < partitions.length; i++) {
+                final int number = i;
+                final Partition partition = partitions[i];
+                recoveries.add(executor.submit(new Runnable() {
+                    public void run() {
+                        partition.lockWrite();
+                        try {
+                            partition.recover(number, partitions.length);
+                        } finally {
+                            partition.unlockWrite();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> recovery : recoveries) {
+                recovery.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while recovering block stores", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failure recovering block stores", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A partition count suited to this machine: twice the number of processors, rounded up to a power of two,
+     * so that threads contending for the same partition lock are the exception rather than the rule.
+     */
+    public static int defaultPartitionCount() {
+        int target = Runtime.getRuntime().availableProcessors() * 2;
+        int count = 1;
+        while (count < target) count <<= 1;
+        return count;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
     }
 
     private Partition pickPartition(Key key) {
-        return partitions[hash(key.hashCode()) & (partitions.length - 1)];
+        return partitions[partitionIndex(key, partitions.length)];
+    }
+
+    /**
+     * @return the index of the partition a key is kept in, out of the given power of two number of partitions
+     */
+    public static int partitionIndex(Key key, int partitionCount) {
+        return hash(key.hashCode()) & (partitionCount - 1);
+    }
+
+    public boolean isOptimisticReads() {
+        return optimisticReads;
+    }
+
+    /**
+     * Switch between read/write locked reads, and lock free optimistic reads for get() and containsKey().
+     *
+     * Values returned by optimistic reads are leased like any others, the lease being taken out before the read
+     * is validated.
+     */
+    public void setOptimisticReads(boolean optimisticReads) {
+        this.optimisticReads = optimisticReads;
     }
 
     public final long getMemoryCapacity() {
@@ -54,17 +164,137 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         return memUsed;
     }
 
+    /**
+     * Statistics for the "stats slabs" command, summed over the partitions.  Empty if the block stores aren't
+     * using a slab allocator.
+     */
+    public Map<String, String> getSlabStats() {
+        Map<String, String> stats = new LinkedHashMap<String, String>();
+
+        SlabBlockAllocator layout = null;
+        int classes = 0;
+        long[] pages = null, used = null, free = null;
+        for (Partition partition : partitions) {
+            partition.storageLock.readLock().lock();
+            try {
+                for (int segment = 0; segment < partition.blockStore.getSegmentCount(); segment++) {
+                    BlockAllocator allocator = partition.blockStore.getAllocator(segment);
+                    if (!(allocator instanceof SlabBlockAllocator)) return stats;
+
+                    SlabBlockAllocator slabs = (SlabBlockAllocator) allocator;
+                    if (layout == null) {
+                        // all partitions and segments are created alike, so share a single class layout
+                        layout = slabs;
+                        classes = slabs.getClassCount();
+                        pages = new long[classes];
+                        used = new long[classes];
+                        free = new long[classes];
+                    }
+                    for (int i = 0; i < classes; i++) {
+                        pages[i] += slabs.getPages(i);
+                        used[i] += slabs.getUsedChunks(i);
+                        free[i] += slabs.getFreeChunks(i);
+                    }
+                }
+            } finally {
+                partition.storageLock.readLock().unlock();
+            }
+        }
+        if (layout == null) return stats;
+
+        int activeSlabs = 0;
+        long totalPages = 0;
+        for (int i = 0; i < classes; i++) {
+            if (pages[i] == 0) continue;
+
+            // classes are numbered from 1, as in memcached
+            String prefix = (i + 1) + ":";
+            stats.put(prefix + "chunk_size", String.valueOf(layout.getChunkSize(i)));
+            stats.put(prefix + "chunks_per_page", String.valueOf(layout.getChunksPerPage(i)));
+            stats.put(prefix + "total_pages", String.valueOf(pages[i]));
+            stats.put(prefix + "total_chunks", String.valueOf(pages[i] * layout.getChunksPerPage(i)));
+            stats.put(prefix + "used_chunks", String.valueOf(used[i]));
+            stats.put(prefix + "free_chunks", String.valueOf(free[i]));
+            activeSlabs++;
+            totalPages += pages[i];
+        }
+        stats.put("active_slabs", String.valueOf(activeSlabs));
+        stats.put("total_malloced", String.valueOf(totalPages * layout.getPageSizeBytes()));
+
+        return stats;
+    }
+
     public final int capacity() {
         return maximumItems;
     }
 
-    public final void close() throws IOException {
-        // first clear all items
-        clear();
+    /**
+     * @return the number of entries evicted to make room for others, over all partitions
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (Partition partition : partitions) {
+            evictions += partition.getEvictions();
+        }
+        return evictions;
+    }
 
-        // then ask the block store to close
-        for (Partition byteBufferBlockStore : partitions) {
-            byteBufferBlockStore.blockStore.close();
+    /**
+     * @return the highest cas id among the items recovered from a previous run, or 0 if there were none
+     */
+    public long getMaxRecoveredCasUnique() {
+        long max = 0;
+        for (Partition partition : partitions) {
+            max = Math.max(max, partition.getMaxRecoveredCasUnique());
+        }
+        return max;
+    }
+
+    /**
+     * @return the cas below which items had been flushed as of the previous run, items which were dropped rather
+     * than recovered; 0 if there was none
+     */
+    public long getRecoveredFlushedBelow() {
+        long flushedBelow = 0;
+        for (Partition partition : partitions) {
+            flushedBelow = Math.max(flushedBelow, partition.blockStore.getFlushedBelow());
+        }
+        return flushedBelow;
+    }
+
+    /**
+     * Have persistent block stores keep the cas below which items have been flushed, for the ones still stored
+     * when they are closed to be dropped rather than recovered next time round.
+     */
+    public void setFlushedBelow(long flushedBelow) {
+        for (Partition partition : partitions) {
+            partition.blockStore.setFlushedBelow(flushedBelow);
+        }
+    }
+
+    /**
+     * Add an entry to a partition, whose write lock must be held, first evicting from the same partition if
+     * the storage is at its item limit.  The count is summed over all partitions without locking them, so the
+     * limit is only approximately honoured under concurrent writes.
+     */
+    private void add(Partition partition, Key key, LocalCacheElement item) {
+        if (maximumItems > 0) {
+            while (size() >= maximumItems) {
+                if (!partition.evict(0)) break;
+            }
+        }
+        partition.add(key, item);
+    }
+
+    public final void close() throws IOException {
+        // ask the block stores to close; they clear themselves, after persistent stores have saved their contents
+        for (Partition partition : partitions) {
+            partition.lockWrite();
+            try {
+                partition.blockStore.close();
+            } finally {
+                partition.unlockWrite();
+            }
         }
         this.partitions = null;
     }
@@ -72,29 +302,20 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     public final LocalCacheElement putIfAbsent(Key key, LocalCacheElement item) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
 
             // not there? add it
             if (region == null) {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    numberItems++;
-                    partition.add(key, item);
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
+                add(partition, key, item);
                 return null;
             } else {
                 // there? return its value
-                return region.toValue();
+                return leasedValue(partition, region);
             }
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
@@ -107,34 +328,22 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
-
+        partition.lockWrite();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
-            if (region == null) return false;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems++;
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
+            if (region == null || !region.toValue().equals(value)) return false;
 
-            }
+            partition.remove(key, region);
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
 
@@ -142,33 +351,20 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
             if (region == null) return false;
 
             // there, check for equivalence of value
-            LocalCacheElement el = null;
-            el = region.toValue();
-            if (!el.equals(original)) {
-                return false;
-            } else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.remove(key, region);
-                    partition.add(key, replace);
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
-            }
+            if (!region.toValue().equals(original)) return false;
 
+            partition.remove(key, region);
+            add(partition, key, replace);
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final LocalCacheElement replace(Key key, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
 
@@ -176,31 +372,25 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
             if (region == null) return null;
 
             // there,
-            LocalCacheElement el = null;
-            el = region.toValue();
-            partition.storageLock.readLock().unlock();
-            partition.storageLock.writeLock().lock();
-            try {
-                partition.remove(key, region);
-                partition.add(key, replace);
-                return el;
-            } finally {
-                partition.storageLock.readLock().lock();
-                partition.storageLock.writeLock().unlock();
-            }
-
-
+            LocalCacheElement el = leasedValue(partition, region);
+            partition.remove(key, region);
+            add(partition, key, replace);
+            return el;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final int size() {
+        int numberItems = 0;
+        for (Partition partition : partitions) {
+            numberItems += partition.getNumberItems();
+        }
         return numberItems;
     }
 
     public final boolean isEmpty() {
-        return numberItems == 0;
+        return size() == 0;
     }
 
     public final boolean containsKey(Object okey) {
@@ -209,8 +399,22 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        if (optimisticReads) {
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+                int stamp = partition.optimisticStamp();
+                if (stamp == -1) continue;
+
+                try {
+                    boolean has = partition.has(key);
+                    if (partition.validate(stamp)) return has;
+                } catch (RuntimeException e) {
+                    // read was torn by a concurrent write; go around again
+                }
+            }
+        }
+
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             return partition.has(key);
         } finally {
             partition.storageLock.readLock().unlock();
@@ -227,42 +431,122 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        if (optimisticReads) {
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+                int stamp = partition.optimisticStamp();
+                if (stamp == -1) continue;
+
+                Lease lease = null;
+                try {
+                    Region region = partition.find(key);
+
+                    // validate before reading the value, so it is at least read with a sane region size
+                    if (!partition.validate(stamp)) continue;
+                    if (region == null) return null;
+
+                    // the lease must be in place before the final validation, for the region to be sure to
+                    // outlive the read
+                    lease = partition.blockStore.lease(region);
+                    LocalCacheElement value = region.toLeasedValue(lease);
+                    if (partition.validate(stamp)) return value;
+                } catch (RuntimeException e) {
+                    // read was torn by a concurrent write; go around again
+                }
+                if (lease != null) lease.release();
+            }
+        }
+
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
             if (region == null) return null;
-            return region.toValue();
+            return leasedValue(partition, region);
         } finally {
             partition.storageLock.readLock().unlock();
         }
     }
 
-    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
-        Partition partition = pickPartition(key);
+    /**
+     * Look up several keys at once.  The keys are grouped by partition, and each partition read locked just the once
+     * to look up all of its keys, one after another while its index is still in the cpu's cache, rather than once
+     * for each key.  Optimistic reads take no lock to be saved, so are made a key at a time as usual.
+     */
+    public final void getAll(Key[] keys, LocalCacheElement[] values) {
+        if (keys.length < 2 || optimisticReads) {
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = get(keys[i]);
+            }
+            return;
+        }
 
-        partition.storageLock.readLock().lock();
-        try {
-            Region region = partition.find(key);
+        // counting sort of the keys by partition, keeping their order within each
+        int count = partitions.length;
+        int[] partitionOf = new int[keys.length];
+        int[] starts = new int[count];
+        for (int i = 0; i < keys.length; i++) {
+            partitionOf[i] = partitionIndex(keys[i], count);
+            starts[partitionOf[i]]++;
+        }
+        for (int p = 1; p < count; p++) {
+            starts[p] += starts[p - 1];
+        }
+        int[] order = new int[keys.length];
+        for (int i = keys.length - 1; i >= 0; i--) {
+            order[--starts[partitionOf[i]]] = i;
+        }
 
-            partition.storageLock.readLock().unlock();
-            partition.storageLock.writeLock().lock();
+        int next = 0;
+        while (next < keys.length) {
+            int p = partitionOf[order[next]];
+            Partition partition = partitions[p];
+
+            partition.storageLock.readLock().lock();
             try {
-                LocalCacheElement old = null;
-                if (region != null) {
-                    old = region.toValue();
-                }
-                if (region != null) partition.remove(key, region);
-                partition.add(key, item);
-                numberItems++;
-                return old;
+                do {
+                    int i = order[next++];
+                    Region region = partition.find(keys[i]);
+                    values[i] = region == null ? null : leasedValue(partition, region);
+                } while (next < keys.length && partitionOf[order[next]] == p);
             } finally {
-                partition.storageLock.readLock().lock();
-                partition.storageLock.writeLock().unlock();
+                partition.storageLock.readLock().unlock();
             }
+        }
+    }
+
+    /**
+     * Sweep each partition a stretch of its index at a time, taking the write lock for no longer than a stretch
+     * takes, so as not to hold up the partition's commands for the whole of a sweep.
+     */
+    public final void sweep(Sweeper<LocalCacheElement> sweeper) {
+        for (Partition partition : partitions) {
+            int next = 0;
+            while (next != -1) {
+                partition.lockWrite();
+                try {
+                    next = partition.sweep(next, SWEEP_SLOTS, sweeper);
+                } finally {
+                    partition.unlockWrite();
+                }
+            }
+        }
+    }
 
+    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
+        Partition partition = pickPartition(key);
+
+        partition.lockWrite();
+        try {
+            Region region = partition.find(key);
 
+            LocalCacheElement old = null;
+            if (region != null) {
+                old = leasedValue(partition, region);
+                partition.remove(key, region);
+            }
+            add(partition, key, item);
+            return old;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
@@ -272,28 +556,16 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        partition.lockWrite();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
             if (region == null) return null;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    LocalCacheElement old = null;
-                    old = region.toValue();
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems--;
-                    return old;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
 
-            }
+            LocalCacheElement old = leasedValue(partition, region);
+            partition.remove(key, region);
+            return old;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
@@ -309,12 +581,11 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
 
     public final void clear() {
         for (Partition partition : partitions) {
-            partition.storageLock.writeLock().lock();
-            numberItems += partition.keys().size() * - 1;
+            partition.lockWrite();
             try {
                 partition.clear();
             } finally {
-                partition.storageLock.writeLock().unlock();
+                partition.unlockWrite();
             }
         }
 
@@ -323,7 +594,12 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
     public Set<Key> keySet() {
         Set<Key> keys = new HashSet<Key>();
         for (Partition partition : partitions) {
-            keys.addAll(partition.keys());
+            partition.storageLock.readLock().lock();
+            try {
+                keys.addAll(partition.keys());
+            } finally {
+                partition.storageLock.readLock().unlock();
+            }
         }
 
         return keys;
@@ -337,6 +613,13 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         throw new UnsupportedOperationException("operation not supported");
     }
 
+    /**
+     * Read the value of a region, with a lease on it; the partition must be locked.
+     */
+    private static LocalCacheElement leasedValue(Partition partition, Region region) {
+        return region.toLeasedValue(partition.blockStore.lease(region));
+    }
+
     protected static int hash(int h) {
         // Spread bits to regularize both segment and index locations,
         // using variant of single-word Wang/Jenkins hash.
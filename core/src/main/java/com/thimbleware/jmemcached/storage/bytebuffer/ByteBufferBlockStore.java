@@ -1,29 +1,58 @@
 package com.thimbleware.jmemcached.storage.bytebuffer;
 
-import com.thimbleware.jmemcached.util.OpenBitSet;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
- * Memory mapped block storage mechanism with a free-list maintained by TreeMap
+ * Block storage mechanism, with the choice of blocks to hand out left to a pluggable BlockAllocator.
  *
  * Allows memory for storage to be mapped outside of the VM's main memory, and outside the purvey
  * of the GC.
  *
- * Should offer O(Log(N)) search and free of blocks.
+ * A buffer can't be any bigger than Integer.MAX_VALUE bytes, so the store is split into segments of at most
+ * DEFAULT_SEGMENT_SIZE_BYTES, each a buffer with an allocator of its own.  Blocks are numbered across the
+ * whole store, and byte offsets into it are longs; a region always lies within the one segment, as it is
+ * handed out by that segment's allocator.
+ *
+ * Values may be read straight out of the store and written to clients without copying, under a Lease on their
+ * region.  A leased region can be freed, but its blocks only go back to the allocator once the last lease on
+ * it is released.
  */
 public class ByteBufferBlockStore {
 
-    protected ChannelBuffer storageBuffer;
+    /**
+     * The most a single segment of a store takes up, unless the factory says otherwise.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE_BYTES = 1024L * 1024 * 1024;
+
+    protected ChannelBuffer[] segments;
+
+    // blocks in each segment; segments all hold the same number of blocks
+    private int segmentBlocks;
 
     private long freeBytes;
 
     private long storeSizeBytes;
     private final int blockSizeBytes;
 
-    private OpenBitSet allocated;
+    private final BlockAllocatorFactory<?> allocatorFactory;
+    private BlockAllocator[] allocators;
+
+    // the segment allocations are tried in first, kept for as long as it has room
+    private int allocationSegment;
+
+    // the segment a region was last freed in, tried next, as that is where eviction will have made room
+    private int freedSegment;
+
+    // blocks free in each segment, so that a segment without room can be passed over without asking its allocator
+    private int[] segmentFreeBlocks;
+
+    // replaced by clear(), so leases taken out before then are released into a table nobody looks at any more
+    private volatile LeaseTable leases;
+
     private static final ByteBufferBlockStoreFactory BYTE_BUFFER_BLOCK_STORE_FACTORY = new ByteBufferBlockStoreFactory();
 
 
@@ -39,49 +68,117 @@ public class ByteBufferBlockStore {
         return BYTE_BUFFER_BLOCK_STORE_FACTORY;
     }
 
+    /**
+     * @param allocatorFactory the allocator to use in manufactured stores
+     */
+    public static BlockStoreFactory getFactory(BlockAllocatorFactory<?> allocatorFactory) {
+        return new ByteBufferBlockStoreFactory(allocatorFactory);
+    }
+
+    /**
+     * @param allocatorFactory the allocator to use in manufactured stores
+     * @param segmentSizeBytes the most a single segment of a manufactured store takes up
+     */
+    public static BlockStoreFactory getFactory(BlockAllocatorFactory<?> allocatorFactory, long segmentSizeBytes) {
+        return new ByteBufferBlockStoreFactory(allocatorFactory, segmentSizeBytes);
+    }
+
+    /**
+     * Manufactures stores held in direct buffers.  These come out of the JVM's direct memory, which by default is
+     * only as big as the heap, so a store bigger than that needs -XX:MaxDirectMemorySize set to at least its size.
+     */
     public static class ByteBufferBlockStoreFactory implements BlockStoreFactory<ByteBufferBlockStore> {
 
+        private final BlockAllocatorFactory<?> allocatorFactory;
+        private final long segmentSizeBytes;
+
+        public ByteBufferBlockStoreFactory() {
+            this(BitmapBlockAllocator.getFactory());
+        }
+
+        public ByteBufferBlockStoreFactory(BlockAllocatorFactory<?> allocatorFactory) {
+            this(allocatorFactory, DEFAULT_SEGMENT_SIZE_BYTES);
+        }
+
+        public ByteBufferBlockStoreFactory(BlockAllocatorFactory<?> allocatorFactory, long segmentSizeBytes) {
+            if (segmentSizeBytes <= 0 || segmentSizeBytes > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("segment size must be positive and fit in an int, was " + segmentSizeBytes);
+            this.allocatorFactory = allocatorFactory;
+            this.segmentSizeBytes = segmentSizeBytes;
+        }
+
         public ByteBufferBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
-            try {
-                ChannelBuffer buffer = ChannelBuffers.buffer((int) sizeBytes);
-                return new ByteBufferBlockStore(buffer, sizeBytes, blockSizeBytes);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            // direct buffers, to keep the store off the heap
+            int[] sizes = segmentSizes(sizeBytes, blockSizeBytes, segmentSizeBytes);
+            ChannelBuffer[] segments = new ChannelBuffer[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                segments[i] = ChannelBuffers.directBuffer(sizes[i]);
             }
+            return new ByteBufferBlockStore(segments, blockSizeBytes, allocatorFactory);
         }
     }
 
     /**
-     * Construct a new memory mapped block storage against a filename, with a certain size
-     * and block size.
-     * @param storageBuffer
+     * Construct a new block storage over the given segments.
+     * @param segments the buffers making up the store, as sized by segmentSizes()
      * @param blockSizeBytes the size of a block in the store
-     * @throws java.io.IOException thrown on failure to open the store or map the file
+     * @param allocatorFactory the allocator to hand out the blocks of the store
      */
-    private ByteBufferBlockStore(ChannelBuffer storageBuffer, long sizeBytes, int blockSizeBytes) throws IOException {
-        this.storageBuffer = storageBuffer;
+    private ByteBufferBlockStore(ChannelBuffer[] segments, int blockSizeBytes, BlockAllocatorFactory<?> allocatorFactory) {
         this.blockSizeBytes = blockSizeBytes;
-        initialize((int)sizeBytes);
+        this.allocatorFactory = allocatorFactory;
+        initialize(segments);
     }
 
     /**
-     * Constructor used only be subclasses, allowing them to provide their own buffer.
+     * Constructor used only be subclasses, allowing them to provide their own buffers.
      */
-    protected ByteBufferBlockStore(int blockSizeBytes) {
+    protected ByteBufferBlockStore(int blockSizeBytes, BlockAllocatorFactory<?> allocatorFactory) {
         this.blockSizeBytes = blockSizeBytes;
+        this.allocatorFactory = allocatorFactory;
     }
 
-    protected void initialize(int storeSizeBytes) {
-        // set the size of the store in bytes
-        this.storeSizeBytes = storageBuffer.capacity();
+    /**
+     * Work out how to split a store into segments.  A store that fits in a single segment gets exactly the
+     * size asked for; a bigger one is split evenly, each segment a whole number of blocks, losing the odd few
+     * blocks left over.
+     *
+     * @param segmentSizeBytes the most a segment may take up
+     * @return the size of each segment in bytes
+     * @throws IllegalArgumentException if the store has more blocks than an int can number
+     */
+    protected static int[] segmentSizes(long sizeBytes, int blockSizeBytes, long segmentSizeBytes) {
+        if (sizeBytes / blockSizeBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("store of " + sizeBytes + " bytes has too many blocks of " + blockSizeBytes +
+                    " bytes; use a bigger block size or more partitions");
+
+        int count = (int) ((sizeBytes + segmentSizeBytes - 1) / segmentSizeBytes);
+        int[] sizes = new int[Math.max(count, 1)];
+        if (count <= 1) {
+            sizes[0] = (int) sizeBytes;
+        } else {
+            long segmentSize = sizeBytes / count;
+            Arrays.fill(sizes, (int) (segmentSize - segmentSize % blockSizeBytes));
+        }
+        return sizes;
+    }
 
-        // the number of free bytes starts out as the entire store
-        freeBytes = storeSizeBytes;
+    protected void initialize(ChannelBuffer[] segments) {
+        this.segments = segments;
+        this.segmentBlocks = segments[0].capacity() / blockSizeBytes;
 
-        // clear the buffer
-        storageBuffer.clear();
+        allocators = new BlockAllocator[segments.length];
+        segmentFreeBlocks = new int[segments.length];
+        storeSizeBytes = 0;
+        for (int i = 0; i < segments.length; i++) {
+            // clear the buffer
+            segments[i].clear();
 
-        allocated = new OpenBitSet(storeSizeBytes / blockSizeBytes);
+            allocators[i] = allocatorFactory.manufacture(segments[i], blockSizeBytes);
+
+            // set the size of the store in bytes
+            storeSizeBytes += segments[i].capacity();
+        }
 
         clear();
     }
@@ -102,32 +199,26 @@ public class ByteBufferBlockStore {
      * @throws java.io.IOException thrown on failure to close file
      */
     public void close() throws IOException {
-        // clear the region list
-        clear();
+        // regions freed but still leased are as good as gone
+        freeReleased();
+        for (Region region : leases.abandon()) {
+            freeBlocks(region);
+        }
 
-        //
+        // release resources first, giving persistent stores the chance to save their state before it is cleared
         freeResources();
 
+        // clear the region list
+        clear();
+
         // null out the storage to allow the GC to get rid of it
-        storageBuffer = null;
+        segments = null;
     }
 
     protected void freeResources() throws IOException {
         // noop
     }
 
-    private int markPos(int numBlocks) {
-        int mark = allocated.mark(numBlocks);
-        if (mark == -1) throw new BadAllocationException("unable to allocate room; all blocks consumed");
-        return mark;
-    }
-
-
-
-    private void clear(int start, int numBlocks) {
-        allocated.clear(start, start + numBlocks);
-    }
-
     /**
      * Allocate a region in the block storage
      *
@@ -137,38 +228,239 @@ public class ByteBufferBlockStore {
      * @return the region descriptor
      */
     public Region alloc(int desiredSize, long expiry, long timestamp) {
-        final long desiredBlockSize = roundUp(desiredSize, blockSizeBytes);
-        int numBlocks = (int) (desiredBlockSize / blockSizeBytes);
+        Region region = tryAlloc(desiredSize, expiry, timestamp);
+        if (region == null) throw new BadAllocationException("unable to allocate room; all blocks consumed");
+        return region;
+    }
 
-        int pos = markPos(numBlocks);
+    /**
+     * Like alloc(), but returns null rather than throwing when the store is too full, so the caller can make
+     * room and try again.
+     */
+    public Region tryAlloc(int desiredSize, long expiry, long timestamp) {
+        int numBlocks = blocksFor(desiredSize);
+        freeReleased();
+
+        // at most three segments are tried, so that a full store costs a few probes rather than a search of every
+        // segment before each eviction: the current one, the one last freed in, and the one with the most room
+        for (int i = 0; i < 3; i++) {
+            int segment = i == 0 ? allocationSegment : i == 1 ? freedSegment : roomiestSegment();
+            if (i > 0 && segment == allocationSegment || i > 1 && segment == freedSegment) continue;
+            if (segmentFreeBlocks[segment] < numBlocks) continue;
+
+            int pos = allocators[segment].allocate(numBlocks);
+            if (pos == -1) continue;
+
+            allocationSegment = segment;
+            segmentFreeBlocks[segment] -= numBlocks;
+            freeBytes -= (long) numBlocks * blockSizeBytes;
+
+            // get the buffer to it
+            ChannelBuffer slice = segments[segment].slice(pos * blockSizeBytes, desiredSize);
+            slice.writerIndex(0);
+            slice.readerIndex(0);
+
+            return new Region(desiredSize, numBlocks, segment * segmentBlocks + pos, slice, expiry, timestamp);
+        }
 
-        freeBytes -= desiredBlockSize;
+        return null;
+    }
 
-        // get the buffer to it
-        int position = pos * blockSizeBytes;
-        ChannelBuffer slice = storageBuffer.slice(position, desiredSize);
-        slice.writerIndex(0);
-        slice.readerIndex(0);
+    private int roomiestSegment() {
+        int roomiest = 0;
+        for (int i = 1; i < segments.length; i++) {
+            if (segmentFreeBlocks[i] > segmentFreeBlocks[roomiest]) roomiest = i;
+        }
+        return roomiest;
+    }
 
-        return new Region(desiredSize, numBlocks, pos, slice, expiry, timestamp);
+    /**
+     * @return the number of blocks an allocation of the given size takes up
+     * @throws BadAllocationException if the allocator can never satisfy an allocation of that size
+     */
+    public int blocksFor(int desiredSize) {
+        int numBlocks = allocators[0].reservedBlocks((int) (roundUp(desiredSize, blockSizeBytes) / blockSizeBytes));
+        if (numBlocks == -1) throw new BadAllocationException("unable to allocate room; " + desiredSize + " bytes is larger than the allocator allows");
+        return numBlocks;
     }
 
     public ChannelBuffer get(int startBlock, int size) {
-        return storageBuffer.slice(startBlock * blockSizeBytes, size);
+        return segments[startBlock / segmentBlocks].slice((startBlock % segmentBlocks) * blockSizeBytes, size);
+    }
+
+    /**
+     * Compare a length prefixed run of bytes stored within a region against the given buffer, reading
+     * the store in place rather than slicing it.
+     *
+     * @param startBlock the start block of the region
+     * @param offset offset of the (int) length prefix within the region
+     * @param bytes the bytes to compare against
+     * @return true if the stored bytes match
+     */
+    public boolean lengthPrefixedEquals(int startBlock, int offset, ChannelBuffer bytes) {
+        ChannelBuffer segment = segments[startBlock / segmentBlocks];
+        int position = (startBlock % segmentBlocks) * blockSizeBytes + offset;
+        int length = bytes.capacity();
+        if (segment.getInt(position) != length) return false;
+
+        position += 4;
+        int i = 0;
+        if (segment.order() == bytes.order()) {
+            for (; i + 8 <= length; i += 8) {
+                if (segment.getLong(position + i) != bytes.getLong(i)) return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (segment.getByte(position + i) != bytes.getByte(i)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Receives the regions found in a persistent store when it is reopened.
+     */
+    public interface RegionVisitor {
+        void visit(Region region);
+    }
+
+    /**
+     * @return true if the contents of the store survive it being closed and reopened
+     */
+    public boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Hand every region left in the store from before it was last closed to the visitor.  Does nothing unless
+     * the store is persistent.
+     *
+     * @param partition the number of the partition the store belongs to
+     * @param partitions the total number of partitions; entries are only recovered into a storage laid out
+     * the same way as the one that stored them, as otherwise keys would hash to different partitions
+     */
+    public void recover(int partition, int partitions, RegionVisitor visitor) {
+    }
+
+    /**
+     * Have the store keep the cas below which items have been flushed along with its contents, so that flushed
+     * items not yet removed by the time it is closed aren't recovered.  Does nothing unless the store is
+     * persistent.
+     */
+    public void setFlushedBelow(long flushedBelow) {
+    }
+
+    /**
+     * @return the cas below which items had been flushed when the store was last closed, as found by recover();
+     * 0 if there is none
+     */
+    public long getFlushedBelow() {
+        return 0;
     }
 
+    /**
+     * Take account of a region recovered from a persistent store, whose blocks are already marked as allocated.
+     */
+    protected Region recovered(int startBlock, int size, long expiry, long timestamp) {
+        int numBlocks = blocksFor(size);
+        segmentFreeBlocks[startBlock / segmentBlocks] -= numBlocks;
+        freeBytes -= (long) numBlocks * blockSizeBytes;
+
+        return new Region(size, numBlocks, startBlock, get(startBlock, size), expiry, timestamp);
+    }
+
+    /**
+     * Take out a lease on a region, keeping its blocks from being reused until the lease is released.  Must
+     * be called with the partition's read or write lock held, or within an optimistic read which is validated
+     * after the lease is taken.
+     */
+    public Lease lease(Region region) {
+        return leases.acquire(region.startBlock);
+    }
+
+    /**
+     * Free a region, or if it is leased, leave its blocks to be freed once the last lease on it is released.
+     */
     public void free(Region region) {
-        freeBytes += (region.usedBlocks * blockSizeBytes);
         region.valid = false;
         region.slice = null;
-        int pos = region.startBlock;
-        clear(pos, region.size / blockSizeBytes);
+
+        if (!leases.defer(region)) freeBlocks(region);
+    }
+
+    /**
+     * Free the blocks of regions whose last lease has been released since they were freed.
+     */
+    public void freeReleased() {
+        Region region;
+        while ((region = leases.pollReleased()) != null) {
+            freeBlocks(region);
+        }
+    }
+
+    /**
+     * @return true if a region starting within the given range of blocks has been freed, but is still leased
+     */
+    public boolean isLeased(int startBlock, int endBlock) {
+        return leases.isDeferred(startBlock, endBlock);
+    }
+
+    private void freeBlocks(Region region) {
+        freeBytes += ((long) region.usedBlocks * blockSizeBytes);
+
+        int segment = region.startBlock / segmentBlocks;
+        allocators[segment].free(region.startBlock - segment * segmentBlocks, region.usedBlocks);
+        segmentFreeBlocks[segment] += region.usedBlocks;
+        freedSegment = segment;
+    }
+
+    /**
+     * @see BlockAllocator#canReuse(int, int)
+     */
+    public boolean canReuse(int freedBlocks, int numBlocks) {
+        // the segments' allocators are all alike
+        return allocators[0].canReuse(freedBlocks, numBlocks);
+    }
+
+    /**
+     * Have the allocator of one of the segments take blocks away from allocations of other sizes, starting with
+     * the segment allocations were last made in.
+     *
+     * @see BlockAllocator#reclaim(int, BlockAllocator.Evictor)
+     */
+    public boolean reclaim(int numBlocks, final BlockAllocator.Evictor evictor) {
+        for (int i = 0; i < segments.length; i++) {
+            int segment = (allocationSegment + i) % segments.length;
+            final int firstBlock = segment * segmentBlocks;
+
+            // the allocator works in blocks of its own segment
+            boolean reclaimed = allocators[segment].reclaim(numBlocks, new BlockAllocator.Evictor() {
+                public boolean evictRange(int startBlock, int endBlock) {
+                    return evictor.evictRange(firstBlock + startBlock, firstBlock + endBlock);
+                }
+            });
+            if (reclaimed) {
+                allocationSegment = segment;
+                return true;
+            }
+        }
+        return false;
     }
 
     public void clear()
     {
         // say goodbye to the region list
-        allocated = new OpenBitSet(allocated.size());
+        for (BlockAllocator allocator : allocators) {
+            allocator.clear();
+        }
+        allocationSegment = 0;
+        freedSegment = 0;
+        for (int i = 0; i < segments.length; i++) {
+            segmentFreeBlocks[i] = segments[i].capacity() / blockSizeBytes;
+        }
+
+        // leased regions are forgotten along with everything else
+        leases = new LeaseTable();
 
         // reset the # of free bytes back to the max size
         freeBytes = storeSizeBytes;
@@ -184,8 +476,27 @@ public class ByteBufferBlockStore {
         return blockSizeBytes;
     }
 
+    /**
+     * @return the bytes free, counting those of regions only waiting on the next allocation to be handed back to
+     * the allocator, their leases all released
+     */
     public long getFreeBytes() {
-        return freeBytes;
+        return freeBytes + leases.getReleasedBlocks() * blockSizeBytes;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return the number of blocks in each segment, and so the number of the first block of the second
+     */
+    public int getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    public BlockAllocator getAllocator(int segment) {
+        return allocators[segment];
     }
 
 
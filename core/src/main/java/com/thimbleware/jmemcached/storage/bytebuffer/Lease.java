@@ -0,0 +1,24 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+/**
+ * A hold on a region of a block store, keeping its blocks from being freed and reused while a value read from
+ * them is still in use; typically until it has been written out to a client.  Must be released exactly once.
+ */
+public final class Lease {
+
+    private final LeaseTable table;
+    // the count the lease was taken out under
+    private final int count;
+
+    Lease(LeaseTable table, int count) {
+        this.table = table;
+        this.count = count;
+    }
+
+    /**
+     * Give up the hold on the region.  Safe to call from any thread, without locking.
+     */
+    public void release() {
+        table.release(count);
+    }
+}
@@ -0,0 +1,189 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The leases held on the regions of a block store, and the regions freed while leased.  The blocks of a region
+ * freed while leased are only handed back to the allocator once its leases are all released, by way of the
+ * released queue, which the store drains with its partition's write lock held.
+ *
+ * Leases are counted per slot, a slot covering every region whose start block hashes to it, so taking one out
+ * is no more than an atomic increment.  Each slot counts its leases under one of two generations, by parity.  A
+ * region freed while leased starts a grace period: the slot moves on to the next generation, and the region waits
+ * only for the leases of the one before to be released, not for the slot to fall idle, so it can't be held back
+ * for long by a slot that is never quite free of leases.  Regions freed while a grace period is underway wait for
+ * the next, which starts as soon as the current one ends.  Regions are kept per slot, so the release ending a
+ * grace period only looks at the regions of its own slot.
+ *
+ * Leases are taken out with the partition's read or write lock held, or during an optimistic read which is
+ * validated afterwards, so never on a region already freed.  They may be released from any thread.
+ */
+final class LeaseTable {
+
+    private static final int SLOT_BITS = 10;
+
+    // counts are spaced a cache line apart, so that readers leasing different regions don't contend
+    private static final int SPACING = 16;
+
+    // each slot's line holds its count for either parity, then its generation
+    private static final int GENERATION = 2;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray((1 << SLOT_BITS) * SPACING);
+    private final Waiting[] waiting = new Waiting[1 << SLOT_BITS];
+    private final Queue<Region> released = new ConcurrentLinkedQueue<Region>();
+    private final AtomicLong releasedBlocks = new AtomicLong();
+
+    /**
+     * The regions of a slot freed while leased.  Guarded by itself.
+     */
+    private static final class Waiting {
+        // waiting for the leases of the previous generation to be released
+        List<Region> draining;
+        // freed during a grace period, so waiting for the next one
+        List<Region> pending;
+    }
+
+    LeaseTable() {
+        for (int i = 0; i < waiting.length; i++) {
+            waiting[i] = new Waiting();
+        }
+    }
+
+    private static int slot(int startBlock) {
+        return ((startBlock * 0x9e3779b9) >>> (32 - SLOT_BITS)) * SPACING;
+    }
+
+    Lease acquire(int startBlock) {
+        int slot = slot(startBlock);
+        while (true) {
+            int count = slot + (counts.get(slot + GENERATION) & 1);
+            counts.incrementAndGet(count);
+
+            // the generation moved on in between; count the lease under the new one instead, as a grace period
+            // started after this point doesn't wait for the old one
+            if (count == slot + (counts.get(slot + GENERATION) & 1)) return new Lease(this, count);
+            release(count);
+        }
+    }
+
+    void release(int count) {
+        if (counts.decrementAndGet(count) != 0) return;
+
+        // only the previous generation draining ends a grace period; that of the current one is the usual case
+        int slot = count - count % SPACING;
+        if (count == slot + (counts.get(slot + GENERATION) & 1)) return;
+
+        Waiting w = waiting[slot / SPACING];
+        synchronized (w) {
+            endGracePeriods(w, slot);
+        }
+    }
+
+    /**
+     * Release the regions of a slot whose grace period is over, moving on to the next for any still pending.
+     */
+    private void endGracePeriods(Waiting w, int slot) {
+        while (w.draining != null && counts.get(slot + (~counts.get(slot + GENERATION) & 1)) == 0) {
+            for (Region region : w.draining) {
+                releasedBlocks.addAndGet(region.usedBlocks);
+                released.add(region);
+            }
+            w.draining = w.pending;
+            w.pending = null;
+            if (w.draining != null) counts.incrementAndGet(slot + GENERATION);
+        }
+    }
+
+    /**
+     * Called as a region is freed, with its partition's write lock held.
+     *
+     * @return true if the region is leased, in which case it turns up in the released queue once it no longer is
+     */
+    boolean defer(Region region) {
+        int slot = slot(region.startBlock);
+
+        // no lease, and none can be taken out with the write lock held
+        if (counts.get(slot) == 0 && counts.get(slot + 1) == 0) return false;
+
+        Waiting w = waiting[slot / SPACING];
+        synchronized (w) {
+            if (w.draining != null) {
+                if (w.pending == null) w.pending = new ArrayList<Region>(2);
+                w.pending.add(region);
+                return true;
+            }
+
+            // start a grace period; incrementing the generation before looking at the count again means either
+            // this sees a lease taken out meanwhile, or the lease sees the new generation and is counted under it
+            w.draining = new ArrayList<Region>(2);
+            w.draining.add(region);
+            counts.incrementAndGet(slot + GENERATION);
+            if (counts.get(slot + (~counts.get(slot + GENERATION) & 1)) > 0) return true;
+
+            // the leases went in the meantime
+            w.draining = null;
+            return false;
+        }
+    }
+
+    /**
+     * @return a region whose leases have all been released since it was freed, or null if there is none
+     */
+    Region pollReleased() {
+        Region region = released.poll();
+        if (region != null) releasedBlocks.addAndGet(-region.usedBlocks);
+        return region;
+    }
+
+    /**
+     * @return the number of blocks in the released queue, free in all but name
+     */
+    long getReleasedBlocks() {
+        return releasedBlocks.get();
+    }
+
+    /**
+     * Give up waiting on the leases of freed regions, as the store is closing.
+     *
+     * @return the regions freed but still leased
+     */
+    Collection<Region> abandon() {
+        List<Region> regions = new ArrayList<Region>();
+        for (Waiting w : waiting) {
+            synchronized (w) {
+                if (w.draining != null) regions.addAll(w.draining);
+                if (w.pending != null) regions.addAll(w.pending);
+                w.draining = null;
+                w.pending = null;
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * @return true if some region freed but still leased starts within the given range of blocks
+     */
+    boolean isDeferred(int startBlock, int endBlock) {
+        for (Waiting w : waiting) {
+            synchronized (w) {
+                if (startsWithin(w.draining, startBlock, endBlock) || startsWithin(w.pending, startBlock, endBlock))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithin(List<Region> regions, int startBlock, int endBlock) {
+        if (regions == null) return false;
+        for (Region region : regions) {
+            if (region.startBlock >= startBlock && region.startBlock < endBlock) return true;
+        }
+        return false;
+    }
+}
@@ -2,175 +2,230 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+import com.thimbleware.jmemcached.storage.CacheStorage;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * A slice of the block storage, with its own block store, index and lock.
+ *
+ * Makes room for new entries by evicting old ones, chosen by the index's CLOCK hand, whenever the block store
+ * is full or the partition's share of the memory ceiling is reached.
  */
-public final class Partition {
-    private static final int NUM_BUCKETS = 32768;
+public final class Partition implements BlockAllocator.Evictor {
 
     ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
 
-    ChannelBuffer[] buckets = new ChannelBuffer[NUM_BUCKETS];
+    /**
+     * Sequence counter for optimistic readers, bumped on either side of every write.  Odd while a write is
+     * in progress.
+     */
+    private final AtomicInteger sequence = new AtomicInteger();
 
     ByteBufferBlockStore blockStore;
 
-    int numberItems;
+    final RegionIndex index;
 
-    Partition(ByteBufferBlockStore blockStore) {
+    /**
+     * Bytes of the block store this partition may use before it starts evicting; 0 for all of it
+     */
+    private final long ceilingBytes;
+
+    private long evictions;
+
+    private long maxRecoveredCasUnique;
+
+    private final SlotRemoval removal = new SlotRemoval();
+
+    Partition(ByteBufferBlockStore blockStore, long ceilingBytes) {
         this.blockStore = blockStore;
+        this.index = new RegionIndex(blockStore);
+        this.ceilingBytes = ceilingBytes;
     }
 
-    public Region find(Key key) {
-        int bucket = findBucketNum(key);
-
-        if (buckets[bucket] == null) return null;
-        ChannelBuffer regions = buckets[bucket].slice();
-
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            int rsize = regions.readInt();
-            int rusedBlocks = regions.readInt();
-            int rstartBlock = regions.readInt();
-            long expiry = regions.readLong();
-            long timestamp = regions.readLong();
-            int rkeySize = regions.readInt();
-
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
-
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return new Region(rsize, rusedBlocks, rstartBlock, blockStore.get(rstartBlock, rsize), expiry, timestamp);
-            } else {
-                regions.skipBytes(rkeySize);
-            }
-        }
+    void lockWrite() {
+        storageLock.writeLock().lock();
+        // an atomic increment, both a volatile read and write, so that none of the write's stores can be seen
+        // before the odd sequence is
+        sequence.incrementAndGet();
+    }
 
-        return null;
+    void unlockWrite() {
+        // an ordered store: every store of the write is seen before the sequence turns even again
+        sequence.lazySet(sequence.get() + 1);
+        storageLock.writeLock().unlock();
     }
 
-    public boolean has(Key key) {
-        int bucket = findBucketNum(key);
+    /**
+     * Begin an optimistic read, performed without holding any lock.
+     *
+     * @return a stamp to be checked with validate() once the read is done, or -1 if a write is in progress
+     */
+    int optimisticStamp() {
+        int stamp = sequence.get();
+        return (stamp & 1) == 0 ? stamp : -1;
+    }
+
+    /**
+     * @return true if no write has happened since the stamp was taken, meaning whatever was read in between
+     * is consistent
+     */
+    boolean validate(int stamp) {
+        // a compare and set rather than a plain volatile read, for its full fence: a volatile read only keeps the
+        // loads after it from moving ahead, not the reads being validated, which come before it, from moving past
+        // it (StampedLock.validate() has a load fence for the same reason)
+        return sequence.compareAndSet(stamp, stamp);
+    }
 
-        if (buckets[bucket] == null) return false;
-        ChannelBuffer regions = buckets[bucket].slice();
+    public Region find(Key key) {
+        return index.find(key);
+    }
 
+    public boolean has(Key key) {
+        return index.contains(key);
+    }
 
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
+    /**
+     * Remove the entry for a key, releasing the blocks held by its region.
+     */
+    public void remove(Key key, Region region) {
+        if (index.remove(key)) blockStore.free(region);
+    }
+
+    public Region add(Key key, LocalCacheElement e) {
+        blockStore.freeReleased();
 
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
+        int size = e.bufferSize();
+        int neededBlocks = blockStore.blocksFor(size);
 
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return true;
-            } else {
-                regions.skipBytes(rkeySize);
+        if (ceilingBytes > 0) {
+            long neededBytes = (long) neededBlocks * blockStore.getBlockSizeBytes();
+            while (blockStore.getStoreSizeBytes() - blockStore.getFreeBytes() + neededBytes > ceilingBytes) {
+                if (!evict(0)) break;
             }
         }
 
-        return false;
+        Region region;
+        while ((region = blockStore.tryAlloc(size, e.getExpire(), System.currentTimeMillis())) == null) {
+            if (!evict(neededBlocks) && !blockStore.reclaim(neededBlocks, this))
+                throw new ByteBufferBlockStore.BadAllocationException("unable to allocate room; nothing left to evict");
+        }
+
+        e.writeToBuffer(region.slice);
+        index.add(key, region);
+
+        return region;
     }
 
-    private int findBucketNum(Key key) {
-        int hash = BlockStorageCacheStorage.hash(key.hashCode());
-        return hash & (buckets.length - 1);
+    /**
+     * Evict a single entry.
+     *
+     * @param neededBlocks the size of the allocation being made room for, or 0 for any entry
+     * @return false if there was nothing suitable to evict
+     */
+    public boolean evict(int neededBlocks) {
+        Region victim = index.evict(neededBlocks);
+        if (victim == null) return false;
+
+        blockStore.free(victim);
+        evictions++;
+        return true;
     }
 
-    public void remove(Key key, Region region) {
-        int bucket = findBucketNum(key);
-
-        ChannelBuffer newRegion = ChannelBuffers.dynamicBuffer(128);
-        ChannelBuffer regions = buckets[bucket].slice();
-        if (regions == null) return;
-
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            // read key portion then region portion
-            int pos = regions.readerIndex();
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
-            ChannelBuffer rkey = regions.readBytes(rkeySize);
-
-            if (rkeySize != key.bytes.capacity() || !rkey.equals(key.bytes)) {
-                newRegion.writeBytes(regions.slice(pos, regions.readerIndex()));
-            }
+    public boolean evictRange(int startBlock, int endBlock) {
+        for (Region victim : index.evictRange(startBlock, endBlock)) {
+            blockStore.free(victim);
+            evictions++;
         }
 
-        buckets[bucket] = newRegion;
-
-        numberItems--;
+        blockStore.freeReleased();
+        return !blockStore.isLeased(startBlock, endBlock);
     }
 
-    public Region add(Key key, LocalCacheElement e) {
-        Region region = blockStore.alloc(e.bufferSize(), e.getExpire(), System.currentTimeMillis());
-        e.writeToBuffer(region.slice);
-        int bucket = findBucketNum(key);
-
-        ChannelBuffer outbuf = ChannelBuffers.directBuffer(32 + key.bytes.capacity());
-        outbuf.writeInt(region.size);
-        outbuf.writeInt(region.usedBlocks);
-        outbuf.writeInt(region.startBlock);
-        outbuf.writeLong(region.expiry);
-        outbuf.writeLong(region.timestamp);
-        outbuf.writeInt(key.bytes.capacity());
-        key.bytes.readerIndex(0);
-        outbuf.writeBytes(key.bytes);
-
-        ChannelBuffer regions = buckets[bucket];
-        if (regions == null) {
-            regions = ChannelBuffers.dynamicBuffer(128);
-            buckets[bucket] = regions;
+    /**
+     * Sweep a stretch of the index, letting the sweeper remove entries as it goes.
+     *
+     * @return the slot to carry on from, or -1 once the end of the index is reached
+     */
+    int sweep(int from, int slots, CacheStorage.Sweeper<LocalCacheElement> sweeper) {
+        int capacity = index.settle();
+        int end = Math.min(from + slots, capacity);
+        for (int i = from; i < end; i++) {
+            Region region = index.regionAt(i);
+            if (region == null) continue;
+
+            removal.slot = i;
+            removal.region = region;
+            removal.removed = false;
+            sweeper.visit(region.toValue(), removal);
+
+            // removing may have shifted an entry not yet looked at back into this slot
+            if (removal.removed) i--;
         }
+        return end < capacity ? end : -1;
+    }
 
-        regions.writeInt(outbuf.capacity());
-        regions.writeBytes(outbuf);
+    /**
+     * Removes the entry a sweep is looking at.  Only used with the write lock held, so the one will do.
+     */
+    private final class SlotRemoval implements CacheStorage.Removal {
+        int slot;
+        Region region;
+        boolean removed;
+
+        public boolean remove() {
+            if (removed) return false;
+
+            index.removeAt(slot);
+            blockStore.free(region);
+            removed = true;
+            return true;
+        }
+    }
 
-        numberItems++;
+    /**
+     * Rebuild the index from the regions left in a persistent block store by a previous run, freeing those of
+     * items flushed before it was closed.
+     *
+     * @param number the number of this partition
+     * @param partitions the total number of partitions
+     */
+    void recover(int number, int partitions) {
+        blockStore.recover(number, partitions, new ByteBufferBlockStore.RegionVisitor() {
+            public void visit(Region region) {
+                long casUnique = region.toValue().getCasUnique();
+                if (casUnique < blockStore.getFlushedBelow()) {
+                    blockStore.free(region);
+                    return;
+                }
 
-        return region;
+                int keyLength = region.slice.getInt(RegionIndex.KEY_OFFSET);
+                index.add(new Key(region.slice.copy(RegionIndex.KEY_OFFSET + 4, keyLength)), region);
+                maxRecoveredCasUnique = Math.max(maxRecoveredCasUnique, casUnique);
+            }
+        });
     }
 
     public void clear() {
-        for (ChannelBuffer bucket : buckets) {
-            if (bucket != null)
-                bucket.clear();
-        }
+        index.clear();
         blockStore.clear();
-        numberItems = 0;
     }
 
     public Collection<Key> keys() {
-        Set<Key> keys = new HashSet<Key>();
-
-        for (ChannelBuffer regionsa : buckets) {
-            if (regionsa != null) {
-                ChannelBuffer regions = regionsa.slice();
-                regions.readerIndex(0);
-                while (regions.readableBytes() > 0) {
-                    // read key portion then region portion
-                    int totsize = regions.readInt();
-                    regions.skipBytes(28);
-                    int rkeySize = regions.readInt();
-                    ChannelBuffer rkey = regions.readBytes(rkeySize);
-
-                    keys.add(new Key(rkey));
-                }
-            }
-        }
-        return keys;
+        return index.keys();
     }
 
     public int getNumberItems() {
-        return numberItems;
+        return index.size();
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getMaxRecoveredCasUnique() {
+        return maxRecoveredCasUnique;
     }
 }
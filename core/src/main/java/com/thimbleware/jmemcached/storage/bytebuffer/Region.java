@@ -57,9 +57,22 @@ public final class Region {
         return new Key(slice.slice(slice.readerIndex(), length));
     }
 
+    /**
+     * @return a view onto the element stored in the region, only valid for as long as the region is
+     */
     public LocalCacheElement toValue() {
-        slice.readerIndex(0);
-        return LocalCacheElement.readFromBuffer(slice);
+        return LocalCacheElement.viewOf(slice, 0);
+    }
+
+    /**
+     * Like toValue(), with the value holding a lease on the region until it is released, so that it can go on
+     * being read after the partition lock is let go.
+     */
+    public LocalCacheElement toLeasedValue(Lease lease) {
+        LocalCacheElement value = toValue();
+        value.setLease(lease);
+        return value;
     }
 
+
 }
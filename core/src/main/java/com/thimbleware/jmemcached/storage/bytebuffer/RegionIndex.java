@@ -0,0 +1,416 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import com.thimbleware.jmemcached.Key;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Open addressing (linear probing) hash index of the regions held by a partition, kept in a single
+ * direct buffer outside of the heap.
+ *
+ * Every slot is a fixed width record holding the hash fingerprint of the key along with the start block,
+ * size, block count, expiry and timestamp of its region, and a CLOCK reference bit set whenever the entry is
+ * found. Keys are not copied into the index; a fingerprint match is confirmed against the key stored at the
+ * head of the region itself.
+ *
+ * Deletes use backward shifting, so the table never accumulates tombstones. Growing the table is done
+ * incrementally: a table of twice the size is allocated and each following mutation migrates a bounded
+ * number of slots across, so no single write pays for a full rehash.
+ *
+ * Not thread safe; writers are expected to hold the partition's write lock. Readers either hold the read lock
+ * or read optimistically and validate against the partition's sequence afterwards, in which case they must be
+ * prepared for garbage results or exceptions from a read torn by a concurrent write.
+ */
+public final class RegionIndex {
+    static final int SLOT_SIZE = 32;
+
+    // slot layout
+    private static final int HASH = 0;
+    private static final int START_BLOCK = 4;
+    private static final int SIZE = 8;
+    private static final int USED_BLOCKS = 12;
+    private static final int EXPIRY = 16;
+    private static final int TIMESTAMP = 24;   // seconds
+    private static final int REFERENCED = 28;
+
+    private static final int EMPTY = 0;
+
+    /**
+     * Marks a removed entry in a table which is being migrated away from.  Only ever found in the old table.
+     */
+    private static final int TOMBSTONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAXIMUM_CAPACITY = 1 << 25;
+    private static final int MIGRATION_STEP = 16;
+
+    /**
+     * Offset within a region of the length prefixed key, as laid down by LocalCacheElement.writeToBuffer
+     */
+    static final int KEY_OFFSET = 12;
+
+    private final ByteBufferBlockStore blockStore;
+
+    private ChannelBuffer table;
+    private int mask;
+    private int threshold;
+
+    // table being migrated from during an incremental resize, and the number of its slots already moved
+    private ChannelBuffer oldTable;
+    private int oldMask;
+    private int migrated;
+
+    private int size;
+
+    // CLOCK hand for eviction
+    private int hand;
+
+    public RegionIndex(ByteBufferBlockStore blockStore) {
+        this.blockStore = blockStore;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Fingerprint used for slot selection.  Deliberately mixed differently from the hash used to pick the
+     * partition, otherwise all keys landing in a partition would share their low bits and pile up in a
+     * fraction of the slots.
+     */
+    static int hash(Key key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h == EMPTY ? 1 : h;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Region find(Key key) {
+        // fields are read once each, as optimistic readers may be running alongside a writer
+        int hash = hash(key);
+        ChannelBuffer t = table;
+        int slot = locate(t, mask, 0, hash, key);
+        if (slot != -1) return reference(t, slot);
+
+        t = oldTable;
+        if (t != null) {
+            slot = locate(t, oldMask, migrated, hash, key);
+            if (slot != -1) return reference(t, slot);
+        }
+
+        return null;
+    }
+
+    private Region reference(ChannelBuffer t, int slot) {
+        // optimistic readers get here without the lock, so this store can race with a writer.  That is benign:
+        // it is a lone byte store to a flag that only steers the CLOCK hand, so at worst it marks the wrong
+        // entry, or a slot just emptied (insert clears the flag), or a table already migrated away; and no
+        // other field is touched.  Skipped when already set, to keep from dirtying the cache line on every hit
+        int referenced = slot * SLOT_SIZE + REFERENCED;
+        if (t.getByte(referenced) == 0) t.setByte(referenced, 1);
+
+        return region(t, slot);
+    }
+
+    public boolean contains(Key key) {
+        int hash = hash(key);
+        if (locate(table, mask, 0, hash, key) != -1) return true;
+
+        ChannelBuffer t = oldTable;
+        return t != null && locate(t, oldMask, migrated, hash, key) != -1;
+    }
+
+    public void add(Key key, Region region) {
+        if (size >= threshold) grow();
+        migrate(MIGRATION_STEP);
+
+        insert(table, mask, hash(key), region.startBlock, region.size, region.usedBlocks, region.expiry, region.timestamp);
+        size++;
+    }
+
+    public boolean remove(Key key) {
+        int hash = hash(key);
+        boolean removed = false;
+
+        int slot = locate(table, mask, 0, hash, key);
+        if (slot != -1) {
+            delete(table, mask, slot);
+            removed = true;
+        } else if (oldTable != null) {
+            slot = locate(oldTable, oldMask, migrated, hash, key);
+            if (slot != -1) {
+                // can't shift entries around in a table that is partially migrated, so leave a marker instead
+                oldTable.setInt(slot * SLOT_SIZE + SIZE, TOMBSTONE);
+                removed = true;
+            }
+        }
+
+        if (removed) {
+            size--;
+            migrate(MIGRATION_STEP);
+        }
+        return removed;
+    }
+
+    public void clear() {
+        oldTable = null;
+        migrated = 0;
+        size = 0;
+        hand = 0;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Pick an entry to evict by the CLOCK algorithm and remove it from the index.  The hand sweeps the table,
+     * clearing reference bits as it goes, and stops at the first entry that hasn't been referenced since the
+     * last time the hand passed it.
+     *
+     * @param neededBlocks the number of blocks about to be allocated; only entries whose blocks the allocator
+     * can reuse for an allocation of that size are considered.  Zero to consider all entries.
+     * @return the region of the evicted entry, which is left for the caller to free, or null if there is no
+     * suitable entry
+     */
+    public Region evict(int neededBlocks) {
+        if (size == 0) return null;
+
+        // sweeping only the one table keeps the hand simple, and eviction only happens with the store full,
+        // when a resize is rarely underway anyway
+        if (oldTable != null) migrate(oldMask + 1);
+
+        int i = hand & mask;
+
+        // two full turns: the first may do no more than clear reference bits
+        for (int scanned = 0; scanned < (mask + 1) * 2; scanned++, i = (i + 1) & mask) {
+            int base = i * SLOT_SIZE;
+            if (table.getInt(base + HASH) == EMPTY) continue;
+            if (neededBlocks > 0 && !blockStore.canReuse(table.getInt(base + USED_BLOCKS), neededBlocks)) continue;
+
+            if (table.getByte(base + REFERENCED) != 0) {
+                table.setByte(base + REFERENCED, 0);
+                continue;
+            }
+
+            Region victim = region(table, i);
+            delete(table, mask, i);
+            size--;
+
+            // deleting may shift the next entry back into this slot, so the hand stays put
+            hand = i;
+            return victim;
+        }
+
+        hand = i;
+        return null;
+    }
+
+    public Collection<Key> keys() {
+        Set<Key> keys = new HashSet<Key>();
+        collectKeys(table, mask, 0, keys);
+        if (oldTable != null) collectKeys(oldTable, oldMask, migrated, keys);
+
+        return keys;
+    }
+
+    /**
+     * Remove every entry whose region starts within the given range of blocks.
+     *
+     * @return the regions of the removed entries, left for the caller to free
+     */
+    public List<Region> evictRange(int startBlock, int endBlock) {
+        if (oldTable != null) migrate(oldMask + 1);
+
+        List<Region> evicted = new ArrayList<Region>();
+        for (int i = 0; i <= mask; i++) {
+            int base = i * SLOT_SIZE;
+            if (table.getInt(base + HASH) == EMPTY) continue;
+
+            int start = table.getInt(base + START_BLOCK);
+            if (start < startBlock || start >= endBlock) continue;
+
+            evicted.add(region(table, i));
+            delete(table, mask, i);
+            size--;
+
+            // deleting may have shifted an entry not yet looked at back into this slot
+            i--;
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Finish off any resize underway, so that the entries can be gone through a slot at a time.
+     *
+     * @return the number of slots
+     */
+    public int settle() {
+        if (oldTable != null) migrate(oldMask + 1);
+        return mask + 1;
+    }
+
+    /**
+     * @return the region of the entry in the given slot of a settled index, or null if the slot is empty
+     */
+    public Region regionAt(int slot) {
+        return table.getInt(slot * SLOT_SIZE + HASH) == EMPTY ? null : region(table, slot);
+    }
+
+    /**
+     * Remove the entry in the given slot of a settled index.  An entry further along may be shifted back into
+     * the slot.
+     */
+    public void removeAt(int slot) {
+        delete(table, mask, slot);
+        size--;
+    }
+
+    private void collectKeys(ChannelBuffer t, int m, int from, Set<Key> keys) {
+        for (int i = from; i <= m; i++) {
+            int base = i * SLOT_SIZE;
+            if (t.getInt(base + HASH) == EMPTY || t.getInt(base + SIZE) == TOMBSTONE) continue;
+
+            ChannelBuffer region = blockStore.get(t.getInt(base + START_BLOCK), t.getInt(base + SIZE));
+            int keyLength = region.getInt(KEY_OFFSET);
+            keys.add(new Key(region.copy(KEY_OFFSET + 4, keyLength)));
+        }
+    }
+
+    /**
+     * Find the slot holding the given key.
+     *
+     * @param skipBelow slots below this index have been migrated out of the table and are to be disregarded
+     * @return the slot number, or -1 if the key is not present
+     */
+    private int locate(ChannelBuffer t, int m, int skipBelow, int hash, Key key) {
+        int i = hash & m;
+
+        // the start of this key's probe run has been migrated already; anything of the run still left in this
+        // table must lie further along, past the migrated slots
+        if (i < skipBelow) i = skipBelow;
+
+        for (int probes = 0; probes <= m; probes++) {
+            int base = i * SLOT_SIZE;
+            int h = t.getInt(base + HASH);
+            if (h == EMPTY) return -1;
+
+            if (h == hash && t.getInt(base + SIZE) != TOMBSTONE &&
+                    blockStore.lengthPrefixedEquals(t.getInt(base + START_BLOCK), KEY_OFFSET, key.bytes))
+                return i;
+
+            // a run wrapping around from the end of the table continues past the migrated slots
+            i = (i + 1) & m;
+            if (i < skipBelow) i = skipBelow;
+        }
+
+        return -1;
+    }
+
+    private Region region(ChannelBuffer t, int slot) {
+        int base = slot * SLOT_SIZE;
+        int startBlock = t.getInt(base + START_BLOCK);
+        int regionSize = t.getInt(base + SIZE);
+
+        return new Region(regionSize, t.getInt(base + USED_BLOCKS), startBlock, blockStore.get(startBlock, regionSize),
+                t.getLong(base + EXPIRY), t.getInt(base + TIMESTAMP) * 1000L);
+    }
+
+    private static void insert(ChannelBuffer t, int m, int hash, int startBlock, int regionSize, int usedBlocks, long expiry, long timestamp) {
+        int i = hash & m;
+        while (t.getInt(i * SLOT_SIZE + HASH) != EMPTY) {
+            i = (i + 1) & m;
+        }
+
+        int base = i * SLOT_SIZE;
+        t.setInt(base + HASH, hash);
+        t.setInt(base + START_BLOCK, startBlock);
+        t.setInt(base + SIZE, regionSize);
+        t.setInt(base + USED_BLOCKS, usedBlocks);
+        t.setLong(base + EXPIRY, expiry);
+        t.setInt(base + TIMESTAMP, (int) (timestamp / 1000));
+        t.setInt(base + REFERENCED, 0);
+    }
+
+    /**
+     * Empty a slot, shifting back any later entries of the same probe run so that lookups never have to
+     * step over holes.  A table grown to its maximum capacity can be full, with no empty slot to end the run,
+     * so the scan stops after going once round the table.
+     */
+    private static void delete(ChannelBuffer t, int m, int i) {
+        int j = i;
+        for (int probes = 0; probes < m; probes++) {
+            j = (j + 1) & m;
+            int h = t.getInt(j * SLOT_SIZE + HASH);
+            if (h == EMPTY) break;
+
+            // the entry at j may fill the hole at i only if its home slot does not lie cyclically within (i, j]
+            int home = h & m;
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                copySlot(t, j, i);
+                i = j;
+            }
+        }
+
+        t.setZero(i * SLOT_SIZE, SLOT_SIZE);
+    }
+
+    private static void copySlot(ChannelBuffer t, int from, int to) {
+        int src = from * SLOT_SIZE;
+        int dst = to * SLOT_SIZE;
+        for (int off = 0; off < SLOT_SIZE; off += 8) {
+            t.setLong(dst + off, t.getLong(src + off));
+        }
+    }
+
+    private void grow() {
+        // finish off any resize still underway before starting another
+        if (oldTable != null) migrate(oldMask + 1);
+
+        int capacity = mask + 1;
+        if (capacity >= MAXIMUM_CAPACITY) {
+            if (size > mask) throw new ByteBufferBlockStore.BadAllocationException("region index is full");
+            return;
+        }
+
+        oldTable = table;
+        oldMask = mask;
+        migrated = 0;
+        allocate(capacity << 1);
+    }
+
+    private void migrate(int slots) {
+        if (oldTable == null) return;
+
+        int end = Math.min(migrated + slots, oldMask + 1);
+        while (migrated < end) {
+            int base = migrated * SLOT_SIZE;
+            int h = oldTable.getInt(base + HASH);
+            if (h != EMPTY && oldTable.getInt(base + SIZE) != TOMBSTONE) {
+                insert(table, mask, h, oldTable.getInt(base + START_BLOCK), oldTable.getInt(base + SIZE),
+                        oldTable.getInt(base + USED_BLOCKS), oldTable.getLong(base + EXPIRY), oldTable.getInt(base + TIMESTAMP) * 1000L);
+            }
+            migrated++;
+        }
+
+        if (migrated > oldMask) {
+            oldTable = null;
+            migrated = 0;
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = ChannelBuffers.directBuffer(capacity * SLOT_SIZE);
+        table.setZero(0, table.capacity());
+        mask = capacity - 1;
+        threshold = capacity == MAXIMUM_CAPACITY ? capacity : capacity - (capacity >>> 2);
+    }
+}
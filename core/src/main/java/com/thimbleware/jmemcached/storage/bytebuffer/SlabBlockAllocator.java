@@ -0,0 +1,314 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Memcached style slab allocator.
+ *
+ * Requests are rounded up to one of a set of size classes, whose chunk sizes grow geometrically by the growth
+ * factor.  The store is handed out to the classes a page at a time, and each page is carved into chunks of its
+ * class.  Freed chunks go onto a free list per class, threaded through the chunks themselves, so allocating and
+ * freeing are both constant time.  The price is the space lost to rounding up.
+ *
+ * Pages are 1MB whatever the size of the store, as the page size is also the largest item a store can hold.  A
+ * store too small for a single page is refused, rather than capping items at less, so splitting the storage
+ * into more partitions never shrinks the largest item.  The flip side is that each partition has its own pages:
+ * with fewer pages than size classes, around 45 at the default growth factor, classes keep taking pages from one
+ * another as item sizes vary, each time evicting a whole page.
+ *
+ * Once all pages are handed out, a class that runs dry with nothing of its own left to evict takes over a page
+ * from another class, chosen round robin, evicting whatever still lives on it.
+ */
+public final class SlabBlockAllocator implements BlockAllocator {
+
+    public static final double DEFAULT_GROWTH_FACTOR = 1.25;
+
+    /**
+     * The size of a page, and so of the largest item; each store, that is each partition or segment, needs at
+     * least this much memory
+     */
+    public static final int PAGE_BYTES = 1024 * 1024;
+
+    private static final int MINIMUM_CHUNK_BYTES = 48;
+
+    private static final int NONE = -1;
+
+    private final ChannelBuffer storageBuffer;
+    private final int blockSizeBytes;
+    private final int totalBlocks;
+    private final int pageBlocks;
+
+    // per class; chunk sizes in blocks
+    private final int[] chunkBlocks;
+    private final int[] freeHead;
+    private final int[] nextChunk;
+    private final int[] pageEnd;
+    private final int[] pages;
+    private final int[] usedChunks;
+    private final int[] freeChunks;
+
+    // per page, the class it belongs to
+    private final int[] pageClass;
+
+    private int nextPage;
+    private int reclaimHand;
+
+    public static BlockAllocatorFactory<SlabBlockAllocator> getFactory() {
+        return getFactory(DEFAULT_GROWTH_FACTOR);
+    }
+
+    public static BlockAllocatorFactory<SlabBlockAllocator> getFactory(double growthFactor) {
+        return new SlabBlockAllocatorFactory(growthFactor);
+    }
+
+    public static class SlabBlockAllocatorFactory implements BlockAllocatorFactory<SlabBlockAllocator> {
+        private final double growthFactor;
+
+        public SlabBlockAllocatorFactory(double growthFactor) {
+            if (growthFactor <= 1.0)
+                throw new IllegalArgumentException("slab growth factor must be greater than 1, was " + growthFactor);
+            this.growthFactor = growthFactor;
+        }
+
+        public SlabBlockAllocator manufacture(ChannelBuffer storageBuffer, int blockSizeBytes) {
+            return new SlabBlockAllocator(storageBuffer, blockSizeBytes, growthFactor);
+        }
+
+        /**
+         * @return the number of size classes of the allocators manufactured for stores of the given block size,
+         * each of which wants a page of its own
+         */
+        public int getClassCount(int blockSizeBytes) {
+            int minimumChunkBlocks = (Math.max(MINIMUM_CHUNK_BYTES, blockSizeBytes) + blockSizeBytes - 1) / blockSizeBytes;
+            int pageBlocks = Math.max(minimumChunkBlocks, (PAGE_BYTES + blockSizeBytes - 1) / blockSizeBytes);
+            return chunkBlocks(minimumChunkBlocks, pageBlocks, growthFactor).length;
+        }
+    }
+
+    /**
+     * @return the chunk size in blocks of each class, growing by the growth factor up to the last, which takes a
+     * whole page per item
+     */
+    private static int[] chunkBlocks(int minimumChunkBlocks, int pageBlocks, double growthFactor) {
+        int classes = 0;
+        int[] sizes = new int[64];
+        double size = minimumChunkBlocks;
+        while (size < pageBlocks) {
+            int chunk = (int) Math.ceil(size);
+            // growth too slow to make any difference after rounding to whole blocks
+            if (classes > 0 && chunk <= sizes[classes - 1]) chunk = sizes[classes - 1] + 1;
+            if (chunk >= pageBlocks) break;
+
+            if (classes == sizes.length) {
+                int[] grown = new int[classes * 2];
+                System.arraycopy(sizes, 0, grown, 0, classes);
+                sizes = grown;
+            }
+            sizes[classes++] = chunk;
+            size = chunk * growthFactor;
+        }
+
+        int[] chunkBlocks = new int[classes + 1];
+        System.arraycopy(sizes, 0, chunkBlocks, 0, classes);
+        chunkBlocks[classes] = pageBlocks;
+        return chunkBlocks;
+    }
+
+    private SlabBlockAllocator(ChannelBuffer storageBuffer, int blockSizeBytes, double growthFactor) {
+        this.storageBuffer = storageBuffer;
+        this.blockSizeBytes = blockSizeBytes;
+        this.totalBlocks = storageBuffer.capacity() / blockSizeBytes;
+
+        int minimumChunkBlocks = blocks(Math.max(MINIMUM_CHUNK_BYTES, blockSizeBytes));
+        this.pageBlocks = Math.max(minimumChunkBlocks, blocks(PAGE_BYTES));
+
+        // chunks must be at least an int wide to thread the free list through them
+        if (minimumChunkBlocks * blockSizeBytes < 4)
+            throw new IllegalArgumentException("blocks of " + blockSizeBytes + " bytes are too small for slab allocation");
+        if (pageBlocks > totalBlocks)
+            throw new IllegalArgumentException("store of " + storageBuffer.capacity() + " bytes is too small for slab allocation; " +
+                    "it needs room for at least one page of " + PAGE_BYTES + " bytes");
+
+        chunkBlocks = chunkBlocks(minimumChunkBlocks, pageBlocks, growthFactor);
+
+        freeHead = new int[chunkBlocks.length];
+        nextChunk = new int[chunkBlocks.length];
+        pageEnd = new int[chunkBlocks.length];
+        pages = new int[chunkBlocks.length];
+        usedChunks = new int[chunkBlocks.length];
+        freeChunks = new int[chunkBlocks.length];
+
+        pageClass = new int[totalBlocks / pageBlocks];
+
+        clear();
+    }
+
+    private int blocks(int bytes) {
+        return (bytes + blockSizeBytes - 1) / blockSizeBytes;
+    }
+
+    /**
+     * @return the smallest class with chunks of at least the given number of blocks, or -1 if there is none
+     */
+    private int classFor(int numBlocks) {
+        int low = 0;
+        int high = chunkBlocks.length - 1;
+        if (numBlocks > chunkBlocks[high]) return NONE;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunkBlocks[mid] < numBlocks) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    public int reservedBlocks(int numBlocks) {
+        int slabClass = classFor(numBlocks);
+        return slabClass == NONE ? NONE : chunkBlocks[slabClass];
+    }
+
+    public int allocate(int numBlocks) {
+        int slabClass = classFor(numBlocks);
+        if (slabClass == NONE) return NONE;
+
+        int chunk = freeHead[slabClass];
+        if (chunk != NONE) {
+            freeHead[slabClass] = storageBuffer.getInt(chunk * blockSizeBytes);
+            freeChunks[slabClass]--;
+        } else {
+            if (nextChunk[slabClass] + chunkBlocks[slabClass] > pageEnd[slabClass]) {
+                // current page used up; take a fresh one for this class
+                if (nextPage + pageBlocks > totalBlocks) return NONE;
+
+                assignPage(nextPage, slabClass);
+                nextPage += pageBlocks;
+            }
+            chunk = nextChunk[slabClass];
+            nextChunk[slabClass] += chunkBlocks[slabClass];
+        }
+
+        usedChunks[slabClass]++;
+        return chunk;
+    }
+
+    public void free(int startBlock, int numBlocks) {
+        int slabClass = classFor(numBlocks);
+
+        storageBuffer.setInt(startBlock * blockSizeBytes, freeHead[slabClass]);
+        freeHead[slabClass] = startBlock;
+        freeChunks[slabClass]++;
+        usedChunks[slabClass]--;
+    }
+
+    public boolean canReuse(int freedBlocks, int numBlocks) {
+        // chunks only ever go back to their own class
+        return freedBlocks == reservedBlocks(numBlocks);
+    }
+
+    public boolean reclaim(int numBlocks, Evictor evictor) {
+        int slabClass = classFor(numBlocks);
+        if (slabClass == NONE || pageClass.length < 2) return false;
+
+        // take the next page round that belongs to some other class, and that can be emptied
+        for (int i = 0; i < pageClass.length; i++) {
+            int page = reclaimHand;
+            reclaimHand = (reclaimHand + 1) % pageClass.length;
+            if (pageClass[page] == NONE || pageClass[page] == slabClass) continue;
+
+            int start = page * pageBlocks;
+            int end = start + pageBlocks;
+
+            // everything evicted goes onto the owner's free list, from which the page's chunks are then unlinked;
+            // a chunk still leased out would only go there later, so the page has to be left be
+            if (!evictor.evictRange(start, end)) continue;
+
+            takePage(page, slabClass);
+            return true;
+        }
+        return false;
+    }
+
+    private void takePage(int page, int slabClass) {
+        int start = page * pageBlocks;
+        int end = start + pageBlocks;
+        int owner = pageClass[page];
+
+        int previous = NONE;
+        int chunk = freeHead[owner];
+        while (chunk != NONE) {
+            int next = storageBuffer.getInt(chunk * blockSizeBytes);
+            if (chunk >= start && chunk < end) {
+                if (previous == NONE) freeHead[owner] = next;
+                else storageBuffer.setInt(previous * blockSizeBytes, next);
+                freeChunks[owner]--;
+            } else {
+                previous = chunk;
+            }
+            chunk = next;
+        }
+
+        // the page may be the one the owner is still carving chunks from
+        if (pageEnd[owner] == end) {
+            nextChunk[owner] = 0;
+            pageEnd[owner] = 0;
+        }
+        pages[owner]--;
+
+        assignPage(start, slabClass);
+    }
+
+    private void assignPage(int startBlock, int slabClass) {
+        nextChunk[slabClass] = startBlock;
+        pageEnd[slabClass] = startBlock + pageBlocks;
+        pages[slabClass]++;
+        pageClass[startBlock / pageBlocks] = slabClass;
+    }
+
+    public void clear() {
+        for (int i = 0; i < chunkBlocks.length; i++) {
+            freeHead[i] = NONE;
+            nextChunk[i] = 0;
+            pageEnd[i] = 0;
+            pages[i] = 0;
+            usedChunks[i] = 0;
+            freeChunks[i] = 0;
+        }
+        for (int i = 0; i < pageClass.length; i++) {
+            pageClass[i] = NONE;
+        }
+        nextPage = 0;
+        reclaimHand = 0;
+    }
+
+    public int getClassCount() {
+        return chunkBlocks.length;
+    }
+
+    public int getChunkSize(int slabClass) {
+        return chunkBlocks[slabClass] * blockSizeBytes;
+    }
+
+    public int getChunksPerPage(int slabClass) {
+        return pageBlocks / chunkBlocks[slabClass];
+    }
+
+    public int getPages(int slabClass) {
+        return pages[slabClass];
+    }
+
+    public int getUsedChunks(int slabClass) {
+        return usedChunks[slabClass];
+    }
+
+    /**
+     * @return chunks on the free list of the class, plus chunks of its current page not yet handed out
+     */
+    public int getFreeChunks(int slabClass) {
+        return freeChunks[slabClass] + (pageEnd[slabClass] - nextChunk[slabClass]) / chunkBlocks[slabClass];
+    }
+
+    public long getPageSizeBytes() {
+        return (long) pageBlocks * blockSizeBytes;
+    }
+}
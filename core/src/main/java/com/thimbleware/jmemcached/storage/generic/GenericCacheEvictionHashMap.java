@@ -48,6 +48,12 @@ public final class GenericCacheEvictionHashMap<K, V extends SizedItem> implement
         return null;
     }
 
+    public void getAll(K[] keys, V[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
     @Override
     public V put(K key, V value) {
         this.lock.lock();
@@ -74,6 +80,23 @@ public final class GenericCacheEvictionHashMap<K, V extends SizedItem> implement
         return val;
     }
     
+    public void sweep(Sweeper<V> sweeper) {
+        for (final Entry<K, V> entry : data.entrySet()) {
+            sweeper.visit(entry.getValue(), new Removal() {
+                public boolean remove() {
+                    lock.lock();
+                    try {
+                        if (!data.remove(entry.getKey(), entry.getValue())) return false;
+                        evictionPolicy.remove(entry.getKey(), data);
+                        return true;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        }
+    }
+    
     @Override
     public long getMemoryCapacity() {
         return 0;
@@ -287,6 +287,31 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return null;
     }
 
+    /**
+     * Walks the data store's own values, which reflect removals made alongside rather than a copy of them.
+     */
+    public void sweep(Sweeper<V> sweeper) {
+        for (final Node<K, V> node : data.values()) {
+            final V value = node.getValue();
+            if (value == null) continue;
+
+            sweeper.visit(value, new Removal() {
+                public boolean remove() {
+                    return ConcurrentLinkedHashMap.this.remove(node.getKey(), value);
+                }
+            });
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void getAll(K[] keys, V[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
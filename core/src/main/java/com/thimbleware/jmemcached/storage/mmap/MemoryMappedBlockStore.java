@@ -1,67 +1,350 @@
 package com.thimbleware.jmemcached.storage.mmap;
 
+import com.thimbleware.jmemcached.storage.bytebuffer.BitmapBlockAllocator;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockAllocatorFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStoreFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import static java.nio.channels.FileChannel.MapMode.*;
 
 /**
- * Memory mapped block storage mechanism with a free-list maintained by TreeMap
+ * Memory mapped block storage mechanism
  *
  * Allows memory for storage to be mapped outside of the VM's main memory, and outside the purvey
  * of the GC.
  *
- * Should offer O(Log(N)) search and free of blocks.
+ * By default the store maps a private temporary file, which is deleted on close.  A persistent store instead
+ * maps a named file read-write, and keeps it on close, so that a restarted daemon comes back up with a warm
+ * cache.  Each store occupies a section of the file laid out as:
+ *
+ * <pre>
+ * header      HEADER_SIZE bytes: magic, version, block size, store size, partition number and count, clean flag,
+ *             and the cas below which items had been flushed
+ * blocks      the store proper, its segments one after the other
+ * allocator   the allocation bitmap of each segment in turn, as of the last clean close
+ * </pre>
+ *
+ * Each segment, and the header and bitmaps, are mapped separately, as a single mapping can't exceed
+ * Integer.MAX_VALUE bytes.
+ *
+ * The clean flag is cleared as soon as the store is opened and set again only once the bitmap has been written
+ * out on close, so after a crash the store starts out empty rather than trusting a stale bitmap.  Items flushed
+ * but still in the store when it was closed are dropped as it is reopened.
  */
 public final class MemoryMappedBlockStore extends ByteBufferBlockStore {
 
+    final Logger log = LoggerFactory.getLogger(MemoryMappedBlockStore.class);
+
+    private static final int MAGIC = 0x4a4d4344;   // "JMCD"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4096;
+
+    // header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int BLOCK_SIZE_OFFSET = 8;
+    private static final int STORE_SIZE_OFFSET = 12;
+    private static final int PARTITION_OFFSET = 20;
+    private static final int PARTITIONS_OFFSET = 24;
+    private static final int CLEAN_OFFSET = 28;
+    private static final int FLUSHED_BELOW_OFFSET = 32;
+
+    // record layout, as laid down by LocalCacheElement.writeToBuffer: total size, expiry, then the length
+    // prefixed key, flags, and length prefixed data, then CAS, blocked flag and blocked until
+    private static final int RECORD_EXPIRY_OFFSET = 4;
+    private static final int RECORD_KEY_OFFSET = 12;
+    private static final int RECORD_OVERHEAD = 45;
+
     private File physicalFile;
     private RandomAccessFile fileStorage;
     private static final MemoryMappedBlockStoreFactory MEMORY_MAPPED_BLOCK_STORE_FACTORY = new MemoryMappedBlockStoreFactory();
 
+    private final boolean persistent;
+
+    // the header and allocator bitmaps of a persistent store's section, and every mapping of it
+    private ChannelBuffer header;
+    private ChannelBuffer bitmaps;
+    private List<MappedByteBuffer> mappings;
+
+    private int partition = -1;
+    private int partitions = -1;
+
+    private long flushedBelow;
+
     /**
      * Construct a new memory mapped block storage against a filename, with a certain size
      * and block size.
      * @param maxBytes the number of bytes to allocate in the file
      * @param file the file to use
      * @param blockSizeBytes the size of a block in the store
+     * @param allocatorFactory the allocator to hand out the blocks of the store
      * @throws java.io.IOException thrown on failure to open the store or map the file
      */
-    private MemoryMappedBlockStore(long maxBytes, File file, int blockSizeBytes) throws IOException {
-        super(blockSizeBytes);
-        storageBuffer = ChannelBuffers.wrappedBuffer(getMemoryMappedFileStorage(maxBytes, file));
-        initialize(storageBuffer.capacity());
+    private MemoryMappedBlockStore(long maxBytes, File file, int blockSizeBytes, BlockAllocatorFactory<?> allocatorFactory) throws IOException {
+        super(blockSizeBytes, allocatorFactory);
+        this.persistent = false;
+        initialize(getMemoryMappedFileStorage(maxBytes, file, blockSizeBytes));
+    }
+
+    /**
+     * Construct a persistent store over a section of a named file.
+     * @param maxBytes the number of bytes to use for blocks
+     * @param file the file to use
+     * @param position the offset into the file of the section for this store
+     * @param blockSizeBytes the size of a block in the store
+     * @throws java.io.IOException thrown on failure to open the store or map the file
+     */
+    private MemoryMappedBlockStore(long maxBytes, File file, long position, int blockSizeBytes) throws IOException {
+        super(blockSizeBytes, BitmapBlockAllocator.getFactory());
+        this.persistent = true;
+        this.physicalFile = file;
+
+        fileStorage = new RandomAccessFile(file, "rw");
+        FileChannel channel = fileStorage.getChannel();
+        mappings = new ArrayList<MappedByteBuffer>();
+
+        header = ChannelBuffers.wrappedBuffer(map(channel, READ_WRITE, position, HEADER_SIZE));
+
+        int[] sizes = segmentSizes(maxBytes, blockSizeBytes, DEFAULT_SEGMENT_SIZE_BYTES);
+        ChannelBuffer[] segments = new ChannelBuffer[sizes.length];
+        long offset = position + HEADER_SIZE;
+        int bitmapSize = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            segments[i] = ChannelBuffers.wrappedBuffer(map(channel, READ_WRITE, offset, sizes[i]));
+            offset += sizes[i];
+            bitmapSize += bitmapSize(sizes[i], blockSizeBytes);
+        }
+        bitmaps = ChannelBuffers.wrappedBuffer(map(channel, READ_WRITE, offset, bitmapSize));
+
+        initialize(segments);
+    }
+
+    private MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+        MappedByteBuffer mapping = channel.map(mode, position, size);
+        mappings.add(mapping);
+        return mapping;
+    }
+
+    private void force() {
+        for (MappedByteBuffer mapping : mappings) {
+            mapping.force();
+        }
     }
 
     public static BlockStoreFactory getFactory() {
         return MEMORY_MAPPED_BLOCK_STORE_FACTORY;
     }
 
-    private MappedByteBuffer getMemoryMappedFileStorage(long maxBytes, File file) throws IOException {
+    /**
+     * @param allocatorFactory the allocator to use in manufactured stores
+     */
+    public static BlockStoreFactory getFactory(BlockAllocatorFactory<?> allocatorFactory) {
+        return new MemoryMappedBlockStoreFactory(allocatorFactory);
+    }
+
+    /**
+     * A factory for persistent stores, all kept in the one file.  The factory hands out consecutive sections
+     * of the file, so it must only be used for a single storage, which manufactures its stores in partition
+     * order.  Persistent stores always use the bitmap allocator.
+     *
+     * @param file the file to keep the stores in; created if need be, and reused if already there
+     */
+    public static BlockStoreFactory getPersistentFactory(File file) {
+        return new PersistentMemoryMappedBlockStoreFactory(file);
+    }
+
+    private static long sectionSize(long maxBytes, int blockSizeBytes) {
+        long size = HEADER_SIZE;
+        for (int segmentSize : segmentSizes(maxBytes, blockSizeBytes, DEFAULT_SEGMENT_SIZE_BYTES)) {
+            size += segmentSize + bitmapSize(segmentSize, blockSizeBytes);
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of the saved bitmap of a segment, as written by BitmapBlockAllocator.save()
+     */
+    private static int bitmapSize(int segmentSize, int blockSizeBytes) {
+        int blocks = segmentSize / blockSizeBytes;
+        return ((blocks + 63) / 64) * 8;
+    }
+
+    private ChannelBuffer[] getMemoryMappedFileStorage(long maxBytes, File file, int blockSizeBytes) throws IOException {
         this.physicalFile = file;
 
         // open the file for read-write
         fileStorage = new RandomAccessFile(file, "rw");
-        fileStorage.seek(maxBytes);
+        FileChannel channel = fileStorage.getChannel();
+        mappings = new ArrayList<MappedByteBuffer>();
 
-        return fileStorage.getChannel().map(PRIVATE, 0, maxBytes);
+        int[] sizes = segmentSizes(maxBytes, blockSizeBytes, DEFAULT_SEGMENT_SIZE_BYTES);
+        ChannelBuffer[] segments = new ChannelBuffer[sizes.length];
+        long offset = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            segments[i] = ChannelBuffers.wrappedBuffer(map(channel, PRIVATE, offset, sizes[i]));
+            offset += sizes[i];
+        }
+        return segments;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    @Override
+    public void setFlushedBelow(long flushedBelow) {
+        this.flushedBelow = flushedBelow;
+    }
+
+    @Override
+    public long getFlushedBelow() {
+        return flushedBelow;
+    }
+
+    @Override
+    public void recover(int partition, int partitions, RegionVisitor visitor) {
+        if (!persistent) return;
+
+        this.partition = partition;
+        this.partitions = partitions;
+
+        boolean clean = header.getInt(MAGIC_OFFSET) == MAGIC && header.getByte(CLEAN_OFFSET) == 1;
+        boolean compatible = header.getInt(VERSION_OFFSET) == VERSION &&
+                header.getInt(BLOCK_SIZE_OFFSET) == getBlockSizeBytes() &&
+                header.getLong(STORE_SIZE_OFFSET) == getStoreSizeBytes() &&
+                header.getInt(PARTITION_OFFSET) == partition &&
+                header.getInt(PARTITIONS_OFFSET) == partitions;
+
+        // from here on, only a clean close makes the contents trustworthy again
+        header.setByte(CLEAN_OFFSET, 0);
+        force();
+
+        if (!clean) {
+            log.info("no cleanly closed store found for partition " + partition + " in " + physicalFile + "; starting empty");
+            return;
+        }
+        if (!compatible) {
+            log.warn("store for partition " + partition + " in " + physicalFile + " was written with a different layout; starting empty");
+            return;
+        }
+
+        flushedBelow = header.getLong(FLUSHED_BELOW_OFFSET);
+
+        int offset = 0;
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            BitmapBlockAllocator allocator = (BitmapBlockAllocator) getAllocator(segment);
+            allocator.load(bitmaps, offset);
+            offset += allocator.getSavedSize();
+        }
+
+        // check the whole store over before handing anything out, so a bad record doesn't leave the caller
+        // with half a recovery
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            if (scan(segment, null) == -1) {
+                log.warn("corrupt record in store for partition " + partition + " in " + physicalFile + "; starting empty");
+                clear();
+                return;
+            }
+        }
+
+        int recovered = 0;
+        for (int segment = 0; segment < getSegmentCount(); segment++) {
+            recovered += scan(segment, visitor);
+        }
+        log.info("recovered " + recovered + " items for partition " + partition + " from " + physicalFile);
+    }
+
+    /**
+     * Walk the records in a segment of the store, from the start of each allocated run of blocks to the next.
+     *
+     * @param visitor receives the recovered regions; null to only check the records
+     * @return the number of records, or -1 if one of them is inconsistent
+     */
+    private int scan(int segment, RegionVisitor visitor) {
+        BitmapBlockAllocator allocator = (BitmapBlockAllocator) getAllocator(segment);
+        ChannelBuffer buffer = segments[segment];
+        int totalBlocks = getSegmentBlocks();
+        int firstBlock = segment * totalBlocks;
+        long now = System.currentTimeMillis();
+        int records = 0;
+
+        int block = allocator.nextAllocated(0);
+        while (block != -1 && block < totalBlocks) {
+            int position = block * getBlockSizeBytes();
+            int remaining = buffer.capacity() - position;
+            if (remaining < RECORD_OVERHEAD) return -1;
+
+            int size = buffer.getInt(position);
+            int keyLength = buffer.getInt(position + RECORD_KEY_OFFSET);
+            if (size < RECORD_OVERHEAD || size > remaining || keyLength < 0 || keyLength > size - RECORD_OVERHEAD)
+                return -1;
+            int dataLength = buffer.getInt(position + RECORD_KEY_OFFSET + 4 + keyLength + 4);
+            if (size != RECORD_OVERHEAD + keyLength + dataLength) return -1;
+
+            if (visitor != null)
+                visitor.visit(recovered(firstBlock + block, size, buffer.getLong(position + RECORD_EXPIRY_OFFSET), now));
+            records++;
+
+            block = allocator.nextAllocated(block + blocksFor(size));
+        }
+
+        return records;
     }
 
     @Override
     protected void freeResources() throws IOException {
         super.freeResources();
 
+        if (persistent) {
+            // save the allocator and then mark the store clean, in that order
+            int offset = 0;
+            for (int segment = 0; segment < getSegmentCount(); segment++) {
+                BitmapBlockAllocator allocator = (BitmapBlockAllocator) getAllocator(segment);
+                allocator.save(bitmaps, offset);
+                offset += allocator.getSavedSize();
+            }
+
+            header.setInt(MAGIC_OFFSET, MAGIC);
+            header.setInt(VERSION_OFFSET, VERSION);
+            header.setInt(BLOCK_SIZE_OFFSET, getBlockSizeBytes());
+            header.setLong(STORE_SIZE_OFFSET, getStoreSizeBytes());
+            header.setInt(PARTITION_OFFSET, partition);
+            header.setInt(PARTITIONS_OFFSET, partitions);
+            header.setLong(FLUSHED_BELOW_OFFSET, flushedBelow);
+            force();
+
+            header.setByte(CLEAN_OFFSET, 1);
+            force();
+
+            fileStorage.close();
+
+            mappings = null;
+            header = null;
+            bitmaps = null;
+            physicalFile = null;
+            fileStorage = null;
+            return;
+        }
+
         // close the actual file
         fileStorage.close();
 
         // delete the file; it is no longer of any use
         physicalFile.delete();
 
+        mappings = null;
         physicalFile = null;
         fileStorage = null;
     }
@@ -69,11 +352,41 @@ public final class MemoryMappedBlockStore extends ByteBufferBlockStore {
 
     public static class MemoryMappedBlockStoreFactory implements BlockStoreFactory<MemoryMappedBlockStore> {
 
+        private final BlockAllocatorFactory<?> allocatorFactory;
+
+        public MemoryMappedBlockStoreFactory() {
+            this(BitmapBlockAllocator.getFactory());
+        }
+
+        public MemoryMappedBlockStoreFactory(BlockAllocatorFactory<?> allocatorFactory) {
+            this.allocatorFactory = allocatorFactory;
+        }
+
         public MemoryMappedBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
             try {
                 final File tempFile = File.createTempFile("jmemcached", "blockStore");
                 tempFile.deleteOnExit();
-                return new MemoryMappedBlockStore(sizeBytes, tempFile, blockSizeBytes);
+                return new MemoryMappedBlockStore(sizeBytes, tempFile, blockSizeBytes, allocatorFactory);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static class PersistentMemoryMappedBlockStoreFactory implements BlockStoreFactory<MemoryMappedBlockStore> {
+
+        private final File file;
+        private long position = 0;
+
+        public PersistentMemoryMappedBlockStoreFactory(File file) {
+            this.file = file;
+        }
+
+        public synchronized MemoryMappedBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
+            try {
+                MemoryMappedBlockStore store = new MemoryMappedBlockStore(sizeBytes, file, position, blockSizeBytes);
+                position += sectionSize(sizeBytes, blockSizeBytes);
+                return store;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
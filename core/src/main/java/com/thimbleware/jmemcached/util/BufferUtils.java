@@ -58,16 +58,25 @@ public class BufferUtils {
 
     public static int atoi(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atoi(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal integer in the given range of a buffer, without slicing it out first.
+     */
+    public static int atoi(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
     {
         int result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = index, end = index + len;
         int limit = -Integer.MAX_VALUE;
         int multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(i);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -80,10 +89,10 @@ public class BufferUtils {
                 i++;
             }
             multmin = limit / 10;
-            while (i < len) {
+            while (i < end) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
-                if (digit < 0) {
+                digit = s.getByte(i++) - '0';
+                if (digit < 0 || digit > 9) {
                     throw new NumberFormatException();
                 }
                 if (result < multmin) {
@@ -103,16 +112,25 @@ public class BufferUtils {
 
     public static long atol(ChannelBuffer s)
             throws NumberFormatException
+    {
+        return atol(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the decimal long in the given range of a buffer, without slicing it out first.
+     */
+    public static long atol(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
     {
         long result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = index, end = index + len;
         long limit = -Long.MAX_VALUE;
         long multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(i);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -125,10 +143,10 @@ public class BufferUtils {
                 i++;
             }
             multmin = limit / 10;
-            while (i < len) {
+            while (i < end) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
-                if (digit < 0) {
+                digit = s.getByte(i++) - '0';
+                if (digit < 0 || digit > 9) {
                     throw new NumberFormatException();
                 }
                 if (result < multmin) {
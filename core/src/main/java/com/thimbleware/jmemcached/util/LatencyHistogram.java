@@ -0,0 +1,136 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in microseconds, in the manner of HdrHistogram: values are counted in buckets whose
+ * width doubles with every power of two, each split in sixteen, so that any value recorded is known to within about
+ * six percent however large it is.
+ *
+ * Each thread records into counts of its own, so that threads recording at once don't share cache lines; reading
+ * the histogram adds up those of every thread.  Only the owning thread writes to its counts, so recording a value
+ * is a couple of shifts and ordered stores, without an atomic read-modify-write, and nothing is allocated once a
+ * thread's counts are.
+ *
+ * Values of up to 2^36 microseconds, most of a day, are told apart; anything longer is counted as that.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    // following the buckets in each thread's counts: the number of values recorded, and their sum
+    private static final int TOTAL = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+
+    private final List<AtomicLongArray> threads = new CopyOnWriteArrayList<AtomicLongArray>();
+
+    private final ThreadLocal<AtomicLongArray> counts = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            AtomicLongArray counts = new AtomicLongArray(SUM + 1);
+            threads.add(counts);
+            return counts;
+        }
+    };
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        else if (micros > MAX_VALUE) micros = MAX_VALUE;
+
+        AtomicLongArray counts = this.counts.get();
+        add(counts, indexOf(micros), 1);
+        add(counts, TOTAL, 1);
+        add(counts, SUM, micros);
+    }
+
+    private static void add(AtomicLongArray counts, int i, long delta) {
+        counts.lazySet(i, counts.get(i) + delta);
+    }
+
+    /**
+     * @return the given count summed over every thread
+     */
+    private long sum(int i) {
+        long sum = 0;
+        for (AtomicLongArray counts : threads) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return sum(TOTAL);
+    }
+
+    /**
+     * @return the mean of the values recorded, in microseconds; 0 if there are none
+     */
+    public long getMean() {
+        long count = sum(TOTAL);
+        return count == 0 ? 0 : sum(SUM) / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket holding the given percentile of the values recorded; 0 if there are
+     * none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray counts : threads) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = counts.get(i);
+                snapshot[i] += bucket;
+                count += bucket;
+            }
+        }
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValueAt(i);
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * @return the highest value recorded, to within its bucket; 0 if there are none
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (sum(i) != 0) return highestValueAt(i);
+        }
+        return 0;
+    }
+
+    /**
+     * Values below sixteen get a bucket each; above that, the top bit of a value picks a row of sixteen buckets, and
+     * the four bits below it the bucket in that row.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int top = 63 - Long.numberOfLeadingZeros(value);
+        int row = top - SUB_BUCKET_BITS + 1;
+        return row * SUB_BUCKETS + (int) (value >>> (top - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int row = index / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (row - 1);
+        return lowest + (1L << (row - 1)) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package com.thimbleware.jmemcached.util;
+
+import org.jboss.netty.channel.Channel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+/**
+ * Sets SO_REUSEPORT on the server sockets of Netty NIO server channels, so that several of them can be bound to the
+ * same port and the kernel spread the connections coming in across them.
+ *
+ * Netty 3 knows nothing of the option, and the JDK only from Java 9 on, where the platform has it, so it is set
+ * on the channel's underlying socket by reflection; on a JDK without it {@link #isSupported()} is false.
+ */
+public final class ReusePort {
+
+    private static final Object SO_REUSEPORT;
+    private static final Method SET_OPTION;
+
+    static {
+        Object option = null;
+        Method setOption = null;
+        try {
+            option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Class<?> socketOption = Class.forName("java.net.SocketOption");
+            setOption = ServerSocketChannel.class.getMethod("setOption", socketOption, Object.class);
+
+            ServerSocketChannel probe = ServerSocketChannel.open();
+            try {
+                Set<?> supported = (Set<?>) ServerSocketChannel.class.getMethod("supportedOptions").invoke(probe);
+                if (!supported.contains(option)) option = null;
+            } finally {
+                probe.close();
+            }
+        } catch (Exception e) {
+            option = null;
+        }
+        SO_REUSEPORT = option;
+        SET_OPTION = setOption;
+    }
+
+    private ReusePort() {
+    }
+
+    /**
+     * @return whether SO_REUSEPORT can be set on this JDK and platform
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    /**
+     * Set SO_REUSEPORT on the socket of a server channel made by a NioServerSocketChannelFactory.  Must be called
+     * before the channel is bound, from the channelOpen of a bootstrap's parent handler say.
+     */
+    public static void enable(Channel serverChannel) throws IOException {
+        if (!isSupported()) throw new IOException("SO_REUSEPORT is not supported here");
+        try {
+            Field socket = serverChannel.getClass().getDeclaredField("socket");
+            socket.setAccessible(true);
+            SET_OPTION.invoke(socket.get(serverChannel), SO_REUSEPORT, Boolean.TRUE);
+        } catch (Exception e) {
+            throw new IOException("couldn't set SO_REUSEPORT on " + serverChannel, e);
+        }
+    }
+}
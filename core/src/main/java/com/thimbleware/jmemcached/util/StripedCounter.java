@@ -0,0 +1,54 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for statistics bumped by every request, on every worker thread.  Rather than all threads updating
+ * the one value, and so the one cache line, each thread adds to one of a number of cells, a cache line apart,
+ * picked by its thread id; reading the counter sums the cells.  Reads are therefore slower than with an
+ * AtomicLong, and don't see a consistent snapshot of concurrent updates, which for statistics is no matter.
+ */
+public final class StripedCounter {
+
+    // longs per cache line
+    private static final int SPACING = 8;
+
+    private static final int STRIPE_BITS = stripeBits(Runtime.getRuntime().availableProcessors());
+
+    // padded at the front too, to keep clear of the array's header
+    private final AtomicLongArray cells = new AtomicLongArray(((1 << STRIPE_BITS) + 1) * SPACING);
+
+    /**
+     * @return enough bits to give each of twice the number of processors a stripe, up to 64 stripes
+     */
+    private static int stripeBits(int processors) {
+        int bits = 0;
+        while ((1 << bits) < processors * 2 && bits < 6) bits++;
+        return bits;
+    }
+
+    private int cell() {
+        if (STRIPE_BITS == 0) return SPACING;
+        long id = Thread.currentThread().getId();
+        return ((int) ((id * 0x9e3779b97f4a7c15L) >>> (64 - STRIPE_BITS)) + 1) * SPACING;
+    }
+
+    public void increment() {
+        cells.getAndIncrement(cell());
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cell(), delta);
+    }
+
+    /**
+     * @return the sum of the cells
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = SPACING; i < cells.length(); i += SPACING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -1,9 +1,11 @@
 package com.thimbleware.jmemcached.test;
 
 import com.thimbleware.jmemcached.*;
+import com.thimbleware.jmemcached.storage.bytebuffer.BitmapBlockAllocator;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockAllocator;
 import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
 import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
 import com.thimbleware.jmemcached.util.Bytes;
@@ -21,10 +23,13 @@ import java.util.Collection;
 public abstract class AbstractCacheTest {
     protected static final int MAX_BYTES = (int) Bytes.valueOf("4m").bytes();
     public static final int CEILING_SIZE = (int)Bytes.valueOf("4m").bytes();
+    // slab pages are the size of the largest item, so the slab store is given room for a few per partition
+    protected static final int SLAB_BYTES = (int) Bytes.valueOf("16m").bytes();
     public static final int MAX_SIZE = 1000;
     protected MemCacheDaemon<LocalCacheElement> daemon;
     private int port;
     protected Cache<LocalCacheElement> cache;
+    protected CacheStorage<Key, LocalCacheElement> storage;
     protected final CacheType cacheType;
     protected final int blockSize;
     private final ProtocolMode protocolMode;
@@ -37,7 +42,7 @@ public abstract class AbstractCacheTest {
 
 
     public static enum CacheType {
-        LOCAL_HASH, BLOCK, MAPPED
+        LOCAL_HASH, BLOCK, MAPPED, SLAB, SEGMENTED
     }
 
     public static enum ProtocolMode {
@@ -52,7 +57,11 @@ public abstract class AbstractCacheTest {
                 {CacheType.BLOCK, 4, ProtocolMode.TEXT},
                 {CacheType.BLOCK, 4, ProtocolMode.BINARY},
                 {CacheType.MAPPED, 4, ProtocolMode.TEXT},
-                {CacheType.MAPPED, 4, ProtocolMode.BINARY }
+                {CacheType.MAPPED, 4, ProtocolMode.BINARY },
+                {CacheType.SLAB, 4, ProtocolMode.TEXT},
+                {CacheType.SLAB, 4, ProtocolMode.BINARY},
+                {CacheType.SEGMENTED, 4, ProtocolMode.TEXT},
+                {CacheType.SEGMENTED, 4, ProtocolMode.BINARY}
         });
     }
 
@@ -60,9 +69,9 @@ public abstract class AbstractCacheTest {
     public void setup() throws IOException {
         // create daemon and start it
         daemon = new MemCacheDaemon<LocalCacheElement>();
-        CacheStorage<Key, LocalCacheElement> cacheStorage = getCacheStorage();
+        storage = getCacheStorage();
 
-        daemon.setCache(new CacheImpl(cacheStorage));
+        daemon.setCache(new CacheImpl(storage));
         daemon.setBinary(protocolMode == ProtocolMode.BINARY);
         
         port = AvailablePortFinder.getNextAvailable();
@@ -92,11 +101,25 @@ public abstract class AbstractCacheTest {
             case MAPPED:
                 cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, MemoryMappedBlockStore.getFactory());
 
+                break;
+            case SLAB:
+                cacheStorage = new BlockStorageCacheStorage(4, SLAB_BYTES, blockSize, SLAB_BYTES, MAX_SIZE, ByteBufferBlockStore.getFactory(SlabBlockAllocator.getFactory()));
+                break;
+            case SEGMENTED:
+                // small segments, to spread a single partition over several of them
+                cacheStorage = new BlockStorageCacheStorage(1, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, ByteBufferBlockStore.getFactory(BitmapBlockAllocator.getFactory(), MAX_BYTES / 8));
                 break;
         }
         return cacheStorage;
     }
 
+    /**
+     * @return the memory limit of the storage under test
+     */
+    public int getMaxBytes() {
+        return cacheType == CacheType.SLAB ? SLAB_BYTES : MAX_BYTES;
+    }
+
     public MemCacheDaemon getDaemon() {
         return daemon;
     }
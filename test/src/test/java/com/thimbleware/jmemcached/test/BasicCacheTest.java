@@ -3,7 +3,9 @@ package com.thimbleware.jmemcached.test;
 import static com.thimbleware.jmemcached.LocalCacheElement.Now;
 import com.thimbleware.jmemcached.*;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -13,6 +15,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  */
@@ -29,7 +33,7 @@ public class BasicCacheTest extends AbstractCacheTest {
     public void testPresence() {
         assertNotNull(cache);
         assertEquals("initial cache is empty", 0, cache.getCurrentItems());
-        assertEquals("initialize maximum size matches max bytes", MAX_BYTES, cache.getLimitMaxBytes());
+        assertEquals("initialize maximum size matches max bytes", getMaxBytes(), cache.getLimitMaxBytes());
         assertEquals("initialize size is empty", 0, cache.getCurrentBytes());
     }
 
@@ -127,7 +131,7 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals("confirmed no misses", 1, cache.getGetMisses());
 
         assertEquals("cache is empty", 0, cache.getCurrentItems());
-        assertEquals("maximum size matches max bytes", MAX_BYTES, cache.getLimitMaxBytes());
+        assertEquals("maximum size matches max bytes", getMaxBytes(), cache.getLimitMaxBytes());
         assertEquals("size is empty", 0, cache.getCurrentBytes());
     }
 
@@ -240,4 +244,193 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals(ChannelBuffers.wrappedBuffer("11".getBytes()), data);
     }
 
+    @Test
+    public void testMultiGet() {
+        for (int i = 0; i < 50; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), i, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            assertEquals(Cache.StoreResponse.STORED, cache.set(element));
+        }
+
+        // spread over all the partitions, backwards, with misses and a key asked for twice among them
+        Key[] keys = new Key[62];
+        for (int i = 0; i < 60; i++) keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + (59 - i)).getBytes()));
+        keys[60] = new Key(ChannelBuffers.wrappedBuffer("key7".getBytes()));
+        keys[61] = new Key(ChannelBuffers.wrappedBuffer("key7".getBytes()));
+
+        LocalCacheElement[] elements = cache.get(keys);
+        assertEquals(keys.length, elements.length);
+        for (int i = 0; i < 60; i++) {
+            int n = 59 - i;
+            if (n >= 50) {
+                assertNull("miss for key" + n, elements[i]);
+            } else {
+                assertEquals(n, elements[i].getFlags());
+                assertEquals(ChannelBuffers.wrappedBuffer(("value" + n).getBytes()), elements[i].getData());
+            }
+        }
+        assertEquals(ChannelBuffers.wrappedBuffer("value7".getBytes()), elements[60].getData());
+        assertEquals(ChannelBuffers.wrappedBuffer("value7".getBytes()), elements[61].getData());
+        for (LocalCacheElement element : elements) {
+            if (element != null) element.release();
+        }
+        assertEquals(10, cache.getGetMisses());
+        assertEquals(52, cache.getGetHits());
+    }
+
+    @Test
+    public void testSetPastCapacity() {
+        // twice as many items as the cache holds, and twice as many bytes
+        int fillSize = MAX_SIZE * 2;
+        byte[] value = new byte[2 * getMaxBytes() / fillSize];
+
+        Key lastKey = null;
+        for (int i = 0; i < fillSize; i++) {
+            lastKey = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+            LocalCacheElement element = new LocalCacheElement(lastKey, 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(value));
+
+            assertEquals("set stored despite a full cache", Cache.StoreResponse.STORED, cache.set(element));
+        }
+
+        assertTrue("item limit honoured", cache.getCurrentItems() <= MAX_SIZE);
+        assertTrue("memory limit honoured", cache.getCurrentBytes() <= cache.getLimitMaxBytes());
+        assertNotNull("most recent item present", cache.get(lastKey)[0]);
+    }
+
+    @Test
+    public void testReapExpired() {
+        // well past, as the expiry wheel only deals in whole ticks
+        long expired = CacheImpl.Now() - 5000;
+
+        for (int i = 0; i < 10; i++) {
+            Key key = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+            LocalCacheElement element = new LocalCacheElement(key, 0, i < 5 ? expired : NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+            assertEquals(Cache.StoreResponse.STORED, cache.set(element));
+        }
+        assertEquals("expired items still stored", 10, cache.getCurrentItems());
+
+        ((CacheImpl) cache).reapExpired();
+
+        assertEquals("expired items removed", 5, cache.getCurrentItems());
+        assertEquals("reclaimed", "5", cache.stat(null).get("reclaimed").iterator().next());
+        assertNotNull("unexpiring item kept", cache.get(new Key(ChannelBuffers.wrappedBuffer("key9".getBytes())))[0]);
+    }
+
+    @Test
+    public void testDelayedDelete() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Key key = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+            LocalCacheElement element = new LocalCacheElement(key, 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+            cache.set(element);
+            cache.delete(key, 1);
+        }
+        assertNull("deleted item blocked", cache.get(new Key(ChannelBuffers.wrappedBuffer("key0".getBytes())))[0]);
+
+        // the block, and a tick of the delete wheel
+        Thread.sleep(1300);
+        cache.asyncEventPing();
+
+        assertEquals("every due delete processed at once", 0, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testFlushedItemsGone() {
+        Key key = new Key(ChannelBuffers.wrappedBuffer("key".getBytes()));
+        cache.set(element(key, "before"));
+        cache.flush_all();
+
+        assertNull("flushed item missing", cache.get(key)[0]);
+        assertEquals("flushed item can't be replaced", Cache.StoreResponse.NOT_STORED, cache.replace(element(key, "replaced")));
+        assertEquals("flushed item as good as absent", Cache.StoreResponse.STORED, cache.add(element(key, "after")));
+        assertEquals(ChannelBuffers.wrappedBuffer("after".getBytes()), cache.get(key)[0].getData());
+        assertEquals("cache has 1 element", 1, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testFlushedItemsSweptFromStorage() throws InterruptedException {
+        for (int i = 0; i < 900; i++) {
+            cache.set(element(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), "before"));
+        }
+        cache.flush_all();
+        Key key = new Key(ChannelBuffers.wrappedBuffer("after".getBytes()));
+        cache.set(element(key, "after"));
+
+        // the sweep runs in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((storage.size() > 1 || cache.getCurrentItems() != 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("flushed items swept from the storage", 1, storage.size());
+        assertNotNull("item stored after the flush left alone", cache.get(key)[0]);
+        assertEquals("cache has 1 element", 1, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testSetNeverLowersCas() throws InterruptedException {
+        final Key key = new Key(ChannelBuffers.wrappedBuffer("key".getBytes()));
+        cache.set(element(key, "first"));
+
+        // another thread hands out ids from a block above this one's
+        Thread other = new Thread() {
+            public void run() {
+                cache.set(element(key, "second"));
+            }
+        };
+        other.start();
+        other.join();
+        long before = cache.get(key)[0].getCasUnique();
+
+        cache.set(element(key, "third"));
+        assertTrue("cas went up", cache.get(key)[0].getCasUnique() > before);
+    }
+
+    @Test
+    public void testDelayedFlush() throws InterruptedException {
+        Key key = new Key(ChannelBuffers.wrappedBuffer("key".getBytes()));
+        cache.set(element(key, "value"));
+        cache.flush_all(1);
+
+        assertNotNull("not flushed yet", cache.get(key)[0]);
+        Thread.sleep(1500);
+        assertNull("flushed once the delay is up", cache.get(key)[0]);
+    }
+
+    @Test
+    public void testStopWithDelayedFlush() throws Exception {
+        // start over, to tell the scavenger of this cache from those of caches other tests left running
+        daemon.stop();
+        Set<Thread> others = scavengers();
+        setup();
+        Set<Thread> scavengers = scavengers();
+        scavengers.removeAll(others);
+        assertEquals("the cache's own scavenger", 1, scavengers.size());
+
+        cache.set(element(new Key(ChannelBuffers.wrappedBuffer("key".getBytes())), "value"));
+        cache.flush_all(3600);
+        daemon.stop();
+
+        // the flush still to come doesn't keep the scavenger, and so the vm, going
+        for (Thread scavenger : scavengers) {
+            scavenger.join(5000);
+            assertFalse(scavenger.getName() + " still running", scavenger.isAlive());
+        }
+    }
+
+    private static Set<Thread> scavengers() {
+        Set<Thread> scavengers = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("jmemcached-scavenger-")) scavengers.add(thread);
+        }
+        return scavengers;
+    }
+
+    private static LocalCacheElement element(Key key, String value) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes()));
+        return element;
+    }
 }
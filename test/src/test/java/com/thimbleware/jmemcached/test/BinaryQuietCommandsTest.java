@@ -0,0 +1,211 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs of quiet binary commands ended by a noop, sent all at once as clients do for bulk loads and gets: only the
+ * failures of the quiet sets and the hits of the quiet gets are answered, in order, and then the noop.  Along with
+ * a few other cases best checked byte for byte.
+ */
+public class BinaryQuietCommandsTest {
+
+    private static final int GET = 0x00, SET = 0x01, QUIT = 0x07, GETQ = 0x09, NOOP = 0x0A, GETKQ = 0x0D, SETQ = 0x11, ADDQ = 0x12, DELETEQ = 0x14, QUITQ = 0x17;
+    private static final int OK = 0x0000, KEYNF = 0x0001, NOT_STORED = 0x0005, UNKNOWN = 0x0081;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+
+    @Before
+    public void setUp() throws Exception {
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(new BlockStorageCacheStorage(4, 1024 * 1024, 4, 16 * 1024 * 1024, 100000, new ByteBufferBlockStore.ByteBufferBlockStoreFactory())));
+        daemon.setBinary(true);
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.start();
+        socket = new Socket(address.getAddress(), address.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (socket != null) socket.close();
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void testQuietRun() throws Exception {
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        request(run, SETQ, 1, "k1", "v1");
+        request(run, SETQ, 2, "k2", "v2");
+        request(run, ADDQ, 3, "k1", "v3");
+        request(run, GETKQ, 4, "k1", null);
+        request(run, GETKQ, 5, "missing", null);
+        request(run, GETQ, 6, "k2", null);
+        request(run, DELETEQ, 7, "missing", null);
+        request(run, NOOP, 8, null, null);
+        send(run);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, ADDQ, 3, NOT_STORED, null, null);
+        assertResponse(in, GETKQ, 4, OK, "k1", "v1");
+        assertResponse(in, GETQ, 6, OK, null, "v2");
+        assertResponse(in, DELETEQ, 7, KEYNF, null, null);
+        assertResponse(in, NOOP, 8, OK, null, null);
+
+        // and nothing more than that, before the answer to the next command
+        ByteArrayOutputStream get = new ByteArrayOutputStream();
+        request(get, GET, 9, "k1", null);
+        send(get);
+        assertResponse(in, GET, 9, OK, null, "v1");
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        ByteArrayOutputStream load = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) request(load, SETQ, i, "key" + i, "value" + i);
+        request(load, NOOP, 500, null, null);
+        send(load);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, NOOP, 500, OK, null, null);
+
+        ByteArrayOutputStream gets = new ByteArrayOutputStream();
+        for (int i = 0; i < 600; i++) request(gets, GETKQ, i, "key" + i, null);
+        request(gets, SET, 600, "key0", "changed");
+        request(gets, NOOP, 601, null, null);
+        send(gets);
+
+        for (int i = 0; i < 500; i++) assertResponse(in, GETKQ, i, OK, "key" + i, "value" + i);
+        assertResponse(in, SET, 600, OK, null, null);
+        assertResponse(in, NOOP, 601, OK, null, null);
+    }
+
+    @Test
+    public void testBigValues() throws Exception {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100000; i++) big.append((char) ('a' + i % 26));
+        String medium = big.substring(0, 20000);
+
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        request(run, SET, 1, "big", big.toString());
+        request(run, SET, 2, "medium", medium);
+        request(run, GETKQ, 3, "big", null);
+        request(run, GETKQ, 4, "medium", null);
+        request(run, GETQ, 5, "big", null);
+        request(run, NOOP, 6, null, null);
+        send(run);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, SET, 1, OK, null, null);
+        assertResponse(in, SET, 2, OK, null, null);
+        assertResponse(in, GETKQ, 3, OK, "big", big.toString());
+        assertResponse(in, GETKQ, 4, OK, "medium", medium);
+        assertResponse(in, GETQ, 5, OK, null, big.toString());
+        assertResponse(in, NOOP, 6, OK, null, null);
+    }
+
+    @Test
+    public void testUnknownOpcode() throws Exception {
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        request(run, SET, 1, "k1", "v1");
+        request(run, 0x40, 2, "k1", "v2");
+        request(run, NOOP, 3, null, null);
+        send(run);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, SET, 1, OK, null, null);
+        assertResponse(in, NOOP, 0, UNKNOWN, null, null);
+        assertResponse(in, NOOP, 3, OK, null, null);
+
+        // the connection carries on
+        ByteArrayOutputStream get = new ByteArrayOutputStream();
+        request(get, GET, 4, "k1", null);
+        send(get);
+        assertResponse(in, GET, 4, OK, null, "v1");
+    }
+
+    @Test
+    public void testQuit() throws Exception {
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        request(run, SETQ, 1, "k1", "v1");
+        request(run, GETQ, 2, "k1", null);
+        request(run, QUIT, 3, null, null);
+        send(run);
+
+        // what came before the quit is answered, then the quit itself, then the connection is closed
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, GETQ, 2, OK, null, "v1");
+        assertResponse(in, QUIT, 3, OK, null, null);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testQuietQuit() throws Exception {
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        request(run, SETQ, 1, "k1", "v1");
+        request(run, GETQ, 2, "k1", null);
+        request(run, QUITQ, 3, null, null);
+        send(run);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertResponse(in, GETQ, 2, OK, null, "v1");
+        assertEquals(-1, in.read());
+    }
+
+    private void send(ByteArrayOutputStream requests) throws Exception {
+        socket.getOutputStream().write(requests.toByteArray());
+        socket.getOutputStream().flush();
+    }
+
+    private static void request(ByteArrayOutputStream requests, int opcode, int opaque, String key, String value) throws Exception {
+        byte[] keyBytes = key != null ? key.getBytes("US-ASCII") : new byte[0];
+        byte[] valueBytes = value != null ? value.getBytes("US-ASCII") : new byte[0];
+        int extras = value != null ? 8 : 0;
+
+        DataOutputStream out = new DataOutputStream(requests);
+        out.writeByte(0x80);
+        out.writeByte(opcode);
+        out.writeShort(keyBytes.length);
+        out.writeByte(extras);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(extras + keyBytes.length + valueBytes.length);
+        out.writeInt(opaque);
+        out.writeLong(0);
+        out.write(new byte[extras]);
+        out.write(keyBytes);
+        out.write(valueBytes);
+    }
+
+    private static void assertResponse(DataInputStream in, int opcode, int opaque, int status, String key, String value) throws Exception {
+        assertEquals(0x81, in.readUnsignedByte());
+        assertEquals("opcode of response " + opaque, opcode, in.readUnsignedByte());
+        int keyLength = in.readUnsignedShort();
+        int extras = in.readUnsignedByte();
+        in.readUnsignedByte();
+        assertEquals("status of response " + opaque, status, in.readUnsignedShort());
+        int bodyLength = in.readInt();
+        assertEquals(opaque, in.readInt());
+        in.readLong();
+
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        assertEquals(key != null ? key : "", new String(body, extras, keyLength, "US-ASCII"));
+        if (value != null) assertEquals(value, new String(body, extras + keyLength, bodyLength - extras - keyLength, "US-ASCII"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.Lease;
+import com.thimbleware.jmemcached.storage.bytebuffer.Region;
+import com.thimbleware.jmemcached.util.Bytes;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class BlockStorageLeaseTest {
+    private static final long MAX_BYTES = Bytes.valueOf("64k").bytes();
+    private static final int VALUE_SIZE = 1000;
+
+    private BlockStorageCacheStorage storage;
+
+    @Before
+    public void setup() {
+        storage = new BlockStorageCacheStorage(1, 0, 8, MAX_BYTES, 0, ByteBufferBlockStore.getFactory());
+    }
+
+    @After
+    public void teardown() throws IOException {
+        storage.close();
+    }
+
+    @Test
+    public void testLeasedValueOutlivesRemoval() {
+        storage.put(key(0), element(0, (byte) 'a'));
+        LocalCacheElement leased = storage.get(key(0));
+        long leasedBytes = storage.getMemoryUsed();
+
+        storage.remove(key(0)).release();
+        assertEquals("blocks held while leased", leasedBytes, storage.getMemoryUsed());
+
+        // churn through the rest of the store, many times over
+        for (int i = 1; i < 1000; i++) {
+            LocalCacheElement old = storage.put(key(i % 50), element(i, (byte) 'b'));
+            if (old != null) old.release();
+        }
+
+        assertEquals(data((byte) 'a'), leased.getData());
+        leased.release();
+    }
+
+    @Test
+    public void testBlocksFreedOnRelease() {
+        storage.put(key(0), element(0, (byte) 'a'));
+        LocalCacheElement leased = storage.get(key(0));
+        storage.remove(key(0)).release();
+        leased.release();
+
+        // freed blocks are picked up by the next write
+        storage.put(key(1), element(1, (byte) 'b'));
+        LocalCacheElement other = storage.get(key(1));
+        assertEquals("only the new item takes up room", ByteBufferBlockStore.roundUp(other.bufferSize(), 8), storage.getMemoryUsed());
+        other.release();
+    }
+
+    @Test
+    public void testFreedRegionNotHeldBackByLaterLeases() throws IOException {
+        ByteBufferBlockStore store = ByteBufferBlockStore.getFactory().manufacture(MAX_BYTES, 8);
+        Region freed = store.alloc(8, 0, 0);
+        Lease lease = store.lease(freed);
+        store.free(freed);
+
+        // lease every other block in the store, so that leases are taken out on regions sharing the freed one's slot
+        List<Lease> others = new ArrayList<Lease>();
+        Region region;
+        while ((region = store.tryAlloc(8, 0, 0)) != null) {
+            others.add(store.lease(region));
+        }
+
+        long freeBytes = store.getFreeBytes();
+        lease.release();
+        assertEquals("freed region's blocks released along with its own lease", freeBytes + 8, store.getFreeBytes());
+
+        for (Lease other : others) {
+            other.release();
+        }
+        store.close();
+    }
+
+    private static Key key(int i) {
+        return new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+    }
+
+    private static LocalCacheElement element(int i, byte fill) {
+        LocalCacheElement element = new LocalCacheElement(key(i), 0, 0, 0L);
+        element.setData(data(fill));
+        return element;
+    }
+
+    private static org.jboss.netty.buffer.ChannelBuffer data(byte fill) {
+        byte[] bytes = new byte[VALUE_SIZE];
+        Arrays.fill(bytes, fill);
+        return ChannelBuffers.wrappedBuffer(bytes);
+    }
+}
@@ -0,0 +1,55 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.util.Bytes;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Compares the read/write locked read path of the block storage against optimistic reads, under a 90/10
+ * get/set mix.
+ */
+public class BlockStorageReadBenchmark {
+
+    private static final int NUM_KEYS = 10000;
+    private static final int VALUE_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        for (boolean optimistic : new boolean[] {false, true}) {
+            for (int threads : MicroBenchmark.THREAD_COUNTS) {
+                final BlockStorageCacheStorage storage = new BlockStorageCacheStorage(8, 0, 8,
+                        Bytes.valueOf("64m").bytes(), NUM_KEYS, ByteBufferBlockStore.getFactory());
+                storage.setOptimisticReads(optimistic);
+
+                final Key[] keys = new Key[NUM_KEYS];
+                for (int i = 0; i < NUM_KEYS; i++) {
+                    keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+                    storage.put(keys[i], element(keys[i]));
+                }
+
+                double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                    public void run(int thread, long iteration) {
+                        Key key = keys[(int) ((iteration * 7919 + thread * 104729) % NUM_KEYS)];
+                        LocalCacheElement value;
+                        if (iteration % 10 == 0)
+                            value = storage.put(key, element(key));
+                        else
+                            value = storage.get(key);
+                        if (value != null) value.release();
+                    }
+                });
+
+                MicroBenchmark.report(optimistic ? "optimistic reads" : "read/write locked reads", threads, opsPerSecond);
+                storage.close();
+            }
+        }
+    }
+
+    private static LocalCacheElement element(Key key) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(new byte[VALUE_SIZE]));
+        return element;
+    }
+}
@@ -0,0 +1,36 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CasIdGenerator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the single shared AtomicLong cas counter against a CasIdGenerator handing out ids from per thread
+ * blocks, with a fence now and again as a flush would take.
+ */
+public class CasIdBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : MicroBenchmark.THREAD_COUNTS) {
+            final AtomicLong counter = new AtomicLong(1);
+            double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                public void run(int thread, long iteration) {
+                    counter.getAndIncrement();
+                    if (iteration % 1000000 == 0) counter.get();
+                }
+            });
+            MicroBenchmark.report("AtomicLong", threads, opsPerSecond);
+        }
+
+        for (int threads : MicroBenchmark.THREAD_COUNTS) {
+            final CasIdGenerator ids = new CasIdGenerator(1);
+            double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                public void run(int thread, long iteration) {
+                    ids.next();
+                    if (iteration % 1000000 == 0) ids.fence();
+                }
+            });
+            MicroBenchmark.report("CasIdGenerator", threads, opsPerSecond);
+        }
+    }
+}
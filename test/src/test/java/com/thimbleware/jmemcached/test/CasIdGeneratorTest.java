@@ -0,0 +1,88 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CasIdGenerator;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class CasIdGeneratorTest {
+
+    @Test
+    public void testUniqueAcrossThreads() throws InterruptedException {
+        final CasIdGenerator ids = new CasIdGenerator(1);
+        final Set<Long> seen = Collections.synchronizedSet(new HashSet<Long>());
+        final int perThread = 10000;
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        long id = ids.next();
+                        assertTrue(id >= 1);
+                        seen.add(id);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(threads.length * perThread, seen.size());
+    }
+
+    @Test
+    public void testFence() throws InterruptedException {
+        final CasIdGenerator ids = new CasIdGenerator(1);
+        final long[] before = new long[1];
+        Thread other = new Thread() {
+            public void run() {
+                before[0] = ids.next();
+            }
+        };
+        other.start();
+        other.join();
+        long mine = ids.next();
+
+        long fence = ids.fence();
+        assertTrue(before[0] < fence);
+        assertTrue(mine < fence);
+
+        // both this thread and the other still have most of a block below the fence; neither may use it
+        assertTrue(ids.next() >= fence);
+        other = new Thread() {
+            public void run() {
+                before[0] = ids.next();
+            }
+        };
+        other.start();
+        other.join();
+        assertTrue(before[0] >= fence);
+    }
+
+    @Test
+    public void testNextAbove() {
+        CasIdGenerator ids = new CasIdGenerator(1);
+        long id = ids.next();
+        long far = id + 100000;
+        assertTrue(ids.nextAbove(id) > id);
+        assertTrue(ids.nextAbove(far) > far);
+        assertTrue(ids.next() > far);
+    }
+
+    @Test
+    public void testSkipTo() {
+        CasIdGenerator ids = new CasIdGenerator(1);
+        ids.next();
+        ids.skipTo(5000);
+        assertTrue(ids.next() >= 5000);
+        ids.skipTo(10);
+        assertTrue(ids.next() >= 5000);
+    }
+}
@@ -0,0 +1,81 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Commands handed off to a pool of command threads, rather than handled on the I/O threads.
+ */
+public class CommandExecutorTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private MemcachedClient client;
+
+    private InetSocketAddress start(boolean binary) throws Exception {
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(new BlockStorageCacheStorage(4, 1024 * 1024, 4, 16 * 1024 * 1024, 100000, new ByteBufferBlockStore.ByteBufferBlockStoreFactory())));
+        daemon.setBinary(binary);
+        daemon.setWorkerCount(2);
+        daemon.setCommandThreads(2);
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.start();
+        return address;
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) client.shutdown();
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void testText() throws Exception {
+        InetSocketAddress address = start(false);
+        client = new MemcachedClient(Arrays.asList(address));
+        checkPipelined(address);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        InetSocketAddress address = start(true);
+        client = new MemcachedClient(new BinaryConnectionFactory(), Arrays.asList(address));
+        checkPipelined(address);
+    }
+
+    private void checkPipelined(InetSocketAddress address) throws Exception {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(client.set("key" + i, 0, "value" + i));
+            keys.add("key" + i);
+        }
+        for (Future<Boolean> future : futures) assertTrue(future.get());
+
+        Map<String, Object> values = client.getBulk(keys);
+        for (int i = 0; i < 200; i++) assertEquals("value" + i, values.get("key" + i));
+        assertEquals("200", client.getStats().get(address).get("cmd_sets"));
+
+        boolean commandThreads = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            commandThreads |= thread.getName().startsWith("jmemcached-command-");
+        }
+        assertTrue("commands handled on the command threads", commandThreads);
+    }
+}
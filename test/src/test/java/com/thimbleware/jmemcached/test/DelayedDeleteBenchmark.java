@@ -0,0 +1,59 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times a burst of delayed deletes, reporting the bytes allocated per delete as the burst grows; scheduling a delete
+ * should cost the same however many are pending.  Then times how long after they come due the scavenger takes to
+ * have removed them all.
+ */
+public class DelayedDeleteBenchmark {
+
+    private static final int[] BURSTS = {250000, 500000, 1000000};
+
+    public static void main(String[] args) throws Exception {
+        for (int burst : BURSTS) {
+            CacheImpl cache = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                    ConcurrentLinkedHashMap.EvictionPolicy.FIFO, burst, Long.MAX_VALUE));
+
+            Key[] keys = new Key[burst];
+            for (int i = 0; i < burst; i++) {
+                keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+                LocalCacheElement element = new LocalCacheElement(keys[i], 0, 0, 0L);
+                element.setData(ChannelBuffers.wrappedBuffer(new byte[10]));
+                cache.set(element);
+            }
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (Key key : keys) {
+                cache.delete(key, 1);
+            }
+            report("delete <key> 1", burst, System.nanoTime() - start, allocatedBytes() - allocated);
+
+            // from the end of the block; the scavenger runs every second
+            Thread.sleep(1000);
+            start = System.nanoTime();
+            while (cache.getCurrentItems() != 0) {
+                Thread.sleep(10);
+            }
+            System.out.println(String.format("%-20s %,10d deletes %,10.0f ms", "removed by", burst, (System.nanoTime() - start) / 1e6));
+
+            cache.close();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String name, int burst, long nanos, long allocated) {
+        System.out.println(String.format("%-20s %,10d deletes %,10.0f ms %,8.1f bytes/delete", name, burst, nanos / 1e6, (double) allocated / burst));
+    }
+}
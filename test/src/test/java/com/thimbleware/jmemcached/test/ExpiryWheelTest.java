@@ -0,0 +1,106 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.ExpiryWheel;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class ExpiryWheelTest {
+
+    private static final int TICK_SHIFT = 4;
+
+    @Test
+    public void testKeysHandedBackOnceAfterExpiry() {
+        final ExpiryWheel<Integer> wheel = new ExpiryWheel<Integer>(TICK_SHIFT);
+        final Map<Integer, Long> expiries = new HashMap<Integer, Long>();
+        Random random = new Random(1);
+
+        // spread over every level of the wheel, and past the top of it
+        long start = 1000000;
+        for (int i = 0; i < 5000; i++) {
+            long expiry = start + (long) Math.pow(2, random.nextDouble() * 30);
+            expiries.put(i, expiry);
+            wheel.schedule(i, expiry);
+        }
+
+        final long[] now = new long[1];
+        ExpiryWheel.Visitor<Integer> visitor = new ExpiryWheel.Visitor<Integer>() {
+            public void expired(Integer key, long expiry) {
+                assertEquals(expiries.get(key).longValue(), expiry);
+                assertTrue("not handed back before expiry", expiry < now[0]);
+                assertTrue("not handed back long after expiry", now[0] - expiry <= 2L << (TICK_SHIFT + 12));
+                assertNotNull("handed back once", expiries.remove(key));
+            }
+        };
+
+        for (now[0] = start; !expiries.isEmpty(); now[0] += 1L << (TICK_SHIFT + 12)) {
+            wheel.expire(now[0], Integer.MAX_VALUE, visitor);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testBatchBounded() {
+        ExpiryWheel<Integer> wheel = new ExpiryWheel<Integer>(TICK_SHIFT);
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, 500);
+        }
+
+        ExpiryWheel.Visitor<Integer> visitor = new ExpiryWheel.Visitor<Integer>() {
+            public void expired(Integer key, long expiry) {
+            }
+        };
+        assertEquals(0, wheel.expire(100, 30, visitor));
+        assertEquals(30, wheel.expire(1000, 30, visitor));
+        assertEquals(30, wheel.expire(1000, 30, visitor));
+        assertEquals(40, wheel.expire(1000, 100, visitor));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduledKeyFiledOnce() {
+        ExpiryWheel<Integer> wheel = new ExpiryWheel<Integer>(TICK_SHIFT);
+        final Map<Integer, Long> handedBack = new HashMap<Integer, Long>();
+        ExpiryWheel.Visitor<Integer> visitor = new ExpiryWheel.Visitor<Integer>() {
+            public void expired(Integer key, long expiry) {
+                assertNull("handed back once", handedBack.put(key, expiry));
+            }
+        };
+
+        // the same key stored over and over, each time living a little longer
+        for (int i = 0; i < 100000; i++) {
+            wheel.schedule(1, 1000 + i);
+            if (i % 1000 == 0) wheel.expire(0, Integer.MAX_VALUE, visitor);
+        }
+        wheel.expire(0, Integer.MAX_VALUE, visitor);
+        assertEquals("one entry for the key", 1, wheel.size());
+        assertTrue(wheel.isScheduled(1, 5000));
+
+        // filed again to come due sooner, the key is handed back then, and only then
+        wheel.schedule(1, 500);
+        assertEquals(1, wheel.expire(1000, Integer.MAX_VALUE, visitor));
+        assertEquals(500L, handedBack.get(1).longValue());
+        assertEquals(0, wheel.expire(1000000, Integer.MAX_VALUE, visitor));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testClockGoingBack() {
+        ExpiryWheel<Integer> wheel = new ExpiryWheel<Integer>(TICK_SHIFT);
+        ExpiryWheel.Visitor<Integer> visitor = new ExpiryWheel.Visitor<Integer>() {
+            public void expired(Integer key, long expiry) {
+            }
+        };
+
+        wheel.expire(100000, 1, visitor);
+        wheel.schedule(1, 500);
+        assertEquals(0, wheel.expire(100, 1, visitor));
+        assertEquals(1, wheel.expire(1000, 1, visitor));
+    }
+}
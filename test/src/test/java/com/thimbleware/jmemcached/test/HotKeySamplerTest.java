@@ -0,0 +1,85 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.protocol.HotKeySampler;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class HotKeySamplerTest {
+
+    private static Key key(String name) {
+        return new Key(ChannelBuffers.wrappedBuffer(name.getBytes()));
+    }
+
+    @Test
+    public void testHottestKeysFound() {
+        HotKeySampler sampler = new HotKeySampler(1, 4, 8);
+        for (int round = 0; round < 100; round++) {
+            for (int cold = 0; cold < 50; cold++) {
+                sampler.read(key("cold" + (round * 50 + cold)), 10);
+            }
+            for (int i = 0; i < 10; i++) sampler.read(key("hot"), 100);
+            for (int i = 0; i < 5; i++) sampler.read(key("warm"), 100);
+            sampler.write(key("written"), 1);
+        }
+
+        Map<String, String> stats = sampler.stats();
+        assertEquals("hot", stats.get("read_1_key"));
+        assertEquals("warm", stats.get("read_2_key"));
+        assertEquals(1000, Long.parseLong(stats.get("read_1_count")), 20);
+        assertEquals(100000, Long.parseLong(stats.get("read_1_bytes")), 2000);
+        assertEquals("written", stats.get("write_1_key"));
+        assertNull(stats.get("write_2_key"));
+        assertEquals("8", stats.get("partition_count"));
+    }
+
+    @Test
+    public void testRotateDecays() {
+        HotKeySampler sampler = new HotKeySampler(1, 4, 1);
+        for (int i = 0; i < 4; i++) sampler.write(key("a"), 0);
+        sampler.write(key("b"), 0);
+
+        sampler.rotate();
+        Map<String, String> stats = sampler.stats();
+        assertEquals("a", stats.get("write_1_key"));
+        assertEquals("2", stats.get("write_1_count"));
+        assertNull("gone cold", stats.get("write_2_key"));
+        assertEquals("1.00", stats.get("partition_skew"));
+    }
+
+    @Test
+    public void testSameHashCodeCountedApart() {
+        // "Aa" and "BB" have the same hash code, and mustn't be taken for the same key by the sketch
+        assertEquals(key("Aa").hashCode(), key("BB").hashCode());
+
+        HotKeySampler sampler = new HotKeySampler(1, 1, 1);
+        for (int i = 0; i < 100; i++) sampler.write(key("Aa"), 0);
+        sampler.write(key("BB"), 0);
+
+        assertEquals("Aa", sampler.stats().get("write_1_key"));
+    }
+
+    @Test
+    public void testKeysEscaped() {
+        HotKeySampler sampler = new HotKeySampler(1, 1, 1);
+        sampler.read(new Key(ChannelBuffers.wrappedBuffer(new byte[] {'a', ' ', 'b', '\\', '\r', '\n', (byte) 0xff})), 0);
+
+        assertEquals("a\\x20b\\x5c\\x0d\\x0a\\xff", sampler.stats().get("read_1_key"));
+    }
+
+    @Test
+    public void testSampleRate() {
+        HotKeySampler sampler = new HotKeySampler(10, 4, 1);
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (sampler.sample()) sampled++;
+        }
+        assertTrue(String.valueOf(sampled), sampled > 9000 && sampled < 11000);
+    }
+}
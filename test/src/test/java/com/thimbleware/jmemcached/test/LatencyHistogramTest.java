@@ -0,0 +1,76 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.util.LatencyHistogram;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMax());
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertWithin(500, histogram.getValueAtPercentile(50));
+        assertWithin(990, histogram.getValueAtPercentile(99));
+        assertWithin(1000, histogram.getMax());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(15, histogram.getMax());
+        assertEquals(7, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertWithin(1L << 36, histogram.getMax());
+    }
+
+    @Test
+    public void testThreadsMerged() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long value = (t + 1) * 100;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4000, histogram.getCount());
+        assertEquals(250, histogram.getMean());
+        assertWithin(200, histogram.getValueAtPercentile(50));
+        assertWithin(400, histogram.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 16 + 1);
+    }
+}
@@ -0,0 +1,97 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.util.ReusePort;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Several listeners bound to the one port with SO_REUSEPORT.
+ */
+public class ListenersTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket socket : sockets) socket.close();
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+        assumeTrue(ReusePort.isSupported());
+
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(new BlockStorageCacheStorage(4, 1024 * 1024, 4, 16 * 1024 * 1024, 100000, new ByteBufferBlockStore.ByteBufferBlockStoreFactory())));
+        daemon.setListeners(3);
+        daemon.setWorkerCount(3);
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.start();
+
+        Set<String> bosses = new HashSet<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().matches("jmemcached-listener-\\d-boss-\\d+")) bosses.add(thread.getName());
+        }
+        assertEquals("a boss thread for each listener", 3, bosses.size());
+
+        for (int i = 0; i < 12; i++) {
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            sockets.add(socket);
+            assertEquals("STORED", command(socket, "set key" + i + " 0 0 1\r\n" + (i % 10) + "\r\n"));
+        }
+        for (int i = 0; i < 12; i++) {
+            assertEquals("VALUE key" + i + " 0 1", command(sockets.get(i), "get key" + i + "\r\n"));
+        }
+
+        // the connections are counted together, whichever listener they came in on
+        assertEquals("STAT curr_connections 12", stat(sockets.get(0), "curr_connections"));
+        assertEquals("STAT total_connections 12", stat(sockets.get(0), "total_connections"));
+        assertEquals("STAT cmd_sets 12", stat(sockets.get(0), "cmd_sets"));
+    }
+
+    private static String command(Socket socket, String command) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(command.getBytes("US-ASCII"));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String line = in.readLine();
+        // drain the rest of a get reply, so that the next command's reply is read from its start
+        if (line.startsWith("VALUE")) {
+            in.readLine();
+            in.readLine();
+        }
+        return line;
+    }
+
+    private static String stat(Socket socket, String name) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write("stats\r\n".getBytes("US-ASCII"));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String found = null;
+        for (String line = in.readLine(); !"END".equals(line); line = in.readLine()) {
+            if (line.startsWith("STAT " + name + " ")) found = line;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,52 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class LocalCacheElementTest {
+
+    @Test
+    public void testBufferRoundTrip() {
+        LocalCacheElement element = element();
+        ChannelBuffer buffer = ChannelBuffers.buffer(element.bufferSize());
+        element.writeToBuffer(buffer);
+
+        LocalCacheElement read = LocalCacheElement.readFromBuffer(buffer);
+        assertEquals(element.getKey(), read.getKey());
+        assertEquals(element.getData(), read.getData());
+        assertEquals(42, read.getFlags());
+        assertEquals(1234L, read.getExpire());
+        assertEquals("cas read back whole", 0x123456789aL, read.getCasUnique());
+        assertTrue(read.isBlocked());
+        assertEquals(5678L, read.getBlockedUntil());
+        assertEquals(element.bufferSize(), read.bufferSize());
+        assertEquals(element, read);
+    }
+
+    @Test
+    public void testChangingViewLeavesRecordAlone() {
+        LocalCacheElement element = element();
+        ChannelBuffer buffer = ChannelBuffers.buffer(element.bufferSize());
+        element.writeToBuffer(buffer);
+
+        LocalCacheElement view = LocalCacheElement.viewOf(buffer, 0);
+        view.setCasUnique(7L);
+        assertEquals(7L, view.getCasUnique());
+        assertEquals(element.getData(), view.getData());
+        assertEquals(0x123456789aL, LocalCacheElement.viewOf(buffer, 0).getCasUnique());
+    }
+
+    private static LocalCacheElement element() {
+        LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("key".getBytes())), 42, 1234L, 0x123456789aL);
+        element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+        element.block(5678L);
+        return element;
+    }
+}
@@ -0,0 +1,95 @@
+package com.thimbleware.jmemcached.test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Bare bones harness for the multi-threaded micro benchmarks in this module.  Runs a task on a number of
+ * threads for a fixed period after a warm up, and reports the aggregate throughput.
+ *
+ * Benchmarks are plain classes with a main() rather than tests, so they stay out of the regular test run.
+ */
+public final class MicroBenchmark {
+
+    public static final int[] THREAD_COUNTS = {1, 8, 32};
+
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long MEASURE_MILLIS = 5000;
+
+    /**
+     * A unit of benchmarked work.
+     */
+    public interface Task {
+        /**
+         * @param thread the index of the calling thread
+         * @param iteration the number of times this thread has called the task so far
+         */
+        void run(int thread, long iteration) throws Exception;
+    }
+
+    private MicroBenchmark() {
+    }
+
+    /**
+     * Run the task on the given number of threads.
+     *
+     * @return operations per second, summed over all threads
+     */
+    public static double run(int threads, final Task task) throws InterruptedException {
+        // spaced out so that the counters of neighbouring threads don't share a cache line
+        final long[] counts = new long[(threads + 1) * 16];
+        final CountDownLatch started = new CountDownLatch(threads);
+        final CountDownLatch finished = new CountDownLatch(threads);
+        final Phase phase = new Phase();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        long iteration = 0;
+                        while (phase.state == Phase.WARMUP) {
+                            task.run(thread, iteration++);
+                        }
+                        long measured = 0;
+                        while (phase.state == Phase.MEASURE) {
+                            task.run(thread, iteration++);
+                            measured++;
+                        }
+                        counts[(thread + 1) * 16] = measured;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "benchmark-" + thread).start();
+        }
+
+        started.await();
+        Thread.sleep(WARMUP_MILLIS);
+        phase.state = Phase.MEASURE;
+        long start = System.nanoTime();
+        Thread.sleep(MEASURE_MILLIS);
+        phase.state = Phase.DONE;
+        long elapsed = System.nanoTime() - start;
+        finished.await();
+
+        long total = 0;
+        for (long count : counts) total += count;
+
+        return total * 1e9 / elapsed;
+    }
+
+    public static void report(String name, int threads, double opsPerSecond) {
+        System.out.println(String.format("%-40s %3d threads %,15.0f ops/s", name, threads, opsPerSecond));
+    }
+
+    private static final class Phase {
+        static final int WARMUP = 0;
+        static final int MEASURE = 1;
+        static final int DONE = 2;
+
+        volatile int state = WARMUP;
+    }
+}
@@ -0,0 +1,63 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.util.Bytes;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Compares looking up the keys of a 100 key multi get one at a time, each under its partition's read lock, against
+ * looking them all up at once, each partition locked once for all of its keys.
+ */
+public class MultiGetBenchmark {
+
+    private static final int NUM_KEYS = 10000;
+    private static final int KEYS_PER_GET = 100;
+    private static final int VALUE_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        for (final boolean bulk : new boolean[] {false, true}) {
+            for (int threads : MicroBenchmark.THREAD_COUNTS) {
+                final BlockStorageCacheStorage storage = new BlockStorageCacheStorage(8, 0, 8,
+                        Bytes.valueOf("64m").bytes(), NUM_KEYS, ByteBufferBlockStore.getFactory());
+
+                final Key[] keys = new Key[NUM_KEYS];
+                for (int i = 0; i < NUM_KEYS; i++) {
+                    keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+                    storage.put(keys[i], element(keys[i]));
+                }
+
+                final Key[][] gets = new Key[threads][KEYS_PER_GET];
+                final LocalCacheElement[][] values = new LocalCacheElement[threads][KEYS_PER_GET];
+                double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                    public void run(int thread, long iteration) {
+                        Key[] get = gets[thread];
+                        LocalCacheElement[] found = values[thread];
+                        for (int i = 0; i < KEYS_PER_GET; i++) {
+                            get[i] = keys[(int) (((iteration * KEYS_PER_GET + i) * 7919 + thread * 104729) % NUM_KEYS)];
+                        }
+                        if (bulk) {
+                            storage.getAll(get, found);
+                        } else {
+                            for (int i = 0; i < KEYS_PER_GET; i++) found[i] = storage.get(get[i]);
+                        }
+                        for (LocalCacheElement value : found) {
+                            if (value != null) value.release();
+                        }
+                    }
+                });
+
+                MicroBenchmark.report(bulk ? "multi gets, keys grouped by partition" : "multi gets, a key at a time", threads, opsPerSecond);
+                storage.close();
+            }
+        }
+    }
+
+    private static LocalCacheElement element(Key key) {
+        LocalCacheElement element = new LocalCacheElement(key, 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(new byte[VALUE_SIZE]));
+        return element;
+    }
+}
@@ -0,0 +1,157 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
+import com.thimbleware.jmemcached.util.Bytes;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class PersistentMappedStorageTest {
+    private static final int PARTITIONS = 4;
+    private static final int ITEMS = 500;
+    private static final long MAX_BYTES = Bytes.valueOf("4m").bytes();
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("jmemcached", "persistent");
+        file.delete();
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void testItemsSurviveRestart() throws IOException {
+        BlockStorageCacheStorage storage = open(PARTITIONS);
+        for (int i = 0; i < ITEMS; i++) {
+            storage.put(key(i), element(i));
+        }
+        storage.remove(key(0));
+        storage.close();
+
+        storage = open(PARTITIONS);
+        assertEquals("all items recovered", ITEMS - 1, storage.size());
+        assertNull("removed item stays removed", storage.get(key(0)));
+        for (int i = 1; i < ITEMS; i++) {
+            LocalCacheElement element = storage.get(key(i));
+            assertNotNull(i + "th item recovered", element);
+            assertEquals(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), element.getData());
+        }
+
+        // room taken by recovered items is accounted for, and new items fit in around them
+        assertTrue("memory in use", storage.getMemoryUsed() > 0);
+        storage.put(key(ITEMS), element(ITEMS));
+        assertNotNull(storage.get(key(ITEMS)));
+        assertNotNull(storage.get(key(1)));
+        storage.close();
+    }
+
+    @Test
+    public void testDifferentLayoutStartsEmpty() throws IOException {
+        BlockStorageCacheStorage storage = open(PARTITIONS);
+        for (int i = 0; i < ITEMS; i++) {
+            storage.put(key(i), element(i));
+        }
+        storage.close();
+
+        storage = open(PARTITIONS * 2);
+        assertEquals("nothing recovered into a different partition layout", 0, storage.size());
+        storage.close();
+    }
+
+    @Test
+    public void testRecoveredItemsExpire() throws IOException {
+        BlockStorageCacheStorage storage = open(PARTITIONS);
+        for (int i = 0; i < ITEMS; i++) {
+            // well past for half of them, as the expiry wheel only deals in whole ticks
+            LocalCacheElement element = new LocalCacheElement(key(i), 0, i % 2 == 0 ? CacheImpl.Now() - 5000 : 0, i + 1);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            storage.put(key(i), element);
+        }
+        storage.close();
+
+        CacheImpl cache = new CacheImpl(open(PARTITIONS));
+        assertEquals("expired items removed", ITEMS / 2, cache.reapExpired());
+        assertEquals(ITEMS / 2, cache.getCurrentItems());
+        cache.close();
+    }
+
+    @Test
+    public void testUnsweptFlushedItemsDropped() throws IOException {
+        BlockStorageCacheStorage storage = open(PARTITIONS);
+        for (int i = 0; i < ITEMS; i++) {
+            LocalCacheElement element = element(i);
+            element.setCasUnique(i + 1);
+            storage.put(key(i), element);
+        }
+        // as if the first half were flushed, and closed before the sweep got to them
+        storage.setFlushedBelow(ITEMS / 2 + 1);
+        storage.close();
+
+        storage = open(PARTITIONS);
+        assertEquals("flush carried over", ITEMS / 2 + 1, storage.getRecoveredFlushedBelow());
+        assertEquals("only items stored after the flush recovered", ITEMS / 2, storage.size());
+        for (int i = 0; i < ITEMS; i++) {
+            if (i < ITEMS / 2) assertNull(i + "th item dropped", storage.get(key(i)));
+            else assertNotNull(i + "th item recovered", storage.get(key(i)));
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testFlushedItemsStayGone() throws IOException {
+        CacheImpl cache = new CacheImpl(open(PARTITIONS));
+        for (int i = 0; i < ITEMS; i++) {
+            cache.set(element(i));
+        }
+        // closed straight after, most likely before the flush is swept from the store
+        cache.flush_all();
+        cache.close();
+
+        cache = new CacheImpl(open(PARTITIONS));
+        assertEquals("no flushed items recovered", 0, cache.getCurrentItems());
+        for (int i = 0; i < ITEMS; i++) {
+            assertNull(i + "th item flushed", cache.get(key(i))[0]);
+        }
+
+        // and what is stored from here on isn't taken for flushed
+        cache.set(element(0));
+        assertNotNull(cache.get(key(0))[0]);
+        cache.close();
+
+        cache = new CacheImpl(open(PARTITIONS));
+        assertEquals("item stored after the flush recovered", 1, cache.getCurrentItems());
+        assertNotNull(cache.get(key(0))[0]);
+        cache.close();
+    }
+
+    private BlockStorageCacheStorage open(int partitions) {
+        return new BlockStorageCacheStorage(partitions, 0, 8, MAX_BYTES, 0, MemoryMappedBlockStore.getPersistentFactory(file));
+    }
+
+    private static Key key(int i) {
+        return new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+    }
+
+    private static LocalCacheElement element(int i) {
+        LocalCacheElement element = new LocalCacheElement(key(i), 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+        return element;
+    }
+}
@@ -0,0 +1,170 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Text commands sent all at once, which are handled as a batch, the gets among them looked up together, and sent
+ * one after another, the responses to which may be held back to be written together.
+ */
+public class PipelinedTextTest {
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Socket socket;
+
+    private void start(int flushDelay) throws Exception {
+        daemon = new MemCacheDaemon<LocalCacheElement>();
+        daemon.setCache(new CacheImpl(new BlockStorageCacheStorage(4, 1024 * 1024, 4, 16 * 1024 * 1024, 100000, new ByteBufferBlockStore.ByteBufferBlockStoreFactory())));
+        daemon.setFlushDelay(flushDelay);
+        InetSocketAddress address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon.setAddr(address);
+        daemon.start();
+        socket = new Socket(address.getAddress(), address.getPort());
+        socket.setTcpNoDelay(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (socket != null) socket.close();
+        if (daemon != null && daemon.isRunning()) daemon.stop();
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        start(0);
+        String replies = send(
+                "set a 0 0 1\r\n1\r\n" +
+                "get a b\r\n" +
+                "get a\r\n" +
+                "set b 3 0 1 noreply\r\n2\r\n" +
+                "get b\r\n" +
+                "incr a 1\r\n" +
+                "get b a\r\n" +
+                "get c\r\n" +
+                "delete b\r\n" +
+                "get b\r\n",
+                "STORED",
+                "VALUE a 0 1", "1", "END",
+                "VALUE a 0 1", "1", "END",
+                "VALUE b 3 1", "2", "END",
+                "2",
+                "VALUE b 3 1", "2", "VALUE a 0 1", "2", "END",
+                "END",
+                "DELETED",
+                "END");
+        assertEquals(null, replies);
+
+        // each get of a run merged into one lookup is still counted on its own
+        assertEquals("STAT cmd_gets 6", stat("cmd_gets"));
+        assertEquals("STAT get_hits 5", stat("get_hits"));
+        assertEquals("STAT get_misses 3", stat("get_misses"));
+    }
+
+    @Test
+    public void testManyGets() throws Exception {
+        start(0);
+        StringBuilder sets = new StringBuilder();
+        StringBuilder gets = new StringBuilder();
+        String[] expected = new String[1000 * 3];
+        for (int i = 0; i < 1000; i++) {
+            sets.append("set key").append(i).append(" 0 0 ").append(String.valueOf(i).length()).append(" noreply\r\n").append(i).append("\r\n");
+            gets.append("get key").append(i).append("\r\n");
+            expected[i * 3] = "VALUE key" + i + " 0 " + String.valueOf(i).length();
+            expected[i * 3 + 1] = String.valueOf(i);
+            expected[i * 3 + 2] = "END";
+        }
+        send(sets.toString());
+        assertEquals(null, send(gets.toString(), expected));
+    }
+
+    @Test
+    public void testFlushDelay() throws Exception {
+        start(50 * 1000);
+
+        // sent a write at a time, but answered in far fewer than a write each
+        OutputStream out = socket.getOutputStream();
+        for (int i = 0; i < 20; i++) {
+            out.write(("set key" + i + " 0 0 1\r\nx\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+        String[] stored = new String[20];
+        Arrays.fill(stored, "STORED");
+        assertEquals(null, send("", stored));
+
+        int writes = Integer.parseInt(detail("writes").substring("STAT writes ".length()));
+        assertTrue(writes + " writes", writes <= 5);
+
+        // held back responses are still written before an error
+        assertEquals(null, send("get key1\r\nbogus\r\n", "VALUE key1 0 1", "x", "END", "CLIENT_ERROR"));
+
+        // and the commands after an error are answered without waiting on another read
+        assertEquals(null, send("bogus\r\nget key2\r\n", "CLIENT_ERROR", "VALUE key2 0 1", "x", "END"));
+    }
+
+    @Test
+    public void testQuit() throws Exception {
+        start(0);
+
+        // everything before the quit is answered before the connection is closed
+        assertEquals(null, send("set a 0 0 1\r\nx\r\nget a\r\nquit\r\n", "STORED", "VALUE a 0 1", "x", "END"));
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    @Test
+    public void testQuitHeldBack() throws Exception {
+        start(50 * 1000);
+
+        assertEquals(null, send("set a 0 0 1\r\nx\r\nget a\r\nquit\r\n", "STORED", "VALUE a 0 1", "x", "END"));
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    /**
+     * Send the given commands in one write and read back the expected lines, returning a description of the first
+     * that differs, or null if they are all as expected.
+     */
+    private String send(String commands, String... expected) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(commands.getBytes("US-ASCII"));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        for (int i = 0; i < expected.length; i++) {
+            String line = in.readLine();
+            if (!expected[i].equals(line)) return "line " + i + " was " + line + " rather than " + expected[i];
+        }
+        return null;
+    }
+
+    private String stat(String name) throws Exception {
+        return stat("stats", name);
+    }
+
+    private String detail(String name) throws Exception {
+        return stat("stats detail", name);
+    }
+
+    private String stat(String command, String name) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write((command + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        String found = null;
+        for (String line = in.readLine(); !"END".equals(line); line = in.readLine()) {
+            if (line.startsWith("STAT " + name + " ")) found = line;
+        }
+        return found;
+    }
+}
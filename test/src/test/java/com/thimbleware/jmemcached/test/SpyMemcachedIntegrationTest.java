@@ -102,6 +102,30 @@ public class SpyMemcachedIntegrationTest extends AbstractCacheTest {
         assertEquals("1", statsMap.get("cmd_sets"));
     }
 
+    @Test
+    public void testStatsDetailAndLatency() throws ExecutionException, InterruptedException {
+        assertTrue(_client.set("foo", 0, "bar").get());
+        assertEquals("bar", _client.get("foo"));
+        assertTrue(_client.delete("foo").get());
+        assertFalse(_client.delete("foo").get());
+
+        Map<String, String> statsMap = _client.getStats().get(address);
+        assertEquals("1", statsMap.get("delete_hits"));
+        assertEquals("1", statsMap.get("delete_misses"));
+        assertTrue(Long.parseLong(statsMap.get("bytes_read")) > 0);
+        assertTrue(Long.parseLong(statsMap.get("bytes_written")) > 0);
+        assertEquals("1", statsMap.get("curr_connections"));
+
+        statsMap = _client.getStats("detail").get(address);
+        assertEquals("1", statsMap.get("cmd_set"));
+        assertEquals("2", statsMap.get("cmd_delete"));
+
+        statsMap = _client.getStats("latency").get(address);
+        assertEquals("1", statsMap.get("set_count"));
+        assertNotNull(statsMap.get("set_p99_us"));
+        assertNull(statsMap.get("append_count"));
+    }
+
     @Test
     public void testBinaryCompressed() throws ExecutionException, InterruptedException {
         Future<Boolean> future = _client.add("foo", 86400, "foobarshoe");
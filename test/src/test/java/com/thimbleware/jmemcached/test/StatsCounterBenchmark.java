@@ -0,0 +1,36 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.util.StripedCounter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a single AtomicLong against a StripedCounter as a statistic bumped from every thread, with the
+ * counter read now and again as "stats" would.
+ */
+public class StatsCounterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : MicroBenchmark.THREAD_COUNTS) {
+            final AtomicLong atomic = new AtomicLong();
+            double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                public void run(int thread, long iteration) {
+                    atomic.incrementAndGet();
+                    if (iteration % 100000 == 0) atomic.get();
+                }
+            });
+            MicroBenchmark.report("AtomicLong", threads, opsPerSecond);
+        }
+
+        for (int threads : MicroBenchmark.THREAD_COUNTS) {
+            final StripedCounter striped = new StripedCounter();
+            double opsPerSecond = MicroBenchmark.run(threads, new MicroBenchmark.Task() {
+                public void run(int thread, long iteration) {
+                    striped.increment();
+                    if (iteration % 100000 == 0) striped.get();
+                }
+            });
+            MicroBenchmark.report("StripedCounter", threads, opsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.protocol.CommandBatch;
+import com.thimbleware.jmemcached.protocol.CommandMessage;
+import com.thimbleware.jmemcached.protocol.Op;
+import com.thimbleware.jmemcached.protocol.SessionStatus;
+import com.thimbleware.jmemcached.protocol.text.MemcachedCommandDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The text protocol decoder, fed lines whole, a byte at a time, and several at once, which come out as a batch.
+ */
+public class TextCommandDecoderTest {
+
+    private static final Charset USASCII = Charset.forName("US-ASCII");
+
+    private DecoderEmbedder<Object> decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new DecoderEmbedder<Object>(new MemcachedCommandDecoder(new SessionStatus().ready()));
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        CommandMessage cmd = decode("get a  bb ccc\r\n");
+        assertEquals(Op.GET, cmd.op);
+        assertEquals(3, cmd.keys.size());
+        assertEquals("a", key(cmd, 0));
+        assertEquals("bb", key(cmd, 1));
+        assertEquals("ccc", key(cmd, 2));
+    }
+
+    @Test
+    public void testSet() throws Exception {
+        CommandMessage cmd = decode("set key 5 0 3 noreply\r\nabc\r\n");
+        assertEquals(Op.SET, cmd.op);
+        assertEquals("key", string(cmd.element.getKey().bytes));
+        assertEquals(5, cmd.element.getFlags());
+        assertTrue(cmd.noreply);
+        assertEquals("abc", cmd.element.getData().toString(USASCII));
+    }
+
+    @Test
+    public void testCasAndIncr() throws Exception {
+        CommandMessage cas = decode("cas key 0 0 1 12345678901\r\nx\r\n");
+        assertEquals(Op.CAS, cas.op);
+        assertEquals(12345678901L, cas.cas_key);
+        assertFalse(cas.noreply);
+
+        CommandMessage incr = decode("incr counter 42 noreply\r\n");
+        assertEquals(Op.INCR, incr.op);
+        assertEquals(42, incr.incrAmount);
+        assertTrue(incr.noreply);
+    }
+
+    @Test
+    public void testByteAtATime() throws Exception {
+        byte[] bytes = "get first\r\nset second 0 0 2\r\nab\r\ndelete third\r\n".getBytes("US-ASCII");
+        List<CommandMessage> commands = new ArrayList<CommandMessage>();
+        for (byte b : bytes) {
+            decoder.offer(ChannelBuffers.wrappedBuffer(new byte[] {b}));
+            Object cmd;
+            while ((cmd = decoder.poll()) != null) commands.add((CommandMessage) cmd);
+        }
+
+        assertEquals(3, commands.size());
+        assertEquals(Op.GET, commands.get(0).op);
+        assertEquals("first", key(commands.get(0), 0));
+        assertEquals(Op.SET, commands.get(1).op);
+        assertEquals("ab", commands.get(1).element.getData().toString(USASCII));
+        assertEquals(Op.DELETE, commands.get(2).op);
+        assertEquals("third", key(commands.get(2), 0));
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        decoder.offer(ChannelBuffers.wrappedBuffer("get a\r\nget b\r\nversion\r\n".getBytes("US-ASCII")));
+
+        // the commands read together are passed on together
+        CommandBatch batch = (CommandBatch) decoder.poll();
+        assertEquals(3, batch.commands.size());
+        assertEquals("a", key((CommandMessage) batch.commands.get(0), 0));
+        assertEquals("b", key((CommandMessage) batch.commands.get(1), 0));
+        assertEquals(Op.VERSION, ((CommandMessage) batch.commands.get(2)).op);
+        assertNull(decoder.poll());
+    }
+
+    @Test
+    public void testUnknownCommand() throws Exception {
+        try {
+            decode("bogus key\r\n");
+            fail("unknown command decoded");
+        } catch (CodecEmbedderException e) {
+            // expected
+        }
+
+        // and the line is gone, leaving the next one to be read
+        assertEquals("a", key(decode("get a\r\n"), 0));
+    }
+
+    private CommandMessage decode(String line) throws Exception {
+        decoder.offer(ChannelBuffers.wrappedBuffer(line.getBytes("US-ASCII")));
+        return (CommandMessage) decoder.poll();
+    }
+
+    private static String key(CommandMessage cmd, int index) {
+        return string(((Key) cmd.keys.get(index)).bytes);
+    }
+
+    private static String string(ChannelBuffer buffer) {
+        return buffer.toString(0, buffer.capacity(), USASCII);
+    }
+}
@@ -0,0 +1,38 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.protocol.SessionStatus;
+import com.thimbleware.jmemcached.protocol.text.MemcachedCommandDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+
+/**
+ * Decodes text protocol lines of the sort real clients send, a single key get, a set with its data, and a multi
+ * get of twenty keys, each through a decoder of its own as each connection has.
+ */
+public class TextDecoderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder multiGet = new StringBuilder("get");
+        for (int i = 0; i < 20; i++) multiGet.append(" user:session:").append(1000 + i);
+        multiGet.append("\r\n");
+
+        run("get", "get user:session:1234\r\n");
+        run("set", "set user:session:1234 0 3600 32\r\n0123456789abcdef0123456789abcdef\r\n");
+        run("multi get, 20 keys", multiGet.toString());
+    }
+
+    private static void run(String name, String lines) throws Exception {
+        final ChannelBuffer input = ChannelBuffers.wrappedBuffer(lines.getBytes("US-ASCII"));
+        final DecoderEmbedder<Object> decoder = new DecoderEmbedder<Object>(new MemcachedCommandDecoder(new SessionStatus().ready()));
+
+        double opsPerSecond = MicroBenchmark.run(1, new MicroBenchmark.Task() {
+            public void run(int thread, long iteration) {
+                input.readerIndex(0);
+                decoder.offer(input);
+                if (decoder.poll() == null) throw new IllegalStateException("nothing decoded");
+            }
+        });
+        MicroBenchmark.report(name, 1, opsPerSecond);
+    }
+}